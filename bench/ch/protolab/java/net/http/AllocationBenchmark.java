@@ -0,0 +1,152 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.InputStreamContent;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Measures the bytes allocated by the calling thread per request sent through {@link PooledHttpTransport} to a local
+ * stub server: GET, GET by a client decoding responses itself, POST with a fixed length body, and POST with a chunked
+ * body. Only the client thread is measured, the server runs on its own threads.<br/>
+ * Usage: {@code AllocationBenchmark [requests] [body size]}, defaults are 20000 and 1024.
+ */
+public final class AllocationBenchmark {
+
+    private AllocationBenchmark() {
+    }
+
+    /**
+     * A request sent by the benchmark.
+     */
+    private interface Call {
+        HttpResponse send() throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+
+        final byte[] body = new byte[size];
+        Arrays.fill(body, (byte) 'x');
+        PooledHttpTransport transport = new PooledHttpTransport.Builder().build();
+        try (StubServer server = new StubServer(echoSize(body))) {
+            final GenericUrl url = server.url("/bench");
+            final HttpClient client = new HttpClient.Builder()
+                    .userAgent("simple-http-client-bench")
+                    .accept("application/octet-stream")
+                    .header("X-Bench", "1")
+                    .header("X-Tenant", "allocation")
+                    .transport(transport)
+                    .build();
+
+            run("get", new Call() {
+                @Override
+                public HttpResponse send() throws IOException {
+                    return client.get(url);
+                }
+            }, requests);
+            final HttpClient decoding = new HttpClient.Builder()
+                    .userAgent("simple-http-client-bench")
+                    .acceptEncoding(ContentCoding.GZIP)
+                    .transport(transport)
+                    .build();
+            run("get, decoding", new Call() {
+                @Override
+                public HttpResponse send() throws IOException {
+                    return decoding.get(url);
+                }
+            }, requests);
+            run("post", new Call() {
+                @Override
+                public HttpResponse send() throws IOException {
+                    return client.post(url, new ByteArrayContent("application/octet-stream", body));
+                }
+            }, requests);
+            run("post, chunked", new Call() {
+                @Override
+                public HttpResponse send() throws IOException {
+                    return client.post(url,
+                            new InputStreamContent("application/octet-stream", new ByteArrayInputStream(body)));
+                }
+            }, requests);
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    private static void run(String name, Call call, int requests) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        byte[] buf = new byte[8192];
+
+        measure(call, requests / 4, buf); // warm-up
+        long before = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        measure(call, requests, buf);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        System.out.printf(Locale.ROOT, "%-14s %8d B/request  %10.0f req/s%n", name, allocated / requests,
+                requests / seconds);
+    }
+
+    private static void measure(Call call, int requests, byte[] buf) throws IOException {
+        for (int i = 0; i < requests; i++) {
+            HttpResponse resp = call.send();
+            try (InputStream in = resp.getContent()) {
+                while (in != null && in.read(buf) != -1) {
+                    // discarded
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a handler reading the whole request body, then responding with {@code body}.
+     */
+    private static HttpHandler echoSize(final byte[] body) {
+        return new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                try (InputStream in = ex.getRequestBody()) {
+                    byte[] buf = new byte[8192];
+                    while (in.read(buf) != -1) {
+                        // discarded
+                    }
+                }
+                ex.sendResponseHeaders(200, body.length);
+                try (OutputStream out = ex.getResponseBody()) {
+                    out.write(body);
+                }
+                ex.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the whole request path, from {@code HttpClient.get/post} through the request initializer and the
+ * transport to a local stub server, for small and large bodies, with and without {@link PooledHttpTransport}.<br/>
+ * The {@code get}/{@code post} benchmarks report the latency of a call; run them with {@code -prof gc} to see the
+ * allocation per call. The {@code throughput*} benchmarks report requests per second at 1, 8 and 64 threads.<br/>
+ * Usage: {@code ant bench.jmh -Djmh.args="HttpClientBenchmark -prof gc"}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpClientBenchmark {
+
+    @Param({"64", "262144"})
+    int bodySize;
+
+    @Param({"url-connection", "pooled"})
+    String transport;
+
+    private StubServer server;
+    private PooledHttpTransport pooled;
+    private HttpClient client;
+    private GenericUrl url;
+    private ByteArrayContent payload;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'x');
+        server = new StubServer(echoSize(body));
+        url = server.url("/bench");
+        payload = new ByteArrayContent("application/octet-stream", body);
+
+        HttpClient.Builder b = new HttpClient.Builder()
+                .userAgent("simple-http-client-bench")
+                .accept("application/octet-stream")
+                .header("X-Bench", "1");
+        if ("pooled".equals(transport)) {
+            pooled = new PooledHttpTransport.Builder().maxConnectionsPerRoute(64).build();
+            b.transport(pooled);
+        }
+        client = b.build();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.close();
+        if (pooled != null)
+            pooled.shutdown();
+    }
+
+    @Benchmark
+    public long get() throws IOException {
+        return drain(client.get(url));
+    }
+
+    @Benchmark
+    public long post() throws IOException {
+        return drain(client.post(url, payload));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(1)
+    public long throughput1() throws IOException {
+        return drain(client.get(url));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(8)
+    public long throughput8() throws IOException {
+        return drain(client.get(url));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(64)
+    public long throughput64() throws IOException {
+        return drain(client.get(url));
+    }
+
+    /**
+     * Reads the body without decoding it, so the benchmark measures the client rather than string conversion.
+     */
+    private static long drain(HttpResponse resp) throws IOException {
+        long n = 0;
+        byte[] buf = new byte[8192];
+        try (InputStream in = resp.getContent()) {
+            if (in == null)
+                return 0;
+            for (int r; (r = in.read(buf)) != -1; )
+                n += r;
+        }
+        return n;
+    }
+
+    /**
+     * @return a handler reading the whole request body, then responding with {@code body}.
+     */
+    private static HttpHandler echoSize(final byte[] body) {
+        return new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                // the server drops the connection when a large request body is left unread
+                try (InputStream in = ex.getRequestBody()) {
+                    byte[] buf = new byte[8192];
+                    while (in.read(buf) != -1) {
+                        // discarded
+                    }
+                }
+                ex.sendResponseHeaders(200, body.length);
+                try (OutputStream out = ex.getResponseBody()) {
+                    out.write(body);
+                }
+                ex.close();
+            }
+        };
+    }
+}
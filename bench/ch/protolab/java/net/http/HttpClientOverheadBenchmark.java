@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.HttpHeaders;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the wrapper's own work, without any I/O: building a client and merging the common headers with
+ * the per-call ones, which {@code HttpClient.send()} does for every request.<br/>
+ * Usage: {@code ant bench.jmh -Djmh.args="HttpClientOverheadBenchmark -prof gc"}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpClientOverheadBenchmark {
+
+    /**
+     * Number of common headers.
+     */
+    @Param({"2", "16"})
+    int headers;
+
+    private CommonHeaders common;
+    private HttpHeaders perCall;
+
+    @Setup
+    public void setUp() {
+        HttpHeaders h = new HttpHeaders();
+        h.setUserAgent("simple-http-client-bench");
+        h.setAccept("application/json");
+        for (int i = 2; i < headers; i++)
+            h.set("X-Common-" + i, "value-" + i);
+        common = CommonHeaders.freeze(h);
+
+        perCall = new HttpHeaders();
+        perCall.setAuthorization("Bearer token");
+        perCall.set("X-Request-Id", "42");
+    }
+
+    @Benchmark
+    public HttpClient buildClient() {
+        return new HttpClient.Builder()
+                .userAgent("simple-http-client-bench")
+                .accept("application/json")
+                .header("X-Bench", "1")
+                .timeout(5, TimeUnit.SECONDS)
+                .readTimeout(5, TimeUnit.SECONDS)
+                .build();
+    }
+
+    @Benchmark
+    public HttpHeaders mergeCommonOnly() {
+        return common.merge(null);
+    }
+
+    @Benchmark
+    public HttpHeaders mergeWithPerCall() {
+        return common.merge(perCall);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares requests/sec and latency percentiles of the java.net.HttpURLConnection based default transport,
+ * {@link PooledHttpTransport}, and {@link PooledHttpTransport} without connection reuse, against a local stub server.
+ * <br/>
+ * Usage: {@code TransportBenchmark [threads] [requests per thread]}, defaults are 16 and 2000.
+ */
+public final class TransportBenchmark {
+
+    private static final String BODY;
+
+    static {
+        char[] body = new char[1024];
+        Arrays.fill(body, 'x');
+        BODY = new String(body);
+    }
+
+    private TransportBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        try (StubServer server = new StubServer(StubServer.respond(200, BODY))) {
+            GenericUrl url = server.url("/bench");
+
+            run("url-connection", HttpClient.newInstance(), url, threads, requests);
+
+            PooledHttpTransport pooled = new PooledHttpTransport.Builder().maxConnectionsPerRoute(threads).build();
+            run("pooled", new HttpClient.Builder().transport(pooled).build(), url, threads, requests);
+            System.out.printf(Locale.ROOT, "    created=%d reused=%d%n",
+                    pooled.getConnectionsCreated(), pooled.getConnectionsReused());
+            pooled.shutdown();
+
+            PooledHttpTransport noReuse = new PooledHttpTransport.Builder().maxConnectionsPerRoute(threads).build();
+            run("pooled, no reuse", new HttpClient.Builder().transport(noReuse).header("Connection", "close").build(),
+                    url, threads, requests);
+            noReuse.shutdown();
+        }
+    }
+
+    private static void run(String name, HttpClient client, GenericUrl url, int threads, int requests)
+            throws Exception {
+        measure(client, url, threads, requests / 4); // warm-up
+        long start = System.nanoTime();
+        long[] latencies = measure(client, url, threads, requests);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Arrays.sort(latencies);
+        System.out.printf(Locale.ROOT, "%-18s %10.0f req/s  p50=%7.3f ms  p99=%7.3f ms  max=%7.3f ms%n", name,
+                latencies.length / seconds, millis(latencies, 0.50), millis(latencies, 0.99),
+                latencies[latencies.length - 1] / 1e6);
+    }
+
+    private static double millis(long[] sorted, double percentile) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.round(percentile * sorted.length))] / 1e6;
+    }
+
+    private static long[] measure(final HttpClient client, final GenericUrl url, int threads, final int requests)
+            throws InterruptedException {
+        final long[] latencies = new long[threads * requests];
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int offset = t * requests;
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < requests; i++) {
+                            long s = System.nanoTime();
+                            HttpResponse resp = client.get(url);
+                            resp.parseAsString();
+                            latencies[offset + i] = System.nanoTime() - s;
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            worker.start();
+        }
+        done.await(10, TimeUnit.MINUTES);
+        return latencies;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Provides the default executor for asynchronous requests.<br/>
+ * A virtual-thread-per-task executor is used on JDK 21+, a bounded pool of daemon threads otherwise.
+ * The executor is shared by all the HttpClient instances which are not configured with their own one.
+ */
+final class AsyncExecutors {
+
+    /**
+     * Size of the fallback pool: requests mostly block on I/O, so use more threads than CPUs.
+     */
+    static final int POOL_SIZE = Math.max(8, Runtime.getRuntime().availableProcessors() * 4);
+
+    private AsyncExecutors() {
+    }
+
+    /**
+     * @return the shared default executor.
+     */
+    static ExecutorService defaultExecutor() {
+        return Holder.EXECUTOR;
+    }
+
+    private static ExecutorService create() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // JDK < 21 (or virtual threads disabled): fall back to platform threads
+        }
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger seq = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "http-client-async-" + seq.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static final class Holder {
+        static final ExecutorService EXECUTOR = create();
+    }
+}
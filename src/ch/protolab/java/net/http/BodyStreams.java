@@ -0,0 +1,301 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.FileContent;
+import com.google.api.client.http.InputStreamContent;
+import com.google.api.client.util.StreamingContent;
+
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * HTTP/1.1 message body framing streams used by {@link PooledHttpTransport}.<br/>
+ * The input streams never close the underlying connection stream: they return -1 once the message body is complete,
+ * leaving the connection positioned at the start of the next message.
+ */
+final class BodyStreams {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    private BodyStreams() {
+    }
+
+    /**
+     * Writes request content. The content classes of the library copy their input stream through a buffer allocated
+     * on every write; theirs is copied through a {@link BufferPool} buffer instead.
+     *
+     * @param content request content.
+     * @param out     stream to write to.
+     * @throws IOException if reading the content or writing fails.
+     */
+    static void writeContent(StreamingContent content, OutputStream out) throws IOException {
+        Class<?> type = content.getClass();
+        if (type != ByteArrayContent.class && type != InputStreamContent.class && type != FileContent.class) {
+            content.writeTo(out);
+            return;
+        }
+        AbstractInputStreamContent streamContent = (AbstractInputStreamContent) content;
+        InputStream in = streamContent.getInputStream();
+        ByteBuffer buf = BufferPool.DEFAULT.acquire();
+        try {
+            byte[] bytes = buf.array();
+            for (int n; (n = in.read(bytes, 0, bytes.length)) != -1; )
+                out.write(bytes, 0, n);
+            out.flush();
+        } finally {
+            BufferPool.DEFAULT.release(buf);
+            if (streamContent.getCloseInputStream())
+                in.close();
+        }
+    }
+
+    /**
+     * Body delimited by {@code Content-Length}.
+     */
+    static final class FixedLengthInputStream extends InputStream {
+
+        private final InputStream in;
+        private long remaining;
+
+        FixedLengthInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0)
+                return -1;
+            int b = in.read();
+            if (b == -1)
+                throw new EOFException("Connection closed before the end of the response body");
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            if (remaining == 0)
+                return -1;
+            if (len == 0)
+                return 0;
+            int n = in.read(buf, off, (int) Math.min(len, remaining));
+            if (n == -1)
+                throw new EOFException("Connection closed before the end of the response body");
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+    }
+
+    /**
+     * Body sent with {@code Transfer-Encoding: chunked}. Trailers are read and discarded.
+     */
+    static final class ChunkedInputStream extends InputStream {
+
+        private final HttpConnection conn;
+        private long chunkRemaining;
+        private boolean started;
+        private boolean eof;
+
+        ChunkedInputStream(HttpConnection conn) {
+            this.conn = conn;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk())
+                return -1;
+            int b = conn.in.read();
+            if (b == -1)
+                throw new EOFException("Connection closed in the middle of a chunk");
+            chunkRemaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!nextChunk())
+                return -1;
+            int n = conn.in.read(buf, off, (int) Math.min(len, chunkRemaining));
+            if (n == -1)
+                throw new EOFException("Connection closed in the middle of a chunk");
+            chunkRemaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return eof ? 0 : (int) Math.min(conn.in.available(), chunkRemaining);
+        }
+
+        /**
+         * Positions the stream on a chunk with data remaining.
+         *
+         * @return {@code false} once the last chunk and the trailers have been consumed.
+         */
+        private boolean nextChunk() throws IOException {
+            if (eof)
+                return false;
+            if (chunkRemaining > 0)
+                return true;
+            if (started)
+                conn.skipLine(); // CRLF after the chunk data
+            started = true;
+
+            chunkRemaining = conn.readChunkSize();
+            if (chunkRemaining == 0) {
+                // skip trailers
+                while (conn.skipLine() > 0) {
+                    // ignored
+                }
+                eof = true;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Body delimited by the end of the connection.
+     */
+    static final class UntilCloseInputStream extends InputStream {
+
+        private final InputStream in;
+
+        UntilCloseInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            return in.read(buf, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in.available();
+        }
+    }
+
+    /**
+     * Writes a request body of unknown length with {@code Transfer-Encoding: chunked}, one chunk per filled
+     * {@link BufferPool} buffer. {@link #close()} writes the last chunk but leaves the underlying stream open.
+     */
+    static final class ChunkedOutputStream extends FilterOutputStream {
+
+        private final byte[] sizeLine = new byte[18];
+        private ByteBuffer buffer = BufferPool.DEFAULT.acquire();
+
+        ChunkedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (buffer == null)
+                throw new IOException("Chunked stream has been finished");
+            if (!buffer.hasRemaining())
+                flushChunk();
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) throws IOException {
+            if (buffer == null)
+                throw new IOException("Chunked stream has been finished");
+            if (len > buffer.remaining()) {
+                flushChunk();
+                if (len >= buffer.capacity()) {
+                    writeChunk(buf, off, len);
+                    return;
+                }
+            }
+            buffer.put(buf, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (buffer != null) {
+                flushChunk();
+                BufferPool.DEFAULT.release(buffer);
+                buffer = null;
+                out.write(LAST_CHUNK);
+            }
+        }
+
+        private void flushChunk() throws IOException {
+            if (buffer.position() > 0) {
+                writeChunk(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        }
+
+        private void writeChunk(byte[] buf, int off, int len) throws IOException {
+            int pos = sizeLine.length - 2;
+            sizeLine[pos] = '\r';
+            sizeLine[pos + 1] = '\n';
+            int size = len;
+            do {
+                sizeLine[--pos] = (byte) Character.forDigit(size & 0xF, 16);
+                size >>>= 4;
+            } while (size > 0);
+            out.write(sizeLine, pos, sizeLine.length - pos);
+            out.write(buf, off, len);
+            out.write(CRLF);
+        }
+    }
+
+    /**
+     * Shields the connection stream from {@code close()} calls made by request content writers.
+     */
+    static final class NonClosingOutputStream extends FilterOutputStream {
+
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) throws IOException {
+            out.write(buf, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+}
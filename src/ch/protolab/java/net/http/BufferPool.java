@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of equally sized heap buffers, so that streaming a body does not allocate a new buffer per call.
+ * Buffers are array-backed, which lets them be filled straight from an {@code InputStream}.
+ */
+final class BufferPool {
+
+    /**
+     * 64 KiB buffers, at most 64 of them kept idle.
+     */
+    static final BufferPool DEFAULT = new BufferPool(64 * 1024, 64);
+
+    private final int bufferSize;
+    private final int maxIdle;
+    private final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    BufferPool(int bufferSize, int maxIdle) {
+        this.bufferSize = bufferSize;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * @return a cleared buffer, to be given back with {@link #release(ByteBuffer)}.
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buf = idle.poll();
+        if (buf == null)
+            return ByteBuffer.allocate(bufferSize);
+        idleCount.decrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Returns a buffer to the pool; it must not be used afterwards.
+     *
+     * @param buf a buffer obtained from {@link #acquire()}.
+     */
+    void release(ByteBuffer buf) {
+        if (buf.capacity() != bufferSize)
+            return;
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        idle.offer(buf);
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+}
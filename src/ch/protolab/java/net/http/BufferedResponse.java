@@ -0,0 +1,303 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An HTTP response whose body has been read completely, which can be handed out any number of times as a regular
+ * {@link HttpResponse} by {@link #replay(String, GenericUrl, HttpHeaders)}.<br/>
+ * The body is kept decoded, so {@code Content-Encoding} and the message framing headers are not retained, except for
+ * responses to HEAD requests which have no body to decode.
+ */
+final class BufferedResponse {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    final int status;
+    final String reason;
+    private final List<String> names;
+    private final List<String> values;
+    private final ByteBuffer body;
+
+    BufferedResponse(int status, String reason, List<String> names, List<String> values, ByteBuffer body) {
+        this.status = status;
+        this.reason = reason != null ? reason : "";
+        this.names = names;
+        this.values = values;
+        this.body = body.asReadOnlyBuffer();
+    }
+
+    /**
+     * Reads the whole response and disconnects it.
+     *
+     * @param resp a response.
+     * @return a {@code BufferedResponse} instance.
+     * @throws IOException if the body cannot be read.
+     */
+    static BufferedResponse read(HttpResponse resp) throws IOException {
+        try {
+            ByteBuffer body = EMPTY;
+            InputStream in = resp.getContent();
+            if (in != null) {
+                try {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream(
+                            resp.getHeaders().getContentLength() != null
+                                    ? (int) Math.min(resp.getHeaders().getContentLength(), 1 << 20) : 8192);
+                    ByteBuffer buf = BufferPool.DEFAULT.acquire();
+                    try {
+                        int n;
+                        while ((n = in.read(buf.array(), 0, buf.capacity())) != -1)
+                            out.write(buf.array(), 0, n);
+                    } finally {
+                        BufferPool.DEFAULT.release(buf);
+                    }
+                    body = ByteBuffer.wrap(out.toByteArray());
+                } finally {
+                    in.close();
+                }
+            }
+            boolean head = "HEAD".equals(resp.getRequest().getRequestMethod());
+            return new BufferedResponse(resp.getStatusCode(), resp.getStatusMessage(), resp.getHeaders(), !head, body);
+        } finally {
+            resp.disconnect();
+        }
+    }
+
+    BufferedResponse(int status, String reason, HttpHeaders headers, boolean decoded, ByteBuffer body) {
+        this(status, reason, new ArrayList<String>(), new ArrayList<String>(), body);
+        for (Map.Entry<String, Object> e : headers.entrySet()) {
+            String name = e.getKey();
+            if (decoded && (name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Content-Encoding")
+                            || name.equalsIgnoreCase("Transfer-Encoding")))
+                continue;
+            if (e.getValue() instanceof Collection) {
+                for (Object v : (Collection<?>) e.getValue()) {
+                    names.add(name);
+                    values.add(String.valueOf(v));
+                }
+            } else {
+                names.add(name);
+                values.add(String.valueOf(e.getValue()));
+            }
+        }
+    }
+
+    /**
+     * @return the first value of the header, or {@code null}.
+     */
+    String header(String name) {
+        for (int i = 0; i < names.size(); i++)
+            if (names.get(i).equalsIgnoreCase(name))
+                return values.get(i);
+        return null;
+    }
+
+    /**
+     * @return a read-only view of the body.
+     */
+    ByteBuffer body() {
+        return body.duplicate();
+    }
+
+    int bodyLength() {
+        return body.remaining();
+    }
+
+    /**
+     * @param replaced headers replacing the ones with the same names.
+     * @return a copy with the given headers replaced; the body is shared.
+     */
+    BufferedResponse withHeaders(Map<String, String> replaced) {
+        List<String> n = new ArrayList<>(names.size() + replaced.size());
+        List<String> v = new ArrayList<>(names.size() + replaced.size());
+        outer:
+        for (int i = 0; i < names.size(); i++) {
+            for (String r : replaced.keySet())
+                if (r.equalsIgnoreCase(names.get(i)))
+                    continue outer;
+            n.add(names.get(i));
+            v.add(values.get(i));
+        }
+        for (Map.Entry<String, String> e : replaced.entrySet()) {
+            if (e.getValue() == null)
+                continue;
+            n.add(e.getKey());
+            v.add(e.getValue());
+        }
+        return new BufferedResponse(status, reason, n, v, body);
+    }
+
+    /**
+     * @return a copy whose body is the given buffer; status and headers are shared.
+     */
+    BufferedResponse withBody(ByteBuffer newBody) {
+        return new BufferedResponse(status, reason, names, values, newBody);
+    }
+
+    /**
+     * Creates a regular response backed by this buffered one.
+     *
+     * @param method         request method.
+     * @param url            request URL.
+     * @param requestHeaders request headers, reported by {@code HttpResponse.getRequest()}.
+     * @return an HttpResponse instance; disconnecting it is not required.
+     * @throws IOException never in practice, declared by the underlying API.
+     */
+    HttpResponse replay(String method, GenericUrl url, HttpHeaders requestHeaders) throws IOException {
+        HttpRequest req = new ReplayTransport().createRequestFactory().buildRequest(method, url, null);
+        req.setHeaders(requestHeaders);
+        req.setThrowExceptionOnExecuteError(false);
+        req.setFollowRedirects(false);
+        req.setSuppressUserAgentSuffix(true);
+        req.setCurlLoggingEnabled(false);
+        req.setLoggingEnabled(false);
+        return req.execute();
+    }
+
+    private final class ReplayTransport extends HttpTransport {
+
+        @Override
+        protected LowLevelHttpRequest buildRequest(final String method, String url) {
+            return new LowLevelHttpRequest() {
+                @Override
+                public void addHeader(String name, String value) {
+                    // the request is not sent anywhere
+                }
+
+                @Override
+                public LowLevelHttpResponse execute() {
+                    return new ReplayResponse("HEAD".equals(method));
+                }
+            };
+        }
+    }
+
+    private final class ReplayResponse extends LowLevelHttpResponse {
+
+        private final boolean head;
+
+        ReplayResponse(boolean head) {
+            this.head = head;
+        }
+
+        @Override
+        public InputStream getContent() {
+            return head ? null : new ByteBufferInputStream(body.duplicate());
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return null;
+        }
+
+        @Override
+        public long getContentLength() {
+            return head ? 0 : body.remaining();
+        }
+
+        @Override
+        public String getContentType() {
+            return header("Content-Type");
+        }
+
+        @Override
+        public String getStatusLine() {
+            return "HTTP/1.1 " + status + (reason.isEmpty() ? "" : " " + reason);
+        }
+
+        @Override
+        public int getStatusCode() {
+            return status;
+        }
+
+        @Override
+        public String getReasonPhrase() {
+            return reason;
+        }
+
+        @Override
+        public int getHeaderCount() {
+            return names.size();
+        }
+
+        @Override
+        public String getHeaderName(int index) {
+            return names.get(index);
+        }
+
+        @Override
+        public String getHeaderValue(int index) {
+            return values.get(index);
+        }
+    }
+
+    /**
+     * Reads a byte buffer, heap or memory-mapped, without copying it.
+     */
+    static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buf.hasRemaining())
+                return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int k = (int) Math.max(0, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + k);
+            return k;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+}
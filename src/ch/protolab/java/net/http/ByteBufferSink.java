@@ -0,0 +1,36 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives a response body chunk by chunk, see {@link HttpClient#download(com.google.api.client.http.GenericUrl,
+ * com.google.api.client.http.HttpHeaders, ByteBufferSink)}.
+ */
+public interface ByteBufferSink {
+
+    /**
+     * Called for every chunk of the body, in order.
+     *
+     * @param chunk the bytes between the buffer's position and limit. The buffer belongs to a pool and is reused as
+     *              soon as this method returns, so its content must be consumed or copied, not retained.
+     * @throws IOException to abort the download; the connection is then discarded.
+     */
+    void write(ByteBuffer chunk) throws IOException;
+}
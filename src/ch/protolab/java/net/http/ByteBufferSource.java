@@ -0,0 +1,36 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Produces a request body chunk by chunk, as it is sent, see {@link UploadContent#source(ByteBufferSource, String)}.
+ */
+public interface ByteBufferSource {
+
+    /**
+     * Called until it returns {@code false}, every time the previous chunk has been written to the connection.
+     *
+     * @param buffer an empty buffer, to be filled with the next bytes of the body from its position on. The buffer
+     *               belongs to a pool and is reused as soon as this method returns.
+     * @return {@code false} once the body is complete; the bytes put in the buffer by the last call are sent.
+     * @throws IOException to abort the upload; the connection is then discarded.
+     */
+    boolean fill(ByteBuffer buffer) throws IOException;
+}
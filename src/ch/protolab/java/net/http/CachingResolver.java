@@ -0,0 +1,303 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A host resolver caching the addresses resolved by another one, {@link HostResolver#SYSTEM} by default, with its own
+ * time to live instead of the JVM-wide one.<br/>
+ * An entry used after {@code refreshAhead} of its time to live is resolved again in the background while the cached
+ * addresses keep being returned, so that hosts in use never wait for a lookup. Failed lookups are cached for
+ * {@code negativeTtl}. The cache is lock-free and may be shared by several transports.<br/>
+ * Sample usage:<br/>
+ * <code>
+ * CachingResolver resolver = new CachingResolver.Builder().ttl(30, TimeUnit.SECONDS).build();<br/>
+ * PooledHttpTransport transport = new PooledHttpTransport.Builder().resolver(resolver).build();<br/>
+ * </code>
+ */
+public final class CachingResolver implements HostResolver {
+
+    private static final ThreadPoolExecutor REFRESHER;
+
+    static {
+        REFRESHER = new ThreadPoolExecutor(2, 2, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(1024),
+                new ThreadFactory() {
+                    private final AtomicInteger seq = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "http-resolver-refresh-" + seq.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        REFRESHER.allowCoreThreadTimeOut(true);
+    }
+
+    private final HostResolver delegate;
+    private final long ttlNanos;
+    private final long refreshNanos;
+    private final long negativeTtlNanos;
+    private final int maxEntries;
+    private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+
+    CachingResolver(Builder b) {
+        this.delegate = b.delegate;
+        this.ttlNanos = b.ttlNanos;
+        this.refreshNanos = (long) (b.ttlNanos * b.refreshAhead);
+        this.negativeTtlNanos = b.negativeTtlNanos;
+        this.maxEntries = b.maxEntries;
+    }
+
+    @Override
+    public List<InetAddress> resolve(String host) throws UnknownHostException {
+        Entry e = cache.get(host);
+        long now = System.nanoTime();
+        if (e != null && now - e.expiresNanos < 0) {
+            hits.increment();
+            if (e.addresses == null)
+                throw new UnknownHostException(host + " (cached)");
+            if (now - e.refreshNanos >= 0 && e.refreshing.compareAndSet(false, true))
+                refresh(host);
+            return e.addresses;
+        }
+        misses.increment();
+        return load(host);
+    }
+
+    /**
+     * @return number of lookups answered from the cache, failed ones included.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of lookups which waited for the delegate resolver.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of entries resolved again in the background.
+     */
+    public long getRefreshCount() {
+        return refreshes.sum();
+    }
+
+    /**
+     * @return number of cached entries, failed lookups and expired entries included.
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    private List<InetAddress> load(String host) throws UnknownHostException {
+        List<InetAddress> addresses;
+        try {
+            addresses = lookup(host);
+        } catch (UnknownHostException e) {
+            if (negativeTtlNanos > 0)
+                put(host, new Entry(null, System.nanoTime() + negativeTtlNanos, Long.MAX_VALUE));
+            throw e;
+        }
+        store(host, addresses);
+        return addresses;
+    }
+
+    private List<InetAddress> lookup(String host) throws UnknownHostException {
+        List<InetAddress> resolved = delegate.resolve(host);
+        if (resolved == null || resolved.isEmpty())
+            throw new UnknownHostException(host);
+        return Collections.unmodifiableList(new ArrayList<>(resolved));
+    }
+
+    private void store(String host, List<InetAddress> addresses) {
+        long now = System.nanoTime();
+        put(host, new Entry(addresses, now + ttlNanos, now + refreshNanos));
+    }
+
+    private void refresh(final String host) {
+        try {
+            REFRESHER.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        store(host, lookup(host));
+                        refreshes.increment();
+                    } catch (UnknownHostException | RuntimeException e) {
+                        // a failed refresh is not cached over addresses still valid: they expire as usual
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // too many refreshes pending: the entry expires as usual
+        }
+    }
+
+    private void put(String host, Entry entry) {
+        if (cache.size() >= maxEntries && !cache.containsKey(host))
+            evict();
+        cache.put(host, entry);
+    }
+
+    /**
+     * Removes the expired entries, or an arbitrary one if none is expired.
+     */
+    private void evict() {
+        long now = System.nanoTime();
+        boolean removed = false;
+        for (Iterator<Entry> it = cache.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().expiresNanos >= 0) {
+                it.remove();
+                removed = true;
+            }
+        }
+        if (!removed) {
+            Iterator<String> it = cache.keySet().iterator();
+            if (it.hasNext())
+                cache.remove(it.next());
+        }
+    }
+
+    /**
+     * Addresses of a host, or {@code null} for a failed lookup.
+     */
+    private static final class Entry {
+
+        final List<InetAddress> addresses;
+        final long expiresNanos;
+        final long refreshNanos;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(List<InetAddress> addresses, long expiresNanos, long refreshNanos) {
+            this.addresses = addresses;
+            this.expiresNanos = expiresNanos;
+            this.refreshNanos = refreshNanos;
+        }
+    }
+
+    /**
+     * Constructs a CachingResolver instance.
+     */
+    public static final class Builder {
+
+        HostResolver delegate = HostResolver.SYSTEM;
+        long ttlNanos = TimeUnit.SECONDS.toNanos(60);
+        double refreshAhead = 0.75;
+        long negativeTtlNanos = TimeUnit.SECONDS.toNanos(5);
+        int maxEntries = 10000;
+
+        /**
+         * Sets the resolver whose lookups are cached. Default is {@link HostResolver#SYSTEM}.
+         *
+         * @param resolver host resolver.
+         * @return a {@code Builder} instance.
+         */
+        public Builder delegate(HostResolver resolver) {
+            this.delegate = requireNonNull(resolver, "Resolver must not be null!");
+            return this;
+        }
+
+        /**
+         * Sets how long resolved addresses are cached. Default is 60 seconds.
+         *
+         * @param value time to live.
+         * @param unit  time interval unit.
+         * @return a {@code Builder} instance.
+         */
+        public Builder ttl(long value, TimeUnit unit) {
+            if (value < 1)
+                throw new IllegalArgumentException("TTL must be positive!");
+            this.ttlNanos = unit.toNanos(value);
+            return this;
+        }
+
+        /**
+         * Sets the fraction of the time to live after which an entry in use is resolved again in the background.
+         * Default is 0.75; 1 disables the background refresh.
+         *
+         * @param ratio a fraction between 0, exclusive, and 1, inclusive.
+         * @return a {@code Builder} instance.
+         */
+        public Builder refreshAhead(double ratio) {
+            if (!(ratio > 0 && ratio <= 1))
+                throw new IllegalArgumentException("Refresh ratio must be between 0 and 1!");
+            this.refreshAhead = ratio;
+            return this;
+        }
+
+        /**
+         * Sets how long failed lookups are cached. Default is 5 seconds; 0 disables negative caching.
+         *
+         * @param value negative time to live.
+         * @param unit  time interval unit.
+         * @return a {@code Builder} instance.
+         */
+        public Builder negativeTtl(long value, TimeUnit unit) {
+            if (value < 0)
+                throw new IllegalArgumentException("Negative TTL must not be negative!");
+            this.negativeTtlNanos = unit.toNanos(value);
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of cached hosts. Default is 10000.
+         *
+         * @param max maximum number of entries.
+         * @return a {@code Builder} instance.
+         */
+        public Builder maxEntries(int max) {
+            if (max < 1)
+                throw new IllegalArgumentException("Max entries must be positive!");
+            this.maxEntries = max;
+            return this;
+        }
+
+        /**
+         * Constructs {@code CachingResolver} object.
+         *
+         * @return a {@code CachingResolver} instance.
+         */
+        public CachingResolver build() {
+            return new CachingResolver(this);
+        }
+    }
+}
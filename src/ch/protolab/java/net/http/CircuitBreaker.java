@@ -0,0 +1,211 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A circuit breaker per host ({@code host:port}), used by {@link HttpClient} to fail fast on an upstream which keeps
+ * failing instead of tying threads up until their read timeout.<br/>
+ * A host's circuit opens after {@code failureThreshold} consecutive failures (I/O errors and 5xx responses); requests
+ * to it are then rejected with a {@link RequestRejectedException} for {@code openDuration}. After that, a single probe
+ * request is let through: its success closes the circuit, its failure opens it again.<br/>
+ * The state of a circuit is an immutable object swapped by compare-and-set, so that no lock is taken on the request
+ * path. The breaker may be shared by several clients.
+ */
+public final class CircuitBreaker {
+
+    /**
+     * State of a host's circuit.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+
+    CircuitBreaker(Builder b) {
+        this.failureThreshold = b.failureThreshold;
+        this.openNanos = b.openNanos;
+    }
+
+    /**
+     * @param host {@code host:port}, e.g. {@code example.com:443}.
+     * @return the state of the host's circuit, {@link State#CLOSED} for a host never contacted.
+     */
+    public State getState(String host) {
+        Circuit circuit = circuits.get(host);
+        return circuit != null ? circuit.state.get().state : State.CLOSED;
+    }
+
+    /**
+     * @return number of requests rejected because their host's circuit was open.
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Lets a request to the host through, or rejects it.
+     *
+     * @param host {@code host:port}.
+     * @return a token to be passed to {@link #record(Token, boolean)} once the outcome of the request is known.
+     * @throws RequestRejectedException if the circuit is open.
+     */
+    Token acquire(String host) throws RequestRejectedException {
+        Circuit circuit = circuits.get(host);
+        if (circuit == null) {
+            circuit = new Circuit();
+            Circuit existing = circuits.putIfAbsent(host, circuit);
+            if (existing != null)
+                circuit = existing;
+        }
+        while (true) {
+            Snapshot s = circuit.state.get();
+            if (s.state == State.CLOSED)
+                return new Token(circuit, s);
+            long now = System.nanoTime();
+            // an open circuit lets a probe through once the delay elapsed, a half-open one if the probe got lost
+            if (now - s.since < openNanos) {
+                rejected.increment();
+                throw new RequestRejectedException(RequestRejectedException.Reason.CIRCUIT_OPEN, host);
+            }
+            Snapshot probe = new Snapshot(State.HALF_OPEN, 0, now);
+            if (circuit.state.compareAndSet(s, probe))
+                return new Token(circuit, probe);
+        }
+    }
+
+    /**
+     * Records the outcome of a request let through by {@link #acquire(String)}.
+     *
+     * @param token   the token returned by {@link #acquire(String)}.
+     * @param success {@code false} for an I/O error or a 5xx response.
+     */
+    void record(Token token, boolean success) {
+        AtomicReference<Snapshot> state = token.circuit.state;
+        if (token.snapshot.state == State.HALF_OPEN) {
+            Snapshot next = success ? Snapshot.CLOSED : new Snapshot(State.OPEN, 0, System.nanoTime());
+            state.compareAndSet(token.snapshot, next);
+            return;
+        }
+        while (true) {
+            Snapshot s = state.get();
+            // outcomes of requests let through before the circuit opened do not count
+            if (s.state != State.CLOSED || (success && s.failures == 0))
+                return;
+            Snapshot next;
+            if (success)
+                next = Snapshot.CLOSED;
+            else if (s.failures + 1 >= failureThreshold)
+                next = new Snapshot(State.OPEN, 0, System.nanoTime());
+            else
+                next = new Snapshot(State.CLOSED, s.failures + 1, s.since);
+            if (state.compareAndSet(s, next))
+                return;
+        }
+    }
+
+    /**
+     * A host's circuit.
+     */
+    private static final class Circuit {
+
+        final AtomicReference<Snapshot> state = new AtomicReference<>(Snapshot.CLOSED);
+    }
+
+    private static final class Snapshot {
+
+        static final Snapshot CLOSED = new Snapshot(State.CLOSED, 0, 0);
+
+        final State state;
+        final int failures;
+        final long since;
+
+        Snapshot(State state, int failures, long since) {
+            this.state = state;
+            this.failures = failures;
+            this.since = since;
+        }
+    }
+
+    /**
+     * Permission to send a request, bound to the circuit state it was given in.
+     */
+    static final class Token {
+
+        private final Circuit circuit;
+        private final Snapshot snapshot;
+
+        Token(Circuit circuit, Snapshot snapshot) {
+            this.circuit = circuit;
+            this.snapshot = snapshot;
+        }
+    }
+
+    /**
+     * Constructs a CircuitBreaker instance.
+     */
+    public static final class Builder {
+
+        int failureThreshold = 5;
+        long openNanos = TimeUnit.SECONDS.toNanos(30);
+
+        /**
+         * Sets the number of consecutive failures opening a host's circuit. Default is 5.
+         *
+         * @param n number of failures.
+         * @return a {@code Builder} instance.
+         */
+        public Builder failureThreshold(int n) {
+            if (n < 1)
+                throw new IllegalArgumentException("Failure threshold must be positive!");
+            this.failureThreshold = n;
+            return this;
+        }
+
+        /**
+         * Sets how long an open circuit rejects requests before letting a probe through. Default is 30 seconds.
+         *
+         * @param value open duration.
+         * @param unit  time interval unit.
+         * @return a {@code Builder} instance.
+         */
+        public Builder openDuration(long value, TimeUnit unit) {
+            if (value < 1)
+                throw new IllegalArgumentException("Open duration must be positive!");
+            this.openNanos = unit.toNanos(value);
+            return this;
+        }
+
+        /**
+         * Constructs {@code CircuitBreaker} object.
+         *
+         * @return a {@code CircuitBreaker} instance.
+         */
+        public CircuitBreaker build() {
+            return new CircuitBreaker(this);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.HttpHeaders;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the headers common for all the requests sent by an HttpClient instance.<br/>
+ * The headers are frozen into flat name/value tables when the client is built, so every request gets its own
+ * {@code HttpHeaders} instance populated straight from the tables instead of sharing (or cloning) a mutable map.<br/>
+ * The request headers cannot be a read-only view layered over the tables: the library adjusts them while executing
+ * the request, e.g. appends its own User-Agent, and callers may clone or change them. Every request therefore gets the
+ * common values set into a map of its own, the list values copied.
+ */
+final class CommonHeaders {
+
+    private final String[] names;
+    private final Object[] values;
+    private final boolean userAgent;
+
+    private CommonHeaders(String[] names, Object[] values, boolean userAgent) {
+        this.names = names;
+        this.values = values;
+        this.userAgent = userAgent;
+    }
+
+    /**
+     * Takes a snapshot of the given headers. Subsequent changes of {@code headers} are not reflected.
+     *
+     * @param headers headers to be frozen.
+     * @return a {@code CommonHeaders} instance.
+     */
+    static CommonHeaders freeze(HttpHeaders headers) {
+        int n = headers.size();
+        String[] names = new String[n];
+        Object[] values = new Object[n];
+        int i = 0;
+        for (Map.Entry<String, Object> e : headers.entrySet()) {
+            names[i] = e.getKey();
+            values[i] = immutable(e.getValue());
+            i++;
+        }
+        return new CommonHeaders(names, values, headers.getUserAgent() != null);
+    }
+
+    private static Object immutable(Object value) {
+        if (value instanceof Collection)
+            return Collections.unmodifiableList(new ArrayList<>((Collection<?>) value));
+        return value;
+    }
+
+    /**
+     * @return {@code true} if a User-Agent header is among the common headers.
+     */
+    boolean hasUserAgent() {
+        return userAgent;
+    }
+
+    /**
+     * @return number of the common headers.
+     */
+    int size() {
+        return names.length;
+    }
+
+    /**
+     * Encodes the header lines once, so that a {@link PooledHttpTransport} writes them without encoding them on every
+     * request.
+     *
+     * @param encoded table of encoded header lines.
+     */
+    void encodeInto(EncodedHeaders encoded) {
+        for (int i = 0; i < names.length; i++) {
+            if (values[i] instanceof Collection) {
+                for (Object v : (Collection<?>) values[i])
+                    if (v != null)
+                        encoded.add(names[i], v.toString());
+            } else if (values[i] != null) {
+                encoded.add(names[i], values[i].toString());
+            }
+        }
+    }
+
+    /**
+     * Creates the headers of a single request.
+     *
+     * @param headers per-request headers overriding the common ones. Can be {@code null}.
+     * @return a new {@code HttpHeaders} instance owned by the request.
+     */
+    HttpHeaders merge(HttpHeaders headers) {
+        HttpHeaders result = new HttpHeaders();
+        for (int i = 0; i < names.length; i++) {
+            Object value = values[i];
+            // the request owns its lists, those of the table are shared and unmodifiable
+            result.set(names[i], value instanceof Collection ? new ArrayList<>((Collection<?>) value) : value);
+        }
+        if (headers != null)
+            result.putAll(headers);
+        return result;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.util.StreamingContent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decorates a transport to decode GZIP and DEFLATE response bodies and to compress request bodies, with pooled
+ * inflaters and deflaters (see {@link CompressionStreams}).<br/>
+ * A decoded response looks like an uncompressed one: its {@code Content-Encoding} and {@code Content-Length} headers are
+ * hidden, so {@code HttpResponse} does not decode it again.
+ */
+final class CompressingTransport extends TransportDecorator {
+
+    private final ContentCoding requestCoding;
+    private final long minRequestLength;
+
+    /**
+     * @param requestCoding    coding of the request bodies, {@code null} to send them as is.
+     * @param minRequestLength minimum length of a request body to be compressed.
+     */
+    CompressingTransport(HttpTransport delegate, ContentCoding requestCoding, long minRequestLength) {
+        super(delegate);
+        this.requestCoding = requestCoding;
+        this.minRequestLength = minRequestLength;
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+        return new CompressingRequest(buildDelegateRequest(method, url), !"HEAD".equals(method));
+    }
+
+    private final class CompressingRequest extends ForwardingRequest {
+
+        private final boolean decode;
+
+        CompressingRequest(LowLevelHttpRequest delegate, boolean decode) {
+            super(delegate);
+            this.decode = decode;
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            StreamingContent content = getStreamingContent();
+            long length = getContentLength();
+            delegate.setContentType(getContentType());
+            // bodies of unknown length are sent as is: they may well be tiny
+            if (requestCoding != null && content != null && getContentEncoding() == null
+                && length >= minRequestLength) {
+                delegate.setContentEncoding(requestCoding.getName());
+                delegate.setContentLength(-1);
+                delegate.setStreamingContent(new CompressionStreams.DeflatedContent(content, requestCoding));
+            } else {
+                delegate.setContentEncoding(getContentEncoding());
+                delegate.setContentLength(length);
+                if (content != null)
+                    delegate.setStreamingContent(content);
+            }
+
+            LowLevelHttpResponse resp = delegate.execute();
+            ContentCoding coding = decode ? ContentCoding.forName(resp.getContentEncoding()) : null;
+            return coding != null ? new DecodedResponse(resp, coding) : resp;
+        }
+    }
+
+    private static final class DecodedResponse extends ForwardingResponse {
+
+        private final ContentCoding coding;
+        // indexes of the headers left visible
+        private final List<Integer> headers = new ArrayList<>();
+
+        DecodedResponse(LowLevelHttpResponse delegate, ContentCoding coding) throws IOException {
+            super(delegate);
+            this.coding = coding;
+            for (int i = 0, n = delegate.getHeaderCount(); i < n; i++) {
+                String name = delegate.getHeaderName(i);
+                if (!"Content-Encoding".equalsIgnoreCase(name) && !"Content-Length".equalsIgnoreCase(name))
+                    headers.add(i);
+            }
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            InputStream in = delegate.getContent();
+            return in != null ? new CompressionStreams.InflatingInputStream(in, coding) : null;
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return null;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public int getHeaderCount() {
+            return headers.size();
+        }
+
+        @Override
+        public String getHeaderName(int index) throws IOException {
+            return delegate.getHeaderName(headers.get(index));
+        }
+
+        @Override
+        public String getHeaderValue(int index) throws IOException {
+            return delegate.getHeaderValue(headers.get(index));
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.util.StreamingContent;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * GZIP and DEFLATE streams used by {@link CompressingTransport}. Unlike {@code java.util.zip.GZIPInputStream} and
+ * {@code GZIPOutputStream}, they take their {@link Inflater}/{@link Deflater} from {@link ZlibPool} and their buffer from
+ * {@link BufferPool}.
+ */
+final class CompressionStreams {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private static final byte[] GZIP_HEADER = {
+            0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    private CompressionStreams() {
+    }
+
+    /**
+     * Decodes a GZIP (members may be concatenated) or DEFLATE (ZLIB-wrapped or raw) body. An empty body decodes to an
+     * empty stream. The inflater and the buffer go back to their pools at the end of the body, or on close.
+     */
+    static final class InflatingInputStream extends InputStream {
+
+        private final InputStream in;
+        private final boolean gzip;
+        private final CRC32 crc = new CRC32();
+        private final byte[] single = new byte[1];
+        private ByteBuffer buffer;
+        private byte[] buf;
+        private int pos;
+        private int limit;
+        private Inflater inf;
+        private boolean nowrap;
+        private boolean inMember;
+        private boolean done;
+        private boolean closed;
+
+        InflatingInputStream(InputStream in, ContentCoding coding) {
+            this.in = in;
+            this.gzip = coding == ContentCoding.GZIP;
+            this.buffer = BufferPool.DEFAULT.acquire();
+            this.buf = buffer.array();
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed)
+                throw new IOException("Stream closed");
+            if (len == 0)
+                return 0;
+            while (!done) {
+                if (!inMember) {
+                    if (!startMember()) {
+                        finish();
+                        break;
+                    }
+                }
+                int n;
+                try {
+                    n = inf.inflate(b, off, len);
+                } catch (DataFormatException e) {
+                    throw new ZipException(e.getMessage());
+                }
+                if (n > 0) {
+                    if (gzip)
+                        crc.update(b, off, n);
+                    return n;
+                }
+                if (inf.finished()) {
+                    endMember();
+                } else if (inf.needsDictionary()) {
+                    throw new ZipException("DEFLATE preset dictionaries are not supported");
+                } else if (inf.needsInput()) {
+                    if (!fill())
+                        throw new EOFException("Unexpected end of compressed response body");
+                    inf.setInput(buf, pos, limit - pos);
+                    pos = limit;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            finish();
+            in.close();
+        }
+
+        /**
+         * Reads the header of the next member.
+         *
+         * @return {@code false} at the end of the body.
+         */
+        private boolean startMember() throws IOException {
+            if (!ensure(1))
+                return false;
+            if (gzip) {
+                if (readShort() != GZIP_MAGIC)
+                    throw new ZipException("Not in GZIP format");
+                if (readByte() != Deflater.DEFLATED)
+                    throw new ZipException("Unsupported GZIP compression method");
+                int flags = readByte();
+                skip(6); // modification time, extra flags, operating system
+                if ((flags & FEXTRA) != 0)
+                    skip(readShort());
+                if ((flags & FNAME) != 0)
+                    skipString();
+                if ((flags & FCOMMENT) != 0)
+                    skipString();
+                if ((flags & FHCRC) != 0)
+                    skip(2);
+                crc.reset();
+                acquire(true);
+            } else {
+                // a ZLIB header is a multiple of 31 with the DEFLATE method in its low nibble
+                boolean zlib = ensure(2) && (buf[pos] & 0x0f) == Deflater.DEFLATED
+                               && (((buf[pos] & 0xff) << 8) | (buf[pos + 1] & 0xff)) % 31 == 0;
+                acquire(!zlib);
+            }
+            inf.setInput(buf, pos, limit - pos);
+            pos = limit;
+            inMember = true;
+            return true;
+        }
+
+        /**
+         * Verifies the GZIP trailer of the member just inflated.
+         */
+        private void endMember() throws IOException {
+            pos = limit - inf.getRemaining();
+            inMember = false;
+            if (!gzip) {
+                // a DEFLATE body is a single stream, anything after it is ignored
+                finish();
+                return;
+            }
+            long expectedCrc = readInt() & 0xffffffffL;
+            long expectedSize = readInt() & 0xffffffffL;
+            if (expectedCrc != crc.getValue() || expectedSize != (inf.getBytesWritten() & 0xffffffffL))
+                throw new ZipException("Corrupt GZIP trailer");
+            inf.reset();
+        }
+
+        private void acquire(boolean nowrap) {
+            if (inf != null && this.nowrap == nowrap) {
+                inf.reset();
+                return;
+            }
+            if (inf != null)
+                ZlibPool.release(inf, this.nowrap);
+            inf = ZlibPool.acquireInflater(nowrap);
+            this.nowrap = nowrap;
+        }
+
+        private void finish() {
+            done = true;
+            if (inf != null) {
+                ZlibPool.release(inf, nowrap);
+                inf = null;
+            }
+            if (buffer != null) {
+                BufferPool.DEFAULT.release(buffer);
+                buffer = null;
+                buf = null;
+            }
+        }
+
+        /**
+         * Makes at least {@code n} bytes available in the buffer, unless the body ends first.
+         */
+        private boolean ensure(int n) throws IOException {
+            if (limit - pos >= n)
+                return true;
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+            while (limit < n) {
+                int r = in.read(buf, limit, buf.length - limit);
+                if (r == -1)
+                    return false;
+                limit += r;
+            }
+            return true;
+        }
+
+        private boolean fill() throws IOException {
+            pos = 0;
+            limit = 0;
+            return ensure(1);
+        }
+
+        private int readByte() throws IOException {
+            if (!ensure(1))
+                throw new EOFException("Unexpected end of GZIP stream");
+            return buf[pos++] & 0xff;
+        }
+
+        private int readShort() throws IOException {
+            return readByte() | (readByte() << 8);
+        }
+
+        private int readInt() throws IOException {
+            return readShort() | (readShort() << 16);
+        }
+
+        private void skip(int n) throws IOException {
+            for (int i = 0; i < n; i++)
+                readByte();
+        }
+
+        private void skipString() throws IOException {
+            while (readByte() != 0) {
+                // zero-terminated
+            }
+        }
+    }
+
+    /**
+     * Request content encoded on the fly; its length is unknown, so it is sent chunked. Being an {@link HttpContent}
+     * keeps the retry support of the wrapped content visible to the transport.
+     */
+    static final class DeflatedContent implements HttpContent {
+
+        private final StreamingContent content;
+        private final boolean gzip;
+
+        DeflatedContent(StreamingContent content, ContentCoding coding) {
+            this.content = content;
+            this.gzip = coding == ContentCoding.GZIP;
+        }
+
+        @Override
+        public long getLength() {
+            return -1;
+        }
+
+        @Override
+        public String getType() {
+            return content instanceof HttpContent ? ((HttpContent) content).getType() : null;
+        }
+
+        @Override
+        public boolean retrySupported() {
+            return content instanceof HttpContent && ((HttpContent) content).retrySupported();
+        }
+
+        @Override
+        public void writeTo(final OutputStream out) throws IOException {
+            final Deflater def = ZlibPool.acquireDeflater(gzip);
+            final ByteBuffer buffer = BufferPool.DEFAULT.acquire();
+            try {
+                if (gzip)
+                    out.write(GZIP_HEADER);
+                final CRC32 crc = new CRC32();
+                content.writeTo(new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[]{(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        if (len == 0)
+                            return;
+                        crc.update(b, off, len);
+                        def.setInput(b, off, len);
+                        while (!def.needsInput())
+                            deflate(def, buffer.array(), out);
+                    }
+                });
+                def.finish();
+                while (!def.finished())
+                    deflate(def, buffer.array(), out);
+                if (gzip) {
+                    writeInt(out, crc.getValue());
+                    writeInt(out, def.getBytesRead());
+                }
+                out.flush();
+            } finally {
+                BufferPool.DEFAULT.release(buffer);
+                ZlibPool.release(def, gzip);
+            }
+        }
+
+        private static void deflate(Deflater def, byte[] buf, OutputStream out) throws IOException {
+            int n = def.deflate(buf, 0, buf.length);
+            if (n > 0)
+                out.write(buf, 0, n);
+        }
+
+        private static void writeInt(OutputStream out, long value) throws IOException {
+            out.write((int) value);
+            out.write((int) (value >> 8));
+            out.write((int) (value >> 16));
+            out.write((int) (value >> 24));
+        }
+    }
+}
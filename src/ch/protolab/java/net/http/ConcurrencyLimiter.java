@@ -0,0 +1,220 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An adaptive limit of the requests in flight per host ({@code host:port}), used by {@link HttpClient} to fail fast
+ * with a {@link RequestRejectedException} rather than queue threads behind a slow upstream.<br/>
+ * The limit follows AIMD (additive increase, multiplicative decrease): a request answered within
+ * {@code latencyThreshold} while at least half of the limit was in use raises the limit by one; a request answered
+ * slower than that, timing out, or answered 429 or 503 multiplies it by {@code backoffRatio}. A request counts as in
+ * flight until its response headers are received.<br/>
+ * All the state is updated by compare-and-set. The limiter may be shared by several clients.
+ */
+public final class ConcurrencyLimiter {
+
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdNanos;
+    private final double backoffRatio;
+    private final ConcurrentMap<String, Limit> limits = new ConcurrentHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+
+    ConcurrencyLimiter(Builder b) {
+        this.initialLimit = b.initialLimit;
+        this.minLimit = b.minLimit;
+        this.maxLimit = b.maxLimit;
+        this.latencyThresholdNanos = b.latencyThresholdNanos;
+        this.backoffRatio = b.backoffRatio;
+    }
+
+    /**
+     * @param host {@code host:port}, e.g. {@code example.com:443}.
+     * @return the current limit of the host.
+     */
+    public int getLimit(String host) {
+        Limit limit = limits.get(host);
+        return limit != null ? (int) limit.limit() : initialLimit;
+    }
+
+    /**
+     * @param host {@code host:port}.
+     * @return number of requests in flight to the host.
+     */
+    public int getInFlight(String host) {
+        Limit limit = limits.get(host);
+        return limit != null ? limit.inFlight.get() : 0;
+    }
+
+    /**
+     * @return number of requests rejected because their host's limit was reached.
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Takes a slot for a request to the host.
+     *
+     * @param host {@code host:port}.
+     * @return the host's limit, to be passed to {@link #release(Limit, long, boolean)} once the response headers are
+     * received or the request failed.
+     * @throws RequestRejectedException if the host's limit is reached.
+     */
+    Limit acquire(String host) throws RequestRejectedException {
+        Limit limit = limits.get(host);
+        if (limit == null) {
+            limit = new Limit(initialLimit);
+            Limit existing = limits.putIfAbsent(host, limit);
+            if (existing != null)
+                limit = existing;
+        }
+        while (true) {
+            int n = limit.inFlight.get();
+            if (n >= (int) limit.limit()) {
+                rejected.increment();
+                throw new RequestRejectedException(RequestRejectedException.Reason.CONCURRENCY_LIMIT, host);
+            }
+            if (limit.inFlight.compareAndSet(n, n + 1))
+                return limit;
+        }
+    }
+
+    /**
+     * Gives a slot back and adapts the limit.
+     *
+     * @param limit      the limit returned by {@link #acquire(String)}.
+     * @param nanos      time until the response headers or the failure.
+     * @param overloaded {@code true} if the request timed out or was answered 429 or 503.
+     */
+    void release(Limit limit, long nanos, boolean overloaded) {
+        int inFlight = limit.inFlight.getAndDecrement();
+        while (true) {
+            long bits = limit.bits.get();
+            double current = Double.longBitsToDouble(bits);
+            double next;
+            if (overloaded || nanos > latencyThresholdNanos)
+                next = Math.max(minLimit, current * backoffRatio);
+            else if (inFlight * 2 >= current)
+                next = Math.min(maxLimit, current + 1);
+            else
+                return;
+            if (next == current || limit.bits.compareAndSet(bits, Double.doubleToRawLongBits(next)))
+                return;
+        }
+    }
+
+    /**
+     * Gives a slot back without adapting the limit, for a request that was not sent.
+     *
+     * @param limit the limit returned by {@link #acquire(String)}.
+     */
+    void cancel(Limit limit) {
+        limit.inFlight.decrementAndGet();
+    }
+
+    /**
+     * The limit and the requests in flight of a host.
+     */
+    static final class Limit {
+
+        final AtomicInteger inFlight = new AtomicInteger();
+        // a double, so that repeated decreases of a small limit do not round to nothing
+        final AtomicLong bits;
+
+        Limit(int initial) {
+            this.bits = new AtomicLong(Double.doubleToRawLongBits(initial));
+        }
+
+        double limit() {
+            return Double.longBitsToDouble(bits.get());
+        }
+    }
+
+    /**
+     * Constructs a ConcurrencyLimiter instance.
+     */
+    public static final class Builder {
+
+        int initialLimit = 20;
+        int minLimit = 1;
+        int maxLimit = 200;
+        long latencyThresholdNanos = TimeUnit.SECONDS.toNanos(1);
+        double backoffRatio = 0.9;
+
+        /**
+         * Sets the limits. Defaults are 20 initially, between 1 and 200.
+         *
+         * @param initial initial limit of every host.
+         * @param min     minimum limit.
+         * @param max     maximum limit.
+         * @return a {@code Builder} instance.
+         */
+        public Builder limits(int initial, int min, int max) {
+            if (min < 1 || initial < min || max < initial)
+                throw new IllegalArgumentException("Limits must be positive, with min <= initial <= max!");
+            this.initialLimit = initial;
+            this.minLimit = min;
+            this.maxLimit = max;
+            return this;
+        }
+
+        /**
+         * Sets the response time above which a host is considered overloaded. Default is 1 second.
+         *
+         * @param value latency threshold.
+         * @param unit  time interval unit.
+         * @return a {@code Builder} instance.
+         */
+        public Builder latencyThreshold(long value, TimeUnit unit) {
+            if (value < 1)
+                throw new IllegalArgumentException("Latency threshold must be positive!");
+            this.latencyThresholdNanos = unit.toNanos(value);
+            return this;
+        }
+
+        /**
+         * Sets the factor applied to the limit of an overloaded host. Default is 0.9.
+         *
+         * @param ratio a factor between 0 and 1, exclusive.
+         * @return a {@code Builder} instance.
+         */
+        public Builder backoffRatio(double ratio) {
+            if (!(ratio > 0 && ratio < 1))
+                throw new IllegalArgumentException("Backoff ratio must be between 0 and 1!");
+            this.backoffRatio = ratio;
+            return this;
+        }
+
+        /**
+         * Constructs {@code ConcurrencyLimiter} object.
+         *
+         * @return a {@code ConcurrencyLimiter} instance.
+         */
+        public ConcurrencyLimiter build() {
+            return new ConcurrencyLimiter(this);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+/**
+ * HTTP content codings (RFC 7231, section 3.1.2.1) the client can decode and encode, see
+ * {@link HttpClient.Builder#acceptEncoding(ContentCoding...)} and
+ * {@link HttpClient.Builder#compressRequests(ContentCoding, long)}.
+ */
+public enum ContentCoding {
+
+    /**
+     * GZIP file format, RFC 1952.
+     */
+    GZIP("gzip"),
+
+    /**
+     * ZLIB data format, RFC 1950. Raw DEFLATE data, which some servers send instead, is decoded as well.
+     */
+    DEFLATE("deflate");
+
+    private final String name;
+
+    ContentCoding(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the coding name, as sent in {@code Accept-Encoding} and {@code Content-Encoding} headers.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param encoding a {@code Content-Encoding} header value.
+     * @return the matching coding, or {@code null} if the value is unknown or lists several codings.
+     */
+    static ContentCoding forName(String encoding) {
+        if (encoding == null)
+            return null;
+        String name = encoding.trim();
+        if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip"))
+            return GZIP;
+        if (name.equalsIgnoreCase("deflate"))
+            return DEFLATE;
+        return null;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregates request metrics without locking: striped counters for requests, failures, redirects and bytes, status
+ * counts per host, and a {@link LatencyHistogram} per timing phase. Every getter may be called while requests are
+ * being recorded.<br/>
+ * Sample usage:<br/>
+ * <code>
+ * DefaultHttpClientMetrics metrics = new DefaultHttpClientMetrics();<br/>
+ * HttpClient c = new HttpClient.Builder().metrics(metrics).build();<br/>
+ * ...<br/>
+ * metrics.dump(System.out);<br/>
+ * </code>
+ */
+public final class DefaultHttpClientMetrics implements HttpClientMetrics {
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder redirects = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, LongAdder>> statusByHost =
+            new ConcurrentHashMap<>();
+
+    private final LatencyHistogram connect = new LatencyHistogram();
+    private final LatencyHistogram requestWritten = new LatencyHistogram();
+    private final LatencyHistogram firstByte = new LatencyHistogram();
+    private final LatencyHistogram total = new LatencyHistogram();
+
+    @Override
+    public void requestCompleted(RequestMetrics m) {
+        requests.increment();
+        if (m.getFailure() != null)
+            failures.increment();
+        redirects.add(m.getRedirects());
+        bytesSent.add(m.getBytesSent());
+        bytesReceived.add(m.getBytesReceived());
+
+        ConcurrentHashMap<Integer, LongAdder> statuses = statusByHost.get(m.getHost());
+        if (statuses == null) {
+            ConcurrentHashMap<Integer, LongAdder> created = new ConcurrentHashMap<>();
+            statuses = statusByHost.putIfAbsent(m.getHost(), created);
+            if (statuses == null)
+                statuses = created;
+        }
+        LongAdder count = statuses.get(m.getStatusCode());
+        if (count == null) {
+            LongAdder created = new LongAdder();
+            count = statuses.putIfAbsent(m.getStatusCode(), created);
+            if (count == null)
+                count = created;
+        }
+        count.increment();
+
+        connect.record(m.getConnectNanos());
+        requestWritten.record(m.getRequestWrittenNanos());
+        firstByte.record(m.getFirstByteNanos());
+        total.record(m.getTotalNanos());
+    }
+
+    /**
+     * @return number of requests reported, failed ones included.
+     */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * @return number of failed requests.
+     */
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    /**
+     * @return number of redirects followed.
+     */
+    public long getRedirectCount() {
+        return redirects.sum();
+    }
+
+    /**
+     * @return number of request body bytes sent.
+     */
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * @return number of response body bytes received, before decompression.
+     */
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    /**
+     * @param host   host name.
+     * @param status status code, -1 for failed requests.
+     * @return number of requests to the host completed with the status.
+     */
+    public long getStatusCount(String host, int status) {
+        ConcurrentHashMap<Integer, LongAdder> statuses = statusByHost.get(host);
+        LongAdder count = statuses != null ? statuses.get(status) : null;
+        return count != null ? count.sum() : 0;
+    }
+
+    /**
+     * @return status counts per host, sorted; a copy.
+     */
+    public Map<String, Map<Integer, Long>> getStatusCounts() {
+        Map<String, Map<Integer, Long>> result = new TreeMap<>();
+        for (Map.Entry<String, ConcurrentHashMap<Integer, LongAdder>> host : statusByHost.entrySet()) {
+            Map<Integer, Long> statuses = new TreeMap<>();
+            for (Map.Entry<Integer, LongAdder> e : host.getValue().entrySet())
+                statuses.put(e.getKey(), e.getValue().sum());
+            result.put(host.getKey(), statuses);
+        }
+        return result;
+    }
+
+    /**
+     * @return histogram of the connect times, see {@link RequestMetrics#getConnectNanos()}.
+     */
+    public LatencyHistogram getConnectLatency() {
+        return connect;
+    }
+
+    /**
+     * @return histogram of the request written times, see {@link RequestMetrics#getRequestWrittenNanos()}.
+     */
+    public LatencyHistogram getRequestWrittenLatency() {
+        return requestWritten;
+    }
+
+    /**
+     * @return histogram of the times to first byte, see {@link RequestMetrics#getFirstByteNanos()}.
+     */
+    public LatencyHistogram getFirstByteLatency() {
+        return firstByte;
+    }
+
+    /**
+     * @return histogram of the total request times, see {@link RequestMetrics#getTotalNanos()}.
+     */
+    public LatencyHistogram getTotalLatency() {
+        return total;
+    }
+
+    /**
+     * Writes a human readable summary of the metrics.
+     *
+     * @param out destination.
+     * @throws IOException thrown by {@code out}.
+     */
+    public void dump(Appendable out) throws IOException {
+        out.append("requests=").append(Long.toString(getRequestCount()))
+           .append(" failures=").append(Long.toString(getFailureCount()))
+           .append(" redirects=").append(Long.toString(getRedirectCount()))
+           .append(" bytesSent=").append(Long.toString(getBytesSent()))
+           .append(" bytesReceived=").append(Long.toString(getBytesReceived())).append('\n');
+        out.append("connect:   ").append(connect.toString()).append('\n');
+        out.append("written:   ").append(requestWritten.toString()).append('\n');
+        out.append("firstByte: ").append(firstByte.toString()).append('\n');
+        out.append("total:     ").append(total.toString()).append('\n');
+        for (Map.Entry<String, Map<Integer, Long>> host : getStatusCounts().entrySet())
+            out.append(host.getKey()).append(": ").append(host.getValue().toString()).append('\n');
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Header lines encoded once, {@code "Name: value\r\n"} in ISO-8859-1, for the headers sent with every request, i.e.
+ * the common headers of the clients sharing a {@link PooledHttpTransport}.<br/>
+ * Lines are looked up by value first: the values of the common headers are the same {@code String} instances on every
+ * request, whose hash code is cached, so a lookup neither allocates nor scans the characters.
+ */
+final class EncodedHeaders {
+
+    private static final int MAX_LINES = 256;
+
+    private final ConcurrentHashMap<String, Line[]> byValue = new ConcurrentHashMap<>();
+    private final AtomicInteger lines = new AtomicInteger();
+
+    private static final class Line {
+
+        final String name;
+        final byte[] bytes;
+
+        Line(String name, byte[] bytes) {
+            this.name = name;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Encodes a header line, unless already encoded or the table is full.
+     *
+     * @param name  header name.
+     * @param value header value.
+     */
+    void add(String name, String value) {
+        if (get(name, value) != null || lines.get() >= MAX_LINES)
+            return;
+        final Line line = new Line(name, (name + ": " + value + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        for (; ; ) {
+            Line[] current = byValue.get(value);
+            if (current == null) {
+                if (byValue.putIfAbsent(value, new Line[]{line}) == null)
+                    break;
+                continue;
+            }
+            for (Line l : current)
+                if (l.name.equalsIgnoreCase(name))
+                    return;
+            Line[] updated = new Line[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = line;
+            if (byValue.replace(value, current, updated))
+                break;
+        }
+        lines.incrementAndGet();
+    }
+
+    /**
+     * @param name  header name, case-insensitive.
+     * @param value header value.
+     * @return the encoded line, or {@code null} if not encoded.
+     */
+    byte[] get(String name, String value) {
+        Line[] candidates = byValue.get(value);
+        if (candidates == null)
+            return null;
+        for (Line l : candidates)
+            if (l.name.equalsIgnoreCase(name))
+                return l.bytes;
+        return null;
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.HttpResponse;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hedges GET and HEAD requests: if a request is not answered within a delay, an identical one is sent and the first
+ * response wins, the other request being disconnected. A slow replica then costs the delay rather than its own
+ * latency.<br/>
+ * The delay is fixed, or follows a percentile of the latency observed per host ({@code host:port}), e.g. the 95th:
+ * only the slowest 5% of the requests are hedged. Hedges are paid from a token bucket so that they cannot exceed a
+ * fixed fraction of the traffic: every request adds {@code ratio} tokens, every hedge takes one, and the bucket holds
+ * at most {@code reserve} tokens.<br/>
+ * The first request is sent by the calling thread, the hedge by the client's executor. The policy may be shared by
+ * several clients.<br/>
+ * Sample usage:<br/>
+ * <code>
+ * HedgePolicy hedging = new HedgePolicy.Builder().percentile(95).budget(0.05, 10).build();<br/>
+ * HttpClient c = new HttpClient.Builder().hedgePolicy(hedging).build();<br/>
+ * </code>
+ */
+public final class HedgePolicy {
+
+    /**
+     * Number of latencies recorded for a host between two updates of its delay.
+     */
+    private static final int UPDATE_INTERVAL = 64;
+
+    /**
+     * Number of latencies after which a host's histogram starts over, so that its delay follows changes.
+     */
+    private static final int WINDOW = 8192;
+
+    private static final ScheduledExecutorService TIMER =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "http-hedge-timer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final long delayNanos;
+    private final double percentile;
+    private final TokenBudget budget;
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder wins = new LongAdder();
+    private final LongAdder budgetExhausted = new LongAdder();
+
+    HedgePolicy(Builder b) {
+        this.delayNanos = b.delayNanos;
+        this.percentile = b.percentile;
+        this.budget = new TokenBudget(b.budgetRatio, b.budgetReserve);
+    }
+
+    /**
+     * @return number of hedged requests sent.
+     */
+    public long getHedgeCount() {
+        return hedges.sum();
+    }
+
+    /**
+     * @return number of hedged requests answered before the requests they hedged.
+     */
+    public long getHedgeWinCount() {
+        return wins.sum();
+    }
+
+    /**
+     * @return number of hedges given up because the budget was exhausted.
+     */
+    public long getBudgetExhaustedCount() {
+        return budgetExhausted.sum();
+    }
+
+    /**
+     * @param host {@code host:port}, e.g. {@code example.com:443}.
+     * @param unit time unit of the result.
+     * @return the current hedging delay of the host.
+     */
+    public long getDelay(String host, TimeUnit unit) {
+        Host h = hosts.get(host);
+        return unit.convert(h != null ? h.delayNanos : delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sends a request, hedging it if it is not answered in time.
+     *
+     * @param host     {@code host:port} of the request.
+     * @param executor executor sending the hedge.
+     * @param attempt  sends the request; called once by the calling thread, and once more by the executor if hedged.
+     *                 Both calls may run at once, so each must build its own request and headers.
+     * @return the first response.
+     * @throws IOException thrown by the request, or by the hedge if both failed.
+     */
+    HttpResponse execute(String host, Executor executor, RetryPolicy.Attempt attempt) throws IOException {
+        budget.deposit();
+        Host h = hosts.get(host);
+        if (h == null) {
+            h = new Host(delayNanos);
+            Host existing = hosts.putIfAbsent(host, h);
+            if (existing != null)
+                h = existing;
+        }
+
+        long start = System.nanoTime();
+        Race race = new Race(executor, attempt);
+        InFlightCall caller = InFlightCall.current();
+        if (caller != null)
+            caller.register(race);
+        race.timer = TIMER.schedule(race, h.delayNanos, TimeUnit.NANOSECONDS);
+
+        HttpResponse resp = null;
+        IOException failure = null;
+        InFlightCall.bind(race.primary);
+        try {
+            resp = attempt.execute();
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException | Error e) {
+            race.primaryDone(null);
+            throw e;
+        } finally {
+            InFlightCall.bind(caller);
+        }
+
+        switch (race.primaryDone(resp)) {
+            case HEDGE:
+                resp = race.winner;
+                break;
+            case PENDING:
+                resp = race.awaitHedge(failure);
+                break;
+            default:
+                if (failure != null)
+                    throw failure;
+        }
+        h.record(System.nanoTime() - start);
+        return resp;
+    }
+
+    /**
+     * Outcome of a request for the calling thread.
+     */
+    private enum Outcome {
+        /**
+         * Its own response or failure.
+         */
+        PRIMARY,
+        /**
+         * The response of the hedge, which won.
+         */
+        HEDGE,
+        /**
+         * The request failed while the hedge is in flight.
+         */
+        PENDING
+    }
+
+    /**
+     * The latencies of a host.
+     */
+    private final class Host {
+
+        // null unless the delay follows a percentile
+        final LatencyHistogram latencies;
+        final AtomicLong samples = new AtomicLong();
+        volatile long delayNanos;
+
+        Host(long delayNanos) {
+            this.delayNanos = delayNanos;
+            this.latencies = percentile > 0 ? new LatencyHistogram() : null;
+        }
+
+        void record(long nanos) {
+            if (latencies == null)
+                return;
+            latencies.record(nanos);
+            long n = samples.incrementAndGet();
+            if (n % UPDATE_INTERVAL != 0)
+                return;
+            delayNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(1), latencies.getValueAtPercentile(percentile));
+            if (n >= WINDOW) {
+                latencies.reset();
+                samples.set(0);
+            }
+        }
+    }
+
+    /**
+     * A request and its hedge. The timer sends the hedge unless the request completed; the first response wins and the
+     * other request is aborted, unless it has completed too, in which case its response is disconnected.
+     */
+    private final class Race implements Runnable, Closeable {
+
+        final Executor executor;
+        final RetryPolicy.Attempt attempt;
+        final InFlightCall primary = new InFlightCall();
+        final InFlightCall hedge = new InFlightCall();
+        final CompletableFuture<HttpResponse> hedgeResult = new CompletableFuture<>();
+        ScheduledFuture<?> timer;
+
+        // guarded by this
+        boolean primaryFinished;
+        boolean hedgeStarted;
+        boolean hedgeFinished;
+        // guarded by this, read without lock by the calling thread once the hedge won
+        volatile HttpResponse winner;
+
+        Race(Executor executor, RetryPolicy.Attempt attempt) {
+            this.executor = executor;
+            this.attempt = attempt;
+        }
+
+        /**
+         * Sends the hedge, on timer expiry.
+         */
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (primaryFinished || primary.isAborted())
+                    return;
+                if (!budget.take()) {
+                    budgetExhausted.increment();
+                    return;
+                }
+                hedgeStarted = true;
+            }
+            hedges.increment();
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendHedge();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                hedgeDone(null, new IOException("Hedged request rejected", e));
+            }
+        }
+
+        private void sendHedge() {
+            if (hedge.isAborted()) {
+                hedgeDone(null, new InterruptedIOException("Hedged request aborted"));
+                return;
+            }
+            InFlightCall.bind(hedge);
+            try {
+                hedgeDone(attempt.execute(), null);
+            } catch (Throwable t) {
+                hedgeDone(null, t);
+            } finally {
+                InFlightCall.bind(null);
+            }
+        }
+
+        private void hedgeDone(HttpResponse resp, Throwable error) {
+            boolean won = false;
+            boolean abortPrimary = false;
+            synchronized (this) {
+                hedgeFinished = true;
+                if (resp != null && winner == null) {
+                    // counted before the calling thread can see the winner
+                    wins.increment();
+                    winner = resp;
+                    won = true;
+                    abortPrimary = !primaryFinished;
+                }
+            }
+            if (won) {
+                // wakes the calling thread up if it still waits for the first response
+                if (abortPrimary)
+                    primary.abort();
+                hedgeResult.complete(resp);
+            } else if (resp != null) {
+                disconnect(resp);
+                hedgeResult.complete(null);
+            } else {
+                hedgeResult.completeExceptionally(error);
+            }
+        }
+
+        /**
+         * Records the outcome of the request sent by the calling thread.
+         *
+         * @param resp its response, {@code null} if it failed.
+         * @return what the calling thread returns.
+         */
+        Outcome primaryDone(HttpResponse resp) {
+            boolean abortHedge = false;
+            Outcome outcome;
+            synchronized (this) {
+                primaryFinished = true;
+                if (winner != null) {
+                    outcome = Outcome.HEDGE;
+                } else if (resp != null) {
+                    winner = resp;
+                    abortHedge = hedgeStarted && !hedgeFinished;
+                    outcome = Outcome.PRIMARY;
+                } else {
+                    outcome = hedgeStarted && !hedgeFinished ? Outcome.PENDING : Outcome.PRIMARY;
+                }
+            }
+            timer.cancel(false);
+            if (outcome == Outcome.HEDGE && resp != null)
+                disconnect(resp);
+            if (abortHedge)
+                hedge.abort();
+            return outcome;
+        }
+
+        /**
+         * @param failure failure of the request sent by the calling thread, thrown if the hedge fails too.
+         * @return the hedge's response.
+         */
+        HttpResponse awaitHedge(IOException failure) throws IOException {
+            try {
+                HttpResponse resp = hedgeResult.get();
+                if (resp != null)
+                    return resp;
+            } catch (InterruptedException e) {
+                hedge.abort();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the hedged request");
+            } catch (ExecutionException e) {
+                if (failure != null)
+                    failure.addSuppressed(e.getCause());
+            }
+            throw failure;
+        }
+
+        /**
+         * Aborts both requests, when the calling asynchronous call is cancelled.
+         */
+        @Override
+        public void close() {
+            primary.abort();
+            hedge.abort();
+        }
+    }
+
+    private static void disconnect(HttpResponse resp) {
+        try {
+            resp.disconnect();
+        } catch (IOException e) {
+            // the response is discarded anyway
+        }
+    }
+
+    /**
+     * Constructs a HedgePolicy instance.
+     */
+    public static final class Builder {
+
+        long delayNanos = TimeUnit.MILLISECONDS.toNanos(100);
+        double percentile;
+        double budgetRatio = 0.05;
+        int budgetReserve = 10;
+
+        /**
+         * Sets the delay after which a request is hedged; the initial delay of every host if a percentile is set.
+         * Default is 100 milliseconds.
+         *
+         * @param value hedging delay.
+         * @param unit  time interval unit.
+         * @return a {@code Builder} instance.
+         */
+        public Builder delay(long value, TimeUnit unit) {
+            if (value < 1)
+                throw new IllegalArgumentException("Hedging delay must be positive!");
+            this.delayNanos = unit.toNanos(value);
+            return this;
+        }
+
+        /**
+         * Derives the delay of every host from a percentile of its observed latency, updated every 64 requests.
+         * Disabled by default: the delay is fixed.
+         *
+         * @param percentile a percentile between 0 and 100, exclusive, e.g. 95.
+         * @return a {@code Builder} instance.
+         */
+        public Builder percentile(double percentile) {
+            if (!(percentile > 0 && percentile < 100))
+                throw new IllegalArgumentException("Percentile must be between 0 and 100!");
+            this.percentile = percentile;
+            return this;
+        }
+
+        /**
+         * Sets the hedging budget. Defaults are 0.05 and 10: hedges are limited to 5% of the requests, beyond an
+         * initial reserve of 10 hedges.
+         *
+         * @param ratio   tokens earned by every request, one token paying for a hedge.
+         * @param reserve maximum number of tokens saved, and initial balance.
+         * @return a {@code Builder} instance.
+         */
+        public Builder budget(double ratio, int reserve) {
+            if (!(ratio >= 0) || reserve < 0)
+                throw new IllegalArgumentException("Hedging budget must not be negative!");
+            this.budgetRatio = ratio;
+            this.budgetReserve = reserve;
+            return this;
+        }
+
+        /**
+         * Constructs {@code HedgePolicy} object.
+         *
+         * @return a {@code HedgePolicy} instance.
+         */
+        public HedgePolicy build() {
+            return new HedgePolicy(this);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Resolves host names to the addresses {@link PooledHttpTransport} connects to, e.g. a {@link CachingResolver}.
+ */
+public interface HostResolver {
+
+    /**
+     * Resolves with {@link InetAddress#getAllByName(String)}, i.e. through the JVM-wide address cache.
+     */
+    HostResolver SYSTEM = new HostResolver() {
+        @Override
+        public List<InetAddress> resolve(String host) throws UnknownHostException {
+            return Arrays.asList(InetAddress.getAllByName(host));
+        }
+    };
+
+    /**
+     * @param host host name or IP address literal, without IPv6 brackets.
+     * @return the addresses of the host, in order of preference; never empty.
+     * @throws UnknownHostException if the host cannot be resolved.
+     */
+    List<InetAddress> resolve(String host) throws UnknownHostException;
+}
@@ -0,0 +1,343 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.util.StreamingContent;
+
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * HTTP/2 transport based on the JDK's java.net.http client.<br/>
+ * Concurrent requests to a host are multiplexed over a single connection: h2 is negotiated with ALPN over TLS, and
+ * plaintext connections are upgraded to h2c by the first request. Headers are compressed with HPACK, so the common
+ * headers of a client are sent in full once per connection and as table indexes afterwards. Requests fall back to
+ * HTTP/1.1 on the servers which support neither.<br/>
+ * Request bodies are buffered in memory before being sent. The connect timeout is set per transport, see
+ * {@link Builder#connectTimeout(long, TimeUnit)}; the read timeout of a request bounds the wait for the response
+ * headers.<br/>
+ * Sample usage:<br/>
+ * <code>
+ * HttpClient c = new HttpClient.Builder().http2(true).build();<br/>
+ * </code>
+ * or, to configure the transport:<br/>
+ * <code>
+ * Http2Transport transport = new Http2Transport.Builder().connectTimeout(5, TimeUnit.SECONDS).build();<br/>
+ * HttpClient c = new HttpClient.Builder().transport(transport).build();<br/>
+ * </code>
+ */
+public final class Http2Transport extends HttpTransport {
+
+    private final java.net.http.HttpClient client;
+
+    Http2Transport(Builder b) {
+        java.net.http.HttpClient.Builder builder = java.net.http.HttpClient.newBuilder()
+                .version(java.net.http.HttpClient.Version.HTTP_2)
+                // redirects are handled by com.google.api.client.http.HttpRequest
+                .followRedirects(java.net.http.HttpClient.Redirect.NEVER);
+        if (b.connectTimeout > 0)
+            builder.connectTimeout(Duration.ofMillis(b.connectTimeout));
+        if (b.sslContext != null)
+            builder.sslContext(b.sslContext);
+        if (b.executor != null)
+            builder.executor(b.executor);
+        this.client = builder.build();
+    }
+
+    @Override
+    public boolean supportsMethod(String method) {
+        return true;
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) {
+        return new Http2Request(method, URI.create(url));
+    }
+
+    /**
+     * Closes the connections on JDK 21+, where the java.net.http client can be closed. On earlier JDKs they are
+     * closed once idle.
+     */
+    @Override
+    public void shutdown() throws IOException {
+        if (client instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) client).close();
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} for the headers set by the java.net.http client itself.
+     */
+    private static boolean isRestricted(String name) {
+        String n = name.toLowerCase(Locale.ROOT);
+        return n.equals("connection") || n.equals("content-length") || n.equals("expect") || n.equals("host")
+               || n.equals("upgrade");
+    }
+
+    private final class Http2Request extends LowLevelHttpRequest {
+
+        private final String method;
+        private final URI uri;
+        private final HttpRequest.Builder builder;
+        private int readTimeout;
+
+        Http2Request(String method, URI uri) {
+            this.method = method;
+            this.uri = uri;
+            this.builder = HttpRequest.newBuilder(uri);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (!isRestricted(name))
+                builder.header(name, value);
+        }
+
+        @Override
+        public void setTimeout(int connectTimeout, int readTimeout) {
+            this.readTimeout = readTimeout;
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            if (getContentType() != null)
+                builder.header("Content-Type", getContentType());
+            if (getContentEncoding() != null)
+                builder.header("Content-Encoding", getContentEncoding());
+            if (readTimeout > 0)
+                builder.timeout(Duration.ofMillis(readTimeout));
+            builder.method(method, publisher());
+
+            final CompletableFuture<HttpResponse<InputStream>> future =
+                    client.sendAsync(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+            // let a cancelled asynchronous call reset the stream
+            InFlightCall.attach(new Closeable() {
+                @Override
+                public void close() {
+                    future.cancel(true);
+                }
+            });
+            HttpResponse<InputStream> resp;
+            try {
+                resp = future.get();
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + uri);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof HttpTimeoutException) {
+                    SocketTimeoutException timeout = new SocketTimeoutException(cause.getMessage());
+                    timeout.initCause(cause);
+                    throw timeout;
+                }
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                throw new IOException(cause);
+            } catch (CancellationException e) {
+                throw new InterruptedIOException("Request to " + uri + " has been cancelled");
+            }
+            InFlightCall.attach(resp.body());
+            return new Http2Response(resp);
+        }
+
+        private HttpRequest.BodyPublisher publisher() throws IOException {
+            StreamingContent content = getStreamingContent();
+            if (content == null)
+                return HttpRequest.BodyPublishers.noBody();
+            long length = getContentLength();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 && length < Integer.MAX_VALUE
+                    ? (int) length : 1024);
+            content.writeTo(out);
+            return HttpRequest.BodyPublishers.ofByteArray(out.toByteArray());
+        }
+    }
+
+    private static final class Http2Response extends LowLevelHttpResponse {
+
+        private final HttpResponse<InputStream> resp;
+        private final List<String> names = new ArrayList<>();
+        private final List<String> values = new ArrayList<>();
+
+        Http2Response(HttpResponse<InputStream> resp) {
+            this.resp = resp;
+            for (Map.Entry<String, List<String>> e : resp.headers().map().entrySet()) {
+                // pseudo-headers, e.g. :status
+                if (e.getKey().startsWith(":"))
+                    continue;
+                for (String value : e.getValue()) {
+                    names.add(e.getKey());
+                    values.add(value);
+                }
+            }
+        }
+
+        private String header(String name) {
+            return resp.headers().firstValue(name).orElse(null);
+        }
+
+        @Override
+        public InputStream getContent() {
+            return resp.body();
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return header("Content-Encoding");
+        }
+
+        @Override
+        public long getContentLength() {
+            HttpHeaders headers = resp.headers();
+            return headers.firstValueAsLong("Content-Length").orElse(-1L);
+        }
+
+        @Override
+        public String getContentType() {
+            return header("Content-Type");
+        }
+
+        @Override
+        public String getStatusLine() {
+            String version = resp.version() == java.net.http.HttpClient.Version.HTTP_2 ? "HTTP/2 " : "HTTP/1.1 ";
+            return version + resp.statusCode();
+        }
+
+        @Override
+        public int getStatusCode() {
+            return resp.statusCode();
+        }
+
+        /**
+         * @return {@code null}: HTTP/2 has no reason phrase, and the java.net.http client drops the HTTP/1.1 one.
+         */
+        @Override
+        public String getReasonPhrase() {
+            return null;
+        }
+
+        @Override
+        public int getHeaderCount() {
+            return names.size();
+        }
+
+        @Override
+        public String getHeaderName(int index) {
+            return names.get(index);
+        }
+
+        @Override
+        public String getHeaderValue(int index) {
+            return values.get(index);
+        }
+
+        /**
+         * Closes the body: an HTTP/2 stream is reset, an HTTP/1.1 connection is closed unless the body was read.
+         */
+        @Override
+        public void disconnect() throws IOException {
+            resp.body().close();
+        }
+    }
+
+    /**
+     * Constructs an Http2Transport instance.
+     */
+    public static final class Builder {
+
+        long connectTimeout;
+        SSLContext sslContext;
+        Executor executor;
+
+        /**
+         * Sets the connect timeout of every connection. Default is 0, i.e. none.
+         *
+         * @param value connect timeout.
+         * @param unit  time interval unit.
+         * @return a {@code Builder} instance.
+         */
+        public Builder connectTimeout(long value, TimeUnit unit) {
+            if (value < 0)
+                throw new IllegalArgumentException("Connect timeout must not be negative!");
+            this.connectTimeout = unit.toMillis(value);
+            return this;
+        }
+
+        /**
+         * Sets the SSL context of HTTPS connections. Default is the JVM default one.
+         *
+         * @param context SSL context.
+         * @return a {@code Builder} instance.
+         */
+        public Builder sslContext(SSLContext context) {
+            this.sslContext = requireNonNull(context, "SSL context must not be null!");
+            return this;
+        }
+
+        /**
+         * Sets the executor of the java.net.http client, running its I/O and completion tasks. Default is a cached
+         * thread pool of the client.
+         *
+         * @param executor an executor; the transport does not shut it down.
+         * @return a {@code Builder} instance.
+         */
+        public Builder executor(Executor executor) {
+            this.executor = requireNonNull(executor, "Executor must not be null!");
+            return this;
+        }
+
+        /**
+         * Constructs {@code Http2Transport} object.
+         *
+         * @return a {@code Http2Transport} instance.
+         */
+        public Http2Transport build() {
+            return new Http2Transport(this);
+        }
+    }
+}
@@ -0,0 +1,645 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A private HTTP cache following RFC 7234, used by {@link HttpClient} for GET requests.<br/>
+ * Responses are stored when they carry explicit freshness ({@code Cache-Control: max-age}, {@code Expires}) or a
+ * validator ({@code ETag}, {@code Last-Modified}), unless {@code Cache-Control: no-store} is present. A fresh entry is
+ * served without contacting the server; a stale one is revalidated with a conditional request, and its body is
+ * served again when the server answers 304 Not Modified. Successful unsafe requests (POST, PUT, DELETE) invalidate
+ * the entry of their URL.<br/>
+ * Entries live in a bounded in-heap LRU tier. When a disk directory is configured, entries evicted from the heap and
+ * bodies too large for it are spilled to files which are memory-mapped when served, so the bodies stay off-heap. The
+ * disk tier is private to the cache instance: its files are not reused by a later instance.<br/>
+ * Sample usage:<br/>
+ * <code>
+ * HttpCache cache = new HttpCache.Builder().maxEntries(10000).diskDirectory(dir, 1L << 30).build();<br/>
+ * HttpClient c = new HttpClient.Builder().cache(cache).build();<br/>
+ * </code>
+ */
+public final class HttpCache {
+
+    private static final long MAX_HEURISTIC_FRESHNESS = TimeUnit.DAYS.toMillis(1);
+    private static final AtomicLong FILE_IDS = new AtomicLong();
+
+    private final int maxEntries;
+    private final long maxMemoryBytes;
+    private final long maxEntryBytes;
+    private final Path diskDirectory;
+    private final long maxDiskBytes;
+
+    // both tiers are guarded by this
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(64, 0.75f, true);
+    private final LinkedHashMap<String, Entry> disk = new LinkedHashMap<>(64, 0.75f, true);
+    private long memoryBytes;
+    private long diskBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+
+    HttpCache(Builder b) {
+        this.maxEntries = b.maxEntries;
+        this.maxMemoryBytes = b.maxMemoryBytes;
+        this.maxEntryBytes = b.maxEntryBytes;
+        this.diskDirectory = b.diskDirectory;
+        this.maxDiskBytes = b.maxDiskBytes;
+    }
+
+    /**
+     * Sends the request through the network.
+     */
+    interface Network {
+        HttpResponse execute(HttpHeaders requestHeaders) throws IOException;
+    }
+
+    /**
+     * Answers a GET request from the cache, revalidating or fetching through {@code network} as needed.
+     *
+     * @param url            request URL.
+     * @param requestHeaders complete request headers.
+     * @param network        sends a request with the given headers.
+     * @return a response, either live or replayed from the cache.
+     * @throws IOException thrown by {@code network}.
+     */
+    HttpResponse get(GenericUrl url, HttpHeaders requestHeaders, Network network) throws IOException {
+        CacheControl requested = CacheControl.parse(requestHeaders.getCacheControl());
+        if (requested.noStore || requestHeaders.getIfNoneMatch() != null
+            || requestHeaders.getIfModifiedSince() != null || requestHeaders.getRange() != null) {
+            // the caller manages caching on its own
+            misses.increment();
+            return network.execute(requestHeaders);
+        }
+
+        String key = url.build();
+        Entry entry = lookup(key, requestHeaders);
+        long now = System.currentTimeMillis();
+
+        if (entry != null && !requested.noCache && !entry.control.noCache
+            && entry.isFresh(now, requested.maxAge)) {
+            hits.increment();
+            return entry.serve(now, url, requestHeaders);
+        }
+
+        if (entry != null && entry.hasValidators()) {
+            revalidations.increment();
+            HttpHeaders conditional = requestHeaders.clone();
+            if (entry.response.header("ETag") != null)
+                conditional.setIfNoneMatch(entry.response.header("ETag"));
+            if (entry.response.header("Last-Modified") != null)
+                conditional.setIfModifiedSince(entry.response.header("Last-Modified"));
+
+            HttpResponse resp = network.execute(conditional);
+            long responseTime = System.currentTimeMillis();
+            if (resp.getStatusCode() == 304) {
+                notModified.increment();
+                Map<String, String> updated = new HashMap<>();
+                for (String name : new String[]{"Date", "Expires", "Cache-Control", "ETag", "Last-Modified"}) {
+                    String value = resp.getHeaders().getFirstHeaderStringValue(name);
+                    if (value != null)
+                        updated.put(name, value);
+                }
+                // the stored Age is stale either way, a null value removes it
+                updated.put("Age", resp.getHeaders().getFirstHeaderStringValue("Age"));
+                resp.disconnect();
+                Entry refreshed = entry.refresh(entry.response.withHeaders(updated), now, responseTime);
+                replace(key, entry, refreshed);
+                return refreshed.serve(responseTime, url, requestHeaders);
+            }
+            return store(key, url, requestHeaders, resp, now);
+        }
+
+        misses.increment();
+        return store(key, url, requestHeaders, network.execute(requestHeaders), now);
+    }
+
+    /**
+     * Drops the entry of the URL, called after a successful unsafe request.
+     *
+     * @param url request URL.
+     */
+    void invalidate(GenericUrl url) {
+        String key = url.build();
+        Entry removed;
+        synchronized (this) {
+            removed = memory.remove(key);
+            if (removed != null) {
+                memoryBytes -= removed.size;
+            } else {
+                removed = disk.remove(key);
+                if (removed != null)
+                    diskBytes -= removed.size;
+            }
+        }
+        if (removed != null)
+            removed.release();
+    }
+
+    /**
+     * Drops all the entries.
+     */
+    public void clear() {
+        List<Entry> removed;
+        synchronized (this) {
+            removed = new ArrayList<>(memory.values());
+            removed.addAll(disk.values());
+            memory.clear();
+            disk.clear();
+            memoryBytes = 0;
+            diskBytes = 0;
+        }
+        for (Entry e : removed)
+            e.release();
+    }
+
+    /**
+     * @return number of requests served from the cache without contacting the server.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of requests sent to the server because no usable entry was found.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of conditional requests sent to revalidate stale entries.
+     */
+    public long getRevalidationCount() {
+        return revalidations.sum();
+    }
+
+    /**
+     * @return number of revalidations answered with 304 Not Modified, i.e. served from the cache.
+     */
+    public long getNotModifiedCount() {
+        return notModified.sum();
+    }
+
+    /**
+     * @return number of entries held in the heap tier.
+     */
+    public synchronized int getMemoryEntries() {
+        return memory.size();
+    }
+
+    /**
+     * @return number of entries held in the disk tier.
+     */
+    public synchronized int getDiskEntries() {
+        return disk.size();
+    }
+
+    private Entry lookup(String key, HttpHeaders requestHeaders) {
+        Entry entry;
+        synchronized (this) {
+            entry = memory.get(key);
+            if (entry == null)
+                entry = disk.get(key);
+        }
+        return entry != null && entry.matches(requestHeaders) ? entry : null;
+    }
+
+    private HttpResponse store(String key, GenericUrl url, HttpHeaders requestHeaders, HttpResponse resp,
+                               long requestTime) throws IOException {
+        // a redirected response belongs to its target: the redirect itself may be neither cacheable nor permanent
+        if (!isCacheable(resp) || !key.equals(resp.getRequest().getUrl().build()))
+            return resp;
+        // an unfollowed redirect must not be replayed to a request following redirects
+        if (resp.getStatusCode() / 100 == 3 && !resp.getRequest().getFollowRedirects())
+            return resp;
+        Long length = resp.getHeaders().getContentLength();
+        if (length != null && length > maxEntryBytes)
+            return resp;
+
+        BufferedResponse buffered = BufferedResponse.read(resp);
+        long responseTime = System.currentTimeMillis();
+        if (buffered.bodyLength() <= maxEntryBytes) {
+            Entry entry = new Entry(buffered, varyValues(buffered, requestHeaders), requestTime, responseTime);
+            put(key, entry);
+        }
+        return buffered.replay("GET", url, requestHeaders);
+    }
+
+    private void put(String key, Entry entry) {
+        List<Map.Entry<String, Entry>> spilled = new ArrayList<>();
+        List<Entry> released = new ArrayList<>();
+        synchronized (this) {
+            removeLocked(key, released);
+            if (entry.size <= maxMemoryBytes) {
+                memory.put(key, entry);
+                memoryBytes += entry.size;
+                for (Iterator<Map.Entry<String, Entry>> it = memory.entrySet().iterator();
+                     it.hasNext() && (memory.size() > maxEntries || memoryBytes > maxMemoryBytes); ) {
+                    Map.Entry<String, Entry> eldest = it.next();
+                    it.remove();
+                    memoryBytes -= eldest.getValue().size;
+                    if (diskDirectory != null)
+                        spilled.add(eldest);
+                }
+            } else if (diskDirectory != null) {
+                spilled.add(new AbstractMap.SimpleImmutableEntry<>(key, entry));
+            }
+        }
+        for (Entry e : released)
+            e.release();
+        // file writes happen outside the lock
+        for (Map.Entry<String, Entry> e : spilled) {
+            try {
+                spill(e.getKey(), e.getValue());
+            } catch (IOException ignored) {
+                // the entry is dropped, the response itself is fine
+            }
+        }
+    }
+
+    private void spill(String key, Entry entry) throws IOException {
+        if (entry.size > maxDiskBytes)
+            return;
+        Path file = diskDirectory.resolve("entry-" + System.identityHashCode(this) + '-'
+                                          + FILE_IDS.incrementAndGet() + ".body");
+        ByteBuffer mapped;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer body = entry.response.body();
+            while (body.hasRemaining())
+                ch.write(body);
+            // the mapping stays valid after the channel is closed
+            mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, entry.size);
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        Entry onDisk = entry.moveTo(entry.response.withBody(mapped), file);
+
+        List<Entry> released = new ArrayList<>();
+        synchronized (this) {
+            if (memory.containsKey(key)) {
+                // stored again in the meantime
+                released.add(onDisk);
+            } else {
+                removeLocked(key, released);
+                disk.put(key, onDisk);
+                diskBytes += onDisk.size;
+                for (Iterator<Entry> it = disk.values().iterator(); it.hasNext() && diskBytes > maxDiskBytes; ) {
+                    Entry eldest = it.next();
+                    it.remove();
+                    diskBytes -= eldest.size;
+                    released.add(eldest);
+                }
+            }
+        }
+        for (Entry e : released)
+            e.release();
+    }
+
+    private void removeLocked(String key, List<Entry> released) {
+        Entry old = memory.remove(key);
+        if (old != null) {
+            memoryBytes -= old.size;
+            released.add(old);
+        }
+        old = disk.remove(key);
+        if (old != null) {
+            diskBytes -= old.size;
+            released.add(old);
+        }
+    }
+
+    private synchronized void replace(String key, Entry expected, Entry updated) {
+        if (memory.get(key) == expected)
+            memory.put(key, updated);
+        else if (disk.get(key) == expected)
+            disk.put(key, updated);
+    }
+
+    /**
+     * @return {@code true} if the response may be stored, RFC 7234 section 3.
+     */
+    static boolean isCacheable(HttpResponse resp) {
+        switch (resp.getStatusCode()) {
+            case 200:
+            case 203:
+            case 300:
+            case 301:
+            case 404:
+            case 410:
+                break;
+            default:
+                return false;
+        }
+        HttpHeaders h = resp.getHeaders();
+        CacheControl control = CacheControl.parse(h.getCacheControl());
+        if (control.noStore)
+            return false;
+        String vary = h.getFirstHeaderStringValue("Vary");
+        if (vary != null && vary.contains("*"))
+            return false;
+        return control.maxAge >= 0 || h.getExpires() != null || h.getETag() != null || h.getLastModified() != null;
+    }
+
+    private static List<String[]> varyValues(BufferedResponse resp, HttpHeaders requestHeaders) {
+        String vary = resp.header("Vary");
+        if (vary == null)
+            return Collections.emptyList();
+        List<String[]> result = new ArrayList<>();
+        for (String name : vary.split(",")) {
+            name = name.trim();
+            if (!name.isEmpty())
+                result.add(new String[]{name, requestHeaders.getFirstHeaderStringValue(name)});
+        }
+        return result;
+    }
+
+    /**
+     * @return the date in milliseconds, or -1 if it is missing or invalid.
+     */
+    static long parseDate(String value) {
+        if (value == null)
+            return -1;
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * A stored response along with the data needed to compute its age.
+     */
+    private static final class Entry {
+
+        final BufferedResponse response;
+        final CacheControl control;
+        final List<String[]> vary;
+        final long requestTime;
+        final long responseTime;
+        final long size;
+        final Path file;
+
+        Entry(BufferedResponse response, List<String[]> vary, long requestTime, long responseTime) {
+            this(response, vary, requestTime, responseTime, null);
+        }
+
+        private Entry(BufferedResponse response, List<String[]> vary, long requestTime, long responseTime,
+                      Path file) {
+            this.response = response;
+            this.control = CacheControl.parse(response.header("Cache-Control"));
+            this.vary = vary;
+            this.requestTime = requestTime;
+            this.responseTime = responseTime;
+            this.size = response.bodyLength();
+            this.file = file;
+        }
+
+        Entry refresh(BufferedResponse updated, long requestTime, long responseTime) {
+            return new Entry(updated, vary, requestTime, responseTime, file);
+        }
+
+        Entry moveTo(BufferedResponse mapped, Path file) {
+            return new Entry(mapped, vary, requestTime, responseTime, file);
+        }
+
+        boolean matches(HttpHeaders requestHeaders) {
+            for (String[] v : vary) {
+                String actual = requestHeaders.getFirstHeaderStringValue(v[0]);
+                if (v[1] == null ? actual != null : !v[1].equals(actual))
+                    return false;
+            }
+            return true;
+        }
+
+        boolean hasValidators() {
+            return response.header("ETag") != null || response.header("Last-Modified") != null;
+        }
+
+        /**
+         * RFC 7234 section 4.2.1.
+         */
+        long freshnessLifetime() {
+            if (control.maxAge >= 0)
+                return TimeUnit.SECONDS.toMillis(control.maxAge);
+            long date = date();
+            String expiresValue = response.header("Expires");
+            if (expiresValue != null) {
+                // an invalid date means already expired
+                long expires = parseDate(expiresValue);
+                return expires < 0 ? 0 : Math.max(0, expires - date);
+            }
+            long lastModified = parseDate(response.header("Last-Modified"));
+            if (lastModified >= 0 && lastModified < date)
+                return Math.min((date - lastModified) / 10, MAX_HEURISTIC_FRESHNESS);
+            return 0;
+        }
+
+        /**
+         * RFC 7234 section 4.2.3.
+         */
+        long currentAge(long now) {
+            long apparentAge = Math.max(0, responseTime - date());
+            long ageValue = 0;
+            try {
+                String age = response.header("Age");
+                if (age != null)
+                    ageValue = TimeUnit.SECONDS.toMillis(Long.parseLong(age.trim()));
+            } catch (NumberFormatException ignored) {
+                // treated as absent
+            }
+            long correctedInitialAge = Math.max(apparentAge, ageValue + (responseTime - requestTime));
+            return correctedInitialAge + (now - responseTime);
+        }
+
+        boolean isFresh(long now, long requestedMaxAge) {
+            long age = currentAge(now);
+            if (requestedMaxAge >= 0 && age > TimeUnit.SECONDS.toMillis(requestedMaxAge))
+                return false;
+            return freshnessLifetime() > age;
+        }
+
+        HttpResponse serve(long now, GenericUrl url, HttpHeaders requestHeaders) throws IOException {
+            String age = Long.toString(TimeUnit.MILLISECONDS.toSeconds(currentAge(now)));
+            return response.withHeaders(Collections.singletonMap("Age", age)).replay("GET", url, requestHeaders);
+        }
+
+        private long date() {
+            long date = parseDate(response.header("Date"));
+            return date >= 0 ? date : responseTime;
+        }
+
+        void release() {
+            if (file == null)
+                return;
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+                // a mapped file cannot be deleted on some platforms
+            }
+        }
+    }
+
+    /**
+     * The {@code Cache-Control} directives the cache acts upon.
+     */
+    static final class CacheControl {
+
+        private static final CacheControl NONE = new CacheControl(false, false, -1);
+
+        final boolean noStore;
+        final boolean noCache;
+        final long maxAge;
+
+        private CacheControl(boolean noStore, boolean noCache, long maxAge) {
+            this.noStore = noStore;
+            this.noCache = noCache;
+            this.maxAge = maxAge;
+        }
+
+        static CacheControl parse(String value) {
+            if (value == null || value.isEmpty())
+                return NONE;
+            boolean noStore = false;
+            boolean noCache = false;
+            long maxAge = -1;
+            for (String directive : value.split(",")) {
+                directive = directive.trim().toLowerCase();
+                if (directive.equals("no-store")) {
+                    noStore = true;
+                } else if (directive.equals("no-cache") || directive.startsWith("no-cache=")) {
+                    noCache = true;
+                } else if (directive.startsWith("max-age=")) {
+                    try {
+                        maxAge = Long.parseLong(directive.substring(8).replace("\"", "").trim());
+                    } catch (NumberFormatException e) {
+                        noCache = true; // RFC 7234 section 4.2.1: invalid freshness means stale
+                    }
+                }
+            }
+            return new CacheControl(noStore, noCache, maxAge);
+        }
+    }
+
+    /**
+     * Constructs an HttpCache instance.
+     */
+    public static final class Builder {
+
+        int maxEntries = 1000;
+        long maxMemoryBytes = 32L * 1024 * 1024;
+        long maxEntryBytes = 8L * 1024 * 1024;
+        Path diskDirectory;
+        long maxDiskBytes;
+
+        /**
+         * Sets the maximum number of entries held in the heap tier. Default is 1000.
+         *
+         * @param max maximum number of entries.
+         * @return a {@code Builder} instance.
+         */
+        public Builder maxEntries(int max) {
+            if (max < 1)
+                throw new IllegalArgumentException("Max entries must be positive!");
+            this.maxEntries = max;
+            return this;
+        }
+
+        /**
+         * Sets the maximum total size of the bodies held in the heap tier. Default is 32 MiB.
+         *
+         * @param max maximum number of bytes.
+         * @return a {@code Builder} instance.
+         */
+        public Builder maxMemoryBytes(long max) {
+            if (max < 1)
+                throw new IllegalArgumentException("Max memory bytes must be positive!");
+            this.maxMemoryBytes = max;
+            return this;
+        }
+
+        /**
+         * Sets the maximum body size of a cacheable response; larger responses are passed through. Default is 8 MiB.
+         *
+         * @param max maximum number of bytes.
+         * @return a {@code Builder} instance.
+         */
+        public Builder maxEntryBytes(long max) {
+            if (max < 1)
+                throw new IllegalArgumentException("Max entry bytes must be positive!");
+            this.maxEntryBytes = max;
+            return this;
+        }
+
+        /**
+         * Enables the disk tier. The directory must exist; the cache creates and deletes its files there.
+         *
+         * @param dir      directory holding the cached bodies.
+         * @param maxBytes maximum total size of the files.
+         * @return a {@code Builder} instance.
+         */
+        public Builder diskDirectory(Path dir, long maxBytes) {
+            requireNonNull(dir, "Disk directory must not be null!");
+            if (maxBytes < 1)
+                throw new IllegalArgumentException("Max disk bytes must be positive!");
+            if (!Files.isDirectory(dir))
+                throw new IllegalArgumentException("Disk directory does not exist: " + dir);
+            this.diskDirectory = dir;
+            this.maxDiskBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Constructs {@code HttpCache} object.
+         *
+         * @return a {@code HttpCache} instance.
+         */
+        public HttpCache build() {
+            return new HttpCache(this);
+        }
+    }
+}
@@ -17,21 +17,50 @@
 package ch.protolab.java.net.http;
 
 import com.google.api.client.http.*;
+import com.google.api.client.http.javanet.ConnectionFactory;
 import com.google.api.client.http.javanet.NetHttpTransport;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.net.CookieHandler;
+import java.io.InputStream;
 import java.net.CookieManager;
 import java.net.CookiePolicy;
+import java.net.CookieStore;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import static java.util.Objects.requireNonNull;
 
 /**
  * A lightweight wrapper around <a href="https://code.google.com/p/google-http-java-client/">Google HTTP Java Client</a>.</br>
- * java.net.HttpURLConnection is used as low-level HTTP transport.<br/><br/>
+ * java.net.HttpURLConnection is used as low-level HTTP transport unless another one is set with
+ * {@link Builder#transport(HttpTransport)}.<br/><br/>
  * <p/>
- * Supports GET, HEAD, POST, PUT, DELETE methods. Accepts ALL cookies.<br/>
+ * Supports GET, HEAD, POST, PUT, DELETE methods. Cookies are ignored unless enabled with
+ * {@link Builder#cookies(boolean)} or {@link Builder#cookieStore(CookieStore)}; every client keeps its own cookies.<br/>
  * Sample usage:<br/>
  * <code>
  * Map<String, Object> params = new HashMap<>();<br/>
@@ -45,35 +74,122 @@ import static java.util.Objects.requireNonNull;
  * else<br/>
  * // handle an HTTP error response<br/>
  * </code>
+ * <p/>
+ * Every request method has an asynchronous counterpart ({@link #getAsync(GenericUrl)}, {@link #postAsync(GenericUrl,
+ * HttpContent)}, {@link #sendAsync}) executed by a bounded executor, see {@link Builder#executor(Executor)} and
+ * {@link Builder#maxInFlight(int)}. Batches of requests are sent by {@link #executeAll(List, int)}, reusing a few
+ * connections per host.<br/>
+ * GET responses are cached when an {@link HttpCache} is set with {@link Builder#cache(HttpCache)}, idempotent
+ * requests are retried when a {@link RetryPolicy} is set with {@link Builder#retryPolicy(RetryPolicy)}, GET and
+ * HEAD requests are hedged when a {@link HedgePolicy} is set with {@link Builder#hedgePolicy(HedgePolicy)}, and
+ * requests are paced when a {@link RateLimiter} is set with {@link Builder#rateLimiter(RateLimiter)}.
  */
 public final class HttpClient {
 
-    private static final HttpTransport TRANSPORT = new NetHttpTransport();
+    private static final HttpTransport TRANSPORT = new NetHttpTransport.Builder()
+            .setConnectionFactory(new ConnectionFactory() {
+                @Override
+                public HttpURLConnection openConnection(URL url) throws IOException {
+                    final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+                    // let a cancelled asynchronous call tear the connection down
+                    InFlightCall.attach(new Closeable() {
+                        @Override
+                        public void close() {
+                            conn.disconnect();
+                        }
+                    });
+                    return conn;
+                }
+            })
+            .build();
 
-    static {
-        // Set cookie policy
-        CookieManager manager = new CookieManager();
-        manager.setCookiePolicy(CookiePolicy.ACCEPT_ALL);
-        CookieHandler.setDefault(manager);
-    }
+    /**
+     * Maximum number of bytes moved by a single {@link FileChannel#transferFrom} call.
+     */
+    private static final long TRANSFER_SIZE = 1 << 20;
+
+    /**
+     * Default number of requests of a batch in flight per host, as many connections as browsers open to a host.
+     */
+    private static final int BATCH_PARALLELISM = 6;
+
+    /**
+     * Maximum length of a line published by {@link #streamLines(GenericUrl, HttpHeaders)}, in bytes.
+     */
+    private static final int MAX_STREAMED_LINE = 1 << 20;
 
     private final HttpRequestFactory factory;
     private final boolean followRedirects;
+    private final CommonHeaders commonHeaders;
+    private final CookieManager cookies;
+    private final Executor executor;
+    private final Semaphore inFlight;
+    private final HttpCache cache;
+    private final SingleFlight singleFlight;
+    private final HttpClientMetrics metrics;
+    private final RetryPolicy retryPolicy;
+    private final HedgePolicy hedgePolicy;
+    private final CircuitBreaker circuitBreaker;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final RateLimiter rateLimiter;
+    private final PooledHttpTransport pool;
+    private final PooledHttpTransport ownTransport;
+    private final Map<GenericUrl, Integer> prewarm;
+    private final int connectTimeout;
 
-    HttpClient(final Builder b) {
+    HttpClient(Builder b) {
         this.followRedirects = b.followRedirects;
-        this.factory = TRANSPORT.createRequestFactory(new HttpRequestInitializer() {
+        this.commonHeaders = CommonHeaders.freeze(b.headers);
+        this.cookies = b.cookieStore != null ? new CookieManager(b.cookieStore, b.cookiePolicy) : null;
+        this.executor = b.executor != null ? b.executor : AsyncExecutors.defaultExecutor();
+        this.inFlight = new Semaphore(b.maxInFlight);
+        this.cache = b.cache;
+        this.singleFlight = b.coalesceRequests ? new SingleFlight() : null;
+        this.metrics = b.metrics;
+        this.retryPolicy = b.retryPolicy;
+        this.hedgePolicy = b.hedgePolicy;
+        this.circuitBreaker = b.circuitBreaker;
+        this.concurrencyLimiter = b.concurrencyLimiter;
+        this.rateLimiter = b.rateLimiter;
+        this.prewarm = new LinkedHashMap<>(b.prewarm);
+        this.connectTimeout = b.timeout;
+
+        final int timeout = b.timeout;
+        final int readTimeout = b.readTimeout;
+        final boolean suppressUserAgentSuffix = commonHeaders.hasUserAgent();
+        // responses decoded by CompressingTransport need no GZIP support from HttpResponse, nor its buffering stream
+        final boolean rawContent = b.decodeResponses;
+        HttpTransport transport = b.transport;
+        if (transport == null && !b.http2 && (b.resolver != null || !prewarm.isEmpty())) {
+            this.ownTransport = new PooledHttpTransport.Builder()
+                    .resolver(b.resolver != null ? b.resolver : HostResolver.SYSTEM)
+                    .build();
+            transport = ownTransport;
+        } else {
+            this.ownTransport = null;
+            if (transport == null)
+                transport = b.http2 ? Http2Holder.TRANSPORT : TRANSPORT;
+        }
+        this.pool = transport instanceof PooledHttpTransport ? (PooledHttpTransport) transport : null;
+        if (pool != null)
+            commonHeaders.encodeInto(pool.encodedHeaders);
+        else if (!prewarm.isEmpty())
+            throw new IllegalStateException("Pre-warming requires a PooledHttpTransport!");
+        if (metrics != null)
+            transport = new MeteredTransport(transport);
+        // outermost, so that the metrics count the bytes on the wire
+        if (b.decodeResponses || b.requestCoding != null)
+            transport = new CompressingTransport(transport, b.requestCoding, b.minCompressedLength);
+        this.factory = transport.createRequestFactory(new HttpRequestInitializer() {
             @Override
             public void initialize(HttpRequest req) throws IOException {
                 req.setThrowExceptionOnExecuteError(false);
                 req.setCurlLoggingEnabled(false);
 
-                req.setConnectTimeout(b.timeout);
-                req.setFollowRedirects(b.followRedirects);
-                req.setHeaders(b.headers);
-                if (b.headers.getUserAgent() != null)
-                    req.setSuppressUserAgentSuffix(true);
-                req.setReadTimeout(b.readTimeout);
+                req.setConnectTimeout(timeout);
+                req.setSuppressUserAgentSuffix(suppressUserAgentSuffix);
+                req.setReadTimeout(readTimeout);
+                req.setResponseReturnRawInputStream(rawContent);
             }
         });
     }
@@ -334,6 +450,608 @@ public final class HttpClient {
         return send(url, "PUT", headers, followRedirects, body);
     }
 
+    /**
+     * Sends POST request, reporting the progress of the body.
+     *
+     * @param url      request URL
+     * @param body     Request payload to be sent to the server, e.g. an {@link UploadContent} or a
+     *                 {@link MultipartFormContent}.
+     * @param listener receives the progress of the body. Can be {@code null}.
+     * @return an HttpResponse instance.
+     * @throws IOException thrown if an I/O exception is thrown by the low-level java.net.URLConnection or java.net.URL,
+     *                     or while reading the body.
+     * @see #upload(GenericUrl, String, HttpHeaders, HttpContent, UploadListener)
+     */
+    public HttpResponse upload(GenericUrl url, HttpContent body, UploadListener listener) throws IOException {
+        return upload(url, "POST", null, body, listener);
+    }
+
+    /**
+     * Sends a request with a body, reporting its progress as it is written to the connection: every 64 KiB at most,
+     * and once complete. The progress counts the bytes of the body before compression, see
+     * {@link Builder#compressRequests(ContentCoding, long)}.<br/>
+     * A body of known length is sent with {@code Content-Length}, other ones with {@code Transfer-Encoding: chunked};
+     * an {@link UploadContent} or a {@link MultipartFormContent} is streamed from its source through a pooled buffer.
+     *
+     * @param url      request URL
+     * @param method   HTTP method, e.g. {@code POST} or {@code PUT}.
+     * @param headers  additional headers to be sent along with the common headers sent by the client. Can be
+     *                 {@code null}.
+     * @param body     Request payload to be sent to the server.
+     * @param listener receives the progress of the body. Can be {@code null}.
+     * @return an HttpResponse instance.
+     * @throws IOException thrown if an I/O exception is thrown by the low-level java.net.URLConnection or java.net.URL,
+     *                     or while reading the body.
+     */
+    public HttpResponse upload(GenericUrl url, String method, HttpHeaders headers, HttpContent body,
+                               UploadListener listener) throws IOException {
+        requireNonNull(method, "Method must not be null!");
+        requireNonNull(body, "Request body must not be null!");
+        return send(url, method, headers, followRedirects,
+                listener != null ? new ProgressContent(body, listener) : body);
+    }
+
+    /**
+     * Sends GET request asynchronously.
+     *
+     * @param url request URL
+     * @return a future completed with an HttpResponse instance; cancelling the future disconnects the request.
+     * @see #sendAsync(GenericUrl, String, HttpHeaders, boolean, HttpContent)
+     */
+    public CompletableFuture<HttpResponse> getAsync(GenericUrl url) {
+        return sendAsync(url, "GET", null, followRedirects, null);
+    }
+
+    /**
+     * Sends GET request asynchronously.
+     *
+     * @param url     request URL
+     * @param headers additional headers to be sent along with the common headers sent by the client.
+     * @return a future completed with an HttpResponse instance; cancelling the future disconnects the request.
+     * @see #sendAsync(GenericUrl, String, HttpHeaders, boolean, HttpContent)
+     */
+    public CompletableFuture<HttpResponse> getAsync(GenericUrl url, HttpHeaders headers) {
+        return sendAsync(url, "GET", headers, followRedirects, null);
+    }
+
+    /**
+     * Sends POST request asynchronously.
+     *
+     * @param url  request URL
+     * @param body Request payload to be sent to the server.
+     * @return a future completed with an HttpResponse instance; cancelling the future disconnects the request.
+     * @see #sendAsync(GenericUrl, String, HttpHeaders, boolean, HttpContent)
+     */
+    public CompletableFuture<HttpResponse> postAsync(GenericUrl url, HttpContent body) {
+        return postAsync(url, body, null);
+    }
+
+    /**
+     * Sends POST request asynchronously.
+     *
+     * @param url     request URL
+     * @param body    Request payload to be sent to the server.
+     * @param headers additional headers to be sent along with the common headers sent by the client.
+     * @return a future completed with an HttpResponse instance; cancelling the future disconnects the request.
+     * @see #sendAsync(GenericUrl, String, HttpHeaders, boolean, HttpContent)
+     */
+    public CompletableFuture<HttpResponse> postAsync(GenericUrl url, HttpContent body, HttpHeaders headers) {
+        requireNonNull(body, "Request body must not be null!");
+        return sendAsync(url, "POST", headers, followRedirects, body);
+    }
+
+    /**
+     * Sends an HTTP request asynchronously.<br/>
+     * The request is executed by the client's executor. If {@link Builder#maxInFlight(int)} requests are already in
+     * flight the calling thread blocks until one of them completes (backpressure). A request delayed by the
+     * {@link Builder#rateLimiter(RateLimiter) rate limiter} is submitted to the executor once its permit is due; one
+     * rejected by it completes the future exceptionally.<br/>
+     * Cancelling the returned future disconnects the underlying connection, and the response, if it has already
+     * been received, is discarded.
+     *
+     * @param url             request URL
+     * @param method          HTTP method.
+     * @param headers         additional headers to be sent along with the common headers sent by the client. Can be {@code null}.
+     * @param followRedirects indicates whether the redirect responses should be handled automatically.
+     * @param body            Request payload to be sent to the server. Can be {@code null}.
+     * @return a future completed with an HttpResponse instance, or exceptionally with the exception thrown by
+     * {@link #send(GenericUrl, String, HttpHeaders, boolean, HttpContent)}.
+     */
+    public CompletableFuture<HttpResponse> sendAsync(
+            final GenericUrl url,
+            final String method,
+            final HttpHeaders headers,
+            final boolean followRedirects,
+            final HttpContent body) {
+
+        requireNonNull(url, "Request URL instance must not be null!");
+
+        final CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        final InFlightCall call = new InFlightCall();
+        future.whenComplete((resp, error) -> {
+            if (future.isCancelled())
+                call.abort();
+        });
+
+        // the permit of the first request is waited for on the timer, not on an executor thread
+        long wait = 0;
+        if (rateLimiter != null) {
+            String host = hostKey(url);
+            try {
+                wait = rateLimiter.reserve(host);
+            } catch (RequestRejectedException e) {
+                inFlight.release();
+                future.completeExceptionally(e);
+                return future;
+            }
+            call.prepay(host);
+        }
+
+        final Runnable task = () -> {
+            try {
+                if (future.isDone())
+                    return;
+                InFlightCall.bind(call);
+                HttpResponse resp = send(url, method, headers, followRedirects, body);
+                if (!future.complete(resp))
+                    resp.disconnect();
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            } finally {
+                InFlightCall.bind(null);
+                inFlight.release();
+            }
+        };
+        if (wait > 0)
+            RateLimiter.schedule(() -> submit(task, future), wait);
+        else
+            submit(task, future);
+        return future;
+    }
+
+    /**
+     * Submits the task of an asynchronous request, holding one of the {@link Builder#maxInFlight(int)} permits.
+     */
+    private void submit(Runnable task, CompletableFuture<HttpResponse> future) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Sends a batch of HTTP requests asynchronously, with at most 6 requests in flight per host.
+     *
+     * @param requests requests to be sent.
+     * @return futures of the responses, in the order of the requests.
+     * @see #executeAll(List, int)
+     */
+    public List<CompletableFuture<HttpResponse>> executeAll(List<RequestSpec> requests) {
+        return executeAll(requests, BATCH_PARALLELISM);
+    }
+
+    /**
+     * Sends a batch of HTTP requests asynchronously.<br/>
+     * The requests are grouped by host ({@code host:port}). Every host is served by at most {@code maxPerHost} tasks
+     * of the client's executor, each sending the pending requests of its host one after the other, so that the
+     * connection it used is kept alive and reused for the next one: a batch of N requests to a host costs at most
+     * {@code maxPerHost} connections. Every response is read completely into memory before the next request is sent.
+     * <br/>
+     * Every task holds one of the {@link Builder#maxInFlight(int)} permits while it runs; the calling thread blocks
+     * while none is available.<br/>
+     * The futures are returned in the order of the requests, and each one is completed as soon as its response has
+     * been read: callbacks registered on them see the responses in completion order. Cancelling a future disconnects
+     * its request if it is in flight, and skips it otherwise.
+     *
+     * @param requests   requests to be sent.
+     * @param maxPerHost maximum number of requests in flight per host.
+     * @return futures of the responses, in the order of the requests, completed exceptionally with the exception thrown
+     * by {@link #send(GenericUrl, String, HttpHeaders, boolean, HttpContent)} for the failed ones.
+     */
+    public List<CompletableFuture<HttpResponse>> executeAll(List<RequestSpec> requests, int maxPerHost) {
+        requireNonNull(requests, "Requests must not be null!");
+        if (maxPerHost < 1)
+            throw new IllegalArgumentException("Max requests per host must be positive!");
+
+        List<CompletableFuture<HttpResponse>> futures = new ArrayList<>(requests.size());
+        Map<String, Queue<BatchEntry>> hosts = new LinkedHashMap<>();
+        for (RequestSpec spec : requests) {
+            BatchEntry entry = new BatchEntry(requireNonNull(spec, "Request must not be null!"));
+            futures.add(entry.future);
+            String host = hostKey(spec.getUrl());
+            Queue<BatchEntry> queue = hosts.get(host);
+            if (queue == null) {
+                queue = new ConcurrentLinkedQueue<>();
+                hosts.put(host, queue);
+            }
+            queue.add(entry);
+        }
+
+        // sized before any task starts polling the queues
+        List<Queue<BatchEntry>> queues = new ArrayList<>(hosts.values());
+        int[] tasks = new int[queues.size()];
+        int rounds = 0;
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = Math.min(maxPerHost, queues.get(i).size());
+            rounds = Math.max(rounds, tasks[i]);
+        }
+        // one task per host first, so that a small maxInFlight does not starve the last hosts
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < tasks.length; i++) {
+                if (round < tasks[i])
+                    drain(queues.get(i));
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * Starts a task sending the requests of a host queued by {@link #executeAll(List, int)}, until none is left.
+     */
+    private void drain(final Queue<BatchEntry> queue) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(queue, e);
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    for (BatchEntry entry; (entry = queue.poll()) != null; )
+                        entry.run();
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            fail(queue, e);
+        }
+    }
+
+    private static void fail(Queue<BatchEntry> queue, Throwable t) {
+        for (BatchEntry entry; (entry = queue.poll()) != null; )
+            entry.future.completeExceptionally(t);
+    }
+
+    /**
+     * A request of a batch and its future.
+     */
+    private final class BatchEntry {
+
+        final RequestSpec spec;
+        final CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        final InFlightCall call = new InFlightCall();
+
+        BatchEntry(RequestSpec spec) {
+            this.spec = spec;
+            future.whenComplete((resp, error) -> {
+                if (future.isCancelled())
+                    call.abort();
+            });
+        }
+
+        void run() {
+            if (future.isDone())
+                return;
+            try {
+                InFlightCall.bind(call);
+                GenericUrl url = spec.getUrl();
+                HttpResponse resp = send(url, spec.getMethod(), spec.getHeaders(),
+                        spec.followRedirects(followRedirects), spec.getBody());
+                // reading the body releases the connection for the next request of the host
+                future.complete(BufferedResponse.read(resp).replay(spec.getMethod(), url,
+                        resp.getRequest().getHeaders()));
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            } finally {
+                InFlightCall.bind(null);
+            }
+        }
+    }
+
+    /**
+     * Sends GET request and writes the response body to a channel.
+     *
+     * @param url    request URL
+     * @param target channel receiving the body; it is not closed.
+     * @return an HttpResponse instance.
+     * @throws IOException thrown if an I/O exception is thrown by the low-level java.net.URLConnection or java.net.URL,
+     *                     or by the target channel.
+     * @see #download(GenericUrl, HttpHeaders, WritableByteChannel)
+     */
+    public HttpResponse download(GenericUrl url, WritableByteChannel target) throws IOException {
+        return download(url, null, target);
+    }
+
+    /**
+     * Sends GET request and writes the response body to a channel, through a pooled buffer: the body is never
+     * materialized in memory.<br/>
+     * The body of a successful (2xx) response is written to {@code target} and the connection is released once it has
+     * been read; the returned response carries the status and the headers, its content has been consumed. The body of
+     * an unsuccessful response is not written: it is read into memory and can be parsed from the returned response.
+     * If the transfer fails, the connection is discarded. Downloads are never coalesced, see
+     * {@link Builder#coalesceRequests(boolean)}.
+     *
+     * @param url     request URL
+     * @param headers additional headers to be sent along with the common headers sent by the client. Can be {@code null}.
+     * @param target  channel receiving the body; it is not closed.
+     * @return an HttpResponse instance.
+     * @throws IOException thrown if an I/O exception is thrown by the low-level java.net.URLConnection or java.net.URL,
+     *                     or by the target channel.
+     */
+    public HttpResponse download(GenericUrl url, HttpHeaders headers, final WritableByteChannel target) throws
+                                                                                                         IOException {
+        requireNonNull(target, "Target channel must not be null!");
+        return transfer(url, headers, new BodyConsumer() {
+            @Override
+            public void consume(InputStream in) throws IOException {
+                ByteBuffer buf = BufferPool.DEFAULT.acquire();
+                try {
+                    for (int n; (n = in.read(buf.array(), 0, buf.capacity())) != -1; ) {
+                        buf.limit(n);
+                        while (buf.hasRemaining())
+                            target.write(buf);
+                        buf.clear();
+                    }
+                } finally {
+                    BufferPool.DEFAULT.release(buf);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends GET request and writes the response body to a file.
+     *
+     * @param url  request URL
+     * @param file file receiving the body.
+     * @return an HttpResponse instance.
+     * @throws IOException thrown if an I/O exception is thrown by the low-level java.net.URLConnection or java.net.URL,
+     *                     or while writing the file.
+     * @see #download(GenericUrl, HttpHeaders, Path)
+     */
+    public HttpResponse download(GenericUrl url, Path file) throws IOException {
+        return download(url, null, file);
+    }
+
+    /**
+     * Sends GET request and writes the response body to a file with {@link FileChannel#transferFrom}.<br/>
+     * The file is created or truncated only for a successful (2xx) response, and deleted if the transfer fails. See
+     * {@link #download(GenericUrl, HttpHeaders, WritableByteChannel)} for the handling of the response and of the
+     * connection.
+     *
+     * @param url     request URL
+     * @param headers additional headers to be sent along with the common headers sent by the client. Can be {@code null}.
+     * @param file    file receiving the body.
+     * @return an HttpResponse instance.
+     * @throws IOException thrown if an I/O exception is thrown by the low-level java.net.URLConnection or java.net.URL,
+     *                     or while writing the file.
+     */
+    public HttpResponse download(GenericUrl url, HttpHeaders headers, final Path file) throws IOException {
+        requireNonNull(file, "Target file must not be null!");
+        return transfer(url, headers, new BodyConsumer() {
+            @Override
+            public void consume(InputStream in) throws IOException {
+                boolean complete = false;
+                try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ReadableByteChannel src = Channels.newChannel(in);
+                    long position = 0;
+                    // a blocking source only transfers nothing at the end of the stream
+                    for (long n; (n = out.transferFrom(src, position, TRANSFER_SIZE)) > 0; )
+                        position += n;
+                    complete = true;
+                } finally {
+                    if (!complete)
+                        Files.deleteIfExists(file);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends GET request and passes the response body to a sink, chunk by chunk, in a pooled buffer reused for every
+     * chunk. See {@link #download(GenericUrl, HttpHeaders, WritableByteChannel)} for the handling of the response and
+     * of the connection.
+     *
+     * @param url     request URL
+     * @param headers additional headers to be sent along with the common headers sent by the client. Can be {@code null}.
+     * @param sink    sink receiving the body.
+     * @return an HttpResponse instance.
+     * @throws IOException thrown if an I/O exception is thrown by the low-level java.net.URLConnection or java.net.URL,
+     *                     or by the sink.
+     */
+    public HttpResponse download(GenericUrl url, HttpHeaders headers, final ByteBufferSink sink) throws IOException {
+        requireNonNull(sink, "Sink must not be null!");
+        return transfer(url, headers, new BodyConsumer() {
+            @Override
+            public void consume(InputStream in) throws IOException {
+                ByteBuffer buf = BufferPool.DEFAULT.acquire();
+                try {
+                    for (int n; (n = in.read(buf.array(), 0, buf.capacity())) != -1; ) {
+                        buf.limit(n);
+                        sink.write(buf);
+                        buf.clear();
+                    }
+                } finally {
+                    BufferPool.DEFAULT.release(buf);
+                }
+            }
+        });
+    }
+
+    /**
+     * Streams the body of a GET response.
+     *
+     * @param url request URL
+     * @return a publisher of the body chunks.
+     * @see #stream(GenericUrl, HttpHeaders)
+     */
+    public Flow.Publisher<ByteBuffer> stream(GenericUrl url) {
+        return stream(url, null);
+    }
+
+    /**
+     * Streams the body of a GET response as it arrives, with backpressure: the body is read only while the subscriber
+     * has outstanding demand, so memory stays bounded by a chunk whatever the size or the duration of the response.
+     * <br/>
+     * Every subscriber gets its own request, sent on the client's executor once it first requests items; the
+     * publisher signals on executor threads, and never occupies one while the demand is exhausted. Each chunk is a new
+     * buffer owned by the subscriber. The stream completes at the end of the body, and the connection is then released
+     * for reuse; cancelling the subscription closes the connection at once. An unsuccessful (non-2xx) response fails
+     * the stream with an {@link HttpResponseException}. Streams do not count against {@link Builder#maxInFlight(int)},
+     * and are never coalesced, see {@link Builder#coalesceRequests(boolean)}.
+     *
+     * @param url     request URL
+     * @param headers additional headers to be sent along with the common headers sent by the client. Can be {@code null}.
+     * @return a publisher of the body chunks.
+     */
+    public Flow.Publisher<ByteBuffer> stream(GenericUrl url, HttpHeaders headers) {
+        return new ResponsePublisher<>(executor, opener(url, headers), ResponsePublisher.chunks());
+    }
+
+    /**
+     * Streams the body of a GET response line by line.
+     *
+     * @param url request URL
+     * @return a publisher of the body lines.
+     * @see #streamLines(GenericUrl, HttpHeaders)
+     */
+    public Flow.Publisher<String> streamLines(GenericUrl url) {
+        return streamLines(url, null);
+    }
+
+    /**
+     * Streams the body of a GET response line by line, e.g. NDJSON records or server-sent events, with the
+     * backpressure and the handling of the connection of {@link #stream(GenericUrl, HttpHeaders)}: a line is only
+     * published once requested. Lines are split on LF, dropping a trailing CR, and decoded with the charset of the
+     * response, UTF-8 by default. A line longer than 1 MiB fails the stream.
+     *
+     * @param url     request URL
+     * @param headers additional headers to be sent along with the common headers sent by the client. Can be {@code null}.
+     * @return a publisher of the body lines.
+     */
+    public Flow.Publisher<String> streamLines(GenericUrl url, HttpHeaders headers) {
+        return new ResponsePublisher<>(executor, opener(url, headers), ResponsePublisher.lines(MAX_STREAMED_LINE));
+    }
+
+    private ResponsePublisher.Opener opener(final GenericUrl url, final HttpHeaders headers) {
+        requireNonNull(url, "Request URL instance must not be null!");
+        return new ResponsePublisher.Opener() {
+            @Override
+            public HttpResponse open() throws IOException {
+                // never coalesced, which would buffer the body
+                return send(url, "GET", headers, followRedirects, null, false);
+            }
+        };
+    }
+
+    /**
+     * Streams the body of a successful GET response to {@code consumer}, then closes the content, which lets the
+     * transport reuse the connection. The response is disconnected if the consumer fails.
+     */
+    private HttpResponse transfer(GenericUrl url, HttpHeaders headers, BodyConsumer consumer) throws IOException {
+        // never coalesced, which would buffer the body
+        HttpResponse resp = send(url, "GET", headers, followRedirects, null, false);
+        if (!resp.isSuccessStatusCode())
+            return BufferedResponse.read(resp).replay("GET", url, resp.getRequest().getHeaders());
+
+        boolean complete = false;
+        try {
+            InputStream in = resp.getContent();
+            if (in != null) {
+                consumer.consume(in);
+                in.close();
+            }
+            complete = true;
+        } finally {
+            if (!complete)
+                resp.disconnect();
+        }
+        return resp;
+    }
+
+    private interface BodyConsumer {
+
+        void consume(InputStream in) throws IOException;
+    }
+
+    /**
+     * Opens the connections set with {@link Builder#prewarm(int, GenericUrl...)} ahead of the requests, so that the
+     * first requests after startup pay neither name resolution, nor connection establishment, nor TLS handshake: the
+     * connections are added to the idle ones of the client's {@link PooledHttpTransport}, until evicted by its idle
+     * timeout.<br/>
+     * The hosts are warmed up in parallel on the client's executor, the connections to a host one after the other:
+     * each one then resumes the TLS session of the previous one, with an abbreviated handshake, rather than
+     * negotiating a new one. Hosts having enough idle connections already are skipped, so that warming up again, e.g.
+     * periodically, only replaces the connections closed meanwhile.<br/>
+     * Warming up is best effort: a connection which cannot be established is left for the requests to open.
+     *
+     * @return a future completed with the number of connections opened.
+     */
+    public CompletableFuture<Integer> warmUp() {
+        List<CompletableFuture<Integer>> hosts = new ArrayList<>(prewarm.size());
+        for (Map.Entry<GenericUrl, Integer> e : prewarm.entrySet()) {
+            final GenericUrl url = e.getKey();
+            final int connections = e.getValue();
+            hosts.add(CompletableFuture.supplyAsync(() -> {
+                int opened = 0;
+                while (opened < connections && prewarm(url, connections))
+                    opened++;
+                return opened;
+            }, executor));
+        }
+        return CompletableFuture.allOf(hosts.toArray(new CompletableFuture<?>[0])).thenApply(none -> {
+            int n = 0;
+            for (CompletableFuture<Integer> opened : hosts)
+                n += opened.join();
+            return n;
+        });
+    }
+
+    /**
+     * @return {@code false} if no connection was opened, as the host has enough or the connection failed.
+     */
+    private boolean prewarm(GenericUrl url, int connections) {
+        try {
+            return pool.prewarm(url.toURL(), connections, connectTimeout);
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return number of requests answered with the response of an identical request in flight, always 0 unless
+     * enabled with {@link Builder#coalesceRequests(boolean)}.
+     */
+    public long getCoalescedCount() {
+        return singleFlight != null ? singleFlight.getCoalescedCount() : 0;
+    }
+
+    /**
+     * Shuts down the {@link PooledHttpTransport} created by the client for itself, see
+     * {@link Builder#resolver(HostResolver)} and {@link Builder#prewarm(int, GenericUrl...)}: its idle connections are
+     * closed and its eviction thread stopped. Nothing is done otherwise, a transport set with
+     * {@link Builder#transport(HttpTransport)} being left to its owner. The client must not be used afterwards.
+     */
+    public void shutdown() {
+        if (ownTransport != null)
+            ownTransport.shutdown();
+    }
+
     /**
      * Sends an HTTP request.
      *
@@ -347,24 +1065,270 @@ public final class HttpClient {
      * @throws IllegalArgumentException if {@code body} supplied with either GET, HEAD, or DELETE request.
      */
     HttpResponse send(
-            GenericUrl url,
-            String method,
+            final GenericUrl url,
+            final String method,
             HttpHeaders headers,
-            boolean followRedirects,
-            HttpContent body) throws IOException {
+            final boolean followRedirects,
+            final HttpContent body) throws IOException {
+        return send(url, method, headers, followRedirects, body, true);
+    }
+
+    /**
+     * Sends an HTTP request, possibly not coalesced.
+     *
+     * @param coalesce {@code false} for a request whose body is streamed by the caller, which must not be buffered by
+     *                 the request coalescing; has no effect unless coalescing is enabled.
+     * @see #send(GenericUrl, String, HttpHeaders, boolean, HttpContent)
+     */
+    private HttpResponse send(
+            final GenericUrl url,
+            final String method,
+            HttpHeaders headers,
+            final boolean followRedirects,
+            final HttpContent body,
+            boolean coalesce) throws IOException {
 
         requireNonNull(url, "Request URL instance must not be null!");
 
         if (("GET".equals(method) || "HEAD".equals(method) || "DELETE".equals(method)) && body != null)
             throw new IllegalArgumentException("Body must not be supplied for GET/HEAD/DELETE request!");
 
+        final HttpHeaders requestHeaders = commonHeaders.merge(headers);
+        final RetryPolicy.Attempt dispatch = new RetryPolicy.Attempt() {
+            @Override
+            public HttpResponse execute() throws IOException {
+                // the request mutates its headers (cookies, user agent, redirects), so every attempt and hedge gets its own
+                return dispatch(url, method, requestHeaders.clone(), followRedirects, body);
+            }
+        };
+        final RetryPolicy.Attempt attempt;
+        if (hedgePolicy != null && ("GET".equals(method) || "HEAD".equals(method))) {
+            // every attempt is hedged on its own
+            attempt = new RetryPolicy.Attempt() {
+                @Override
+                public HttpResponse execute() throws IOException {
+                    return hedgePolicy.execute(hostKey(url), executor, dispatch);
+                }
+            };
+        } else {
+            attempt = dispatch;
+        }
+        if (coalesce && singleFlight != null && ("GET".equals(method) || "HEAD".equals(method))) {
+            // only the leader retries, the coalesced requests share its final outcome
+            return singleFlight.execute(method, url, requestHeaders, followRedirects, new SingleFlight.Call() {
+                @Override
+                public HttpResponse execute() throws IOException {
+                    return retry(method, body, attempt);
+                }
+            });
+        }
+        return retry(method, body, attempt);
+    }
+
+    private HttpResponse retry(String method, HttpContent body, RetryPolicy.Attempt attempt) throws IOException {
+        return retryPolicy != null ? retryPolicy.execute(method, body, attempt) : attempt.execute();
+    }
+
+    /**
+     * Sends an HTTP request through the cache, if any.
+     *
+     * @param requestHeaders complete request headers, the common ones included.
+     */
+    private HttpResponse dispatch(
+            final GenericUrl url,
+            final String method,
+            HttpHeaders requestHeaders,
+            final boolean followRedirects,
+            final HttpContent body) throws IOException {
+
+        if (cache == null)
+            return execute(url, method, requestHeaders, followRedirects, body);
+
+        if ("GET".equals(method)) {
+            return cache.get(url, requestHeaders, new HttpCache.Network() {
+                @Override
+                public HttpResponse execute(HttpHeaders h) throws IOException {
+                    return HttpClient.this.execute(url, method, h, followRedirects, body);
+                }
+            });
+        }
+        HttpResponse resp = execute(url, method, requestHeaders, followRedirects, body);
+        if (!"HEAD".equals(method) && resp.getStatusCode() < 400)
+            cache.invalidate(url);
+        return resp;
+    }
+
+    /**
+     * Sends an HTTP request through the transport.
+     *
+     * @param requestHeaders complete request headers, the common ones included.
+     */
+    private HttpResponse execute(
+            GenericUrl url,
+            String method,
+            HttpHeaders requestHeaders,
+            boolean followRedirects,
+            HttpContent body) throws IOException {
+
         HttpRequest req = factory.buildRequest(method, url, body);
-        if (headers != null)
-            req.getHeaders().putAll(headers);
+        req.setHeaders(requestHeaders);
+        if (cookies != null) {
+            CookieInterceptor interceptor = new CookieInterceptor(req.getHeaders().getCookie());
+            req.setInterceptor(interceptor);
+            req.setUnsuccessfulResponseHandler(interceptor);
+            req.setResponseInterceptor(interceptor);
+        }
 
         req.setFollowRedirects(followRedirects);
 
-        return req.execute();
+        if (rateLimiter == null)
+            return guard(req, method, url);
+
+        String host = hostKey(url);
+        InFlightCall call = InFlightCall.current();
+        if (call == null || !call.usePermit(host))
+            rateLimiter.acquire(host);
+        HttpResponse resp = guard(req, method, url);
+        rateLimiter.update(host, resp);
+        return resp;
+    }
+
+    /**
+     * Executes a request through the circuit breaker and the concurrency limiter, if any.
+     */
+    private HttpResponse guard(HttpRequest req, String method, GenericUrl url) throws IOException {
+        if (circuitBreaker == null && concurrencyLimiter == null)
+            return transmit(req, method, url);
+
+        String host = hostKey(url);
+        ConcurrencyLimiter.Limit limit = concurrencyLimiter != null ? concurrencyLimiter.acquire(host) : null;
+        CircuitBreaker.Token token = null;
+        if (circuitBreaker != null) {
+            try {
+                token = circuitBreaker.acquire(host);
+            } catch (RequestRejectedException e) {
+                if (limit != null)
+                    concurrencyLimiter.cancel(limit);
+                throw e;
+            }
+        }
+        long start = System.nanoTime();
+        HttpResponse resp;
+        try {
+            resp = transmit(req, method, url);
+        } catch (IOException | RuntimeException e) {
+            if (limit != null)
+                concurrencyLimiter.release(limit, System.nanoTime() - start, e instanceof SocketTimeoutException);
+            // a request aborted by the caller, e.g. a losing hedge, tells nothing about the host
+            InFlightCall call = InFlightCall.current();
+            if (token != null && (call == null || !call.isAborted()))
+                circuitBreaker.record(token, false);
+            throw e;
+        }
+        int status = resp.getStatusCode();
+        if (limit != null)
+            concurrencyLimiter.release(limit, System.nanoTime() - start, status == 429 || status == 503);
+        if (token != null)
+            circuitBreaker.record(token, status < 500);
+        return resp;
+    }
+
+    /**
+     * Executes a request, measuring it if metrics are enabled.
+     */
+    private HttpResponse transmit(HttpRequest req, String method, GenericUrl url) throws IOException {
+        if (metrics == null)
+            return req.execute();
+
+        MeteredTransport.Exchange exchange = MeteredTransport.begin(metrics, method, url);
+        HttpResponse resp;
+        try {
+            resp = req.execute();
+        } catch (IOException | RuntimeException e) {
+            exchange.failed(e);
+            throw e;
+        } finally {
+            MeteredTransport.end();
+        }
+        exchange.responseReceived(resp);
+        return resp;
+    }
+
+    /**
+     * @return {@code host:port} of the URL, the port defaulting to the scheme's one.
+     */
+    private static String hostKey(GenericUrl url) {
+        int port = url.getPort();
+        if (port < 0)
+            port = "https".equalsIgnoreCase(url.getScheme()) ? 443 : 80;
+        return url.getHost() + ":" + port;
+    }
+
+    /**
+     * Sends the cookies stored for the URL of every request (redirects included) and stores the received ones.
+     * Redirect and error responses are seen by the unsuccessful response handler, the final successful one by the
+     * response interceptor.
+     */
+    private final class CookieInterceptor
+            implements HttpExecuteInterceptor, HttpUnsuccessfulResponseHandler, HttpResponseInterceptor {
+
+        private final String explicitCookie;
+
+        CookieInterceptor(String explicitCookie) {
+            this.explicitCookie = explicitCookie;
+        }
+
+        @Override
+        public void intercept(HttpRequest req) throws IOException {
+            Map<String, List<String>> stored =
+                    cookies.get(toUri(req.getUrl()), Collections.<String, List<String>>emptyMap());
+            StringBuilder sb = new StringBuilder();
+            if (explicitCookie != null)
+                sb.append(explicitCookie);
+            List<String> values = stored.get("Cookie");
+            if (values != null) {
+                for (String v : values) {
+                    if (sb.length() > 0)
+                        sb.append("; ");
+                    sb.append(v);
+                }
+            }
+            req.getHeaders().setCookie(sb.length() > 0 ? sb.toString() : null);
+        }
+
+        @Override
+        public boolean handleResponse(HttpRequest req, HttpResponse resp, boolean supportsRetry) throws IOException {
+            store(resp);
+            return false;
+        }
+
+        @Override
+        public void interceptResponse(HttpResponse resp) throws IOException {
+            if (resp.isSuccessStatusCode())
+                store(resp);
+        }
+
+        private void store(HttpResponse resp) throws IOException {
+            List<String> setCookie = resp.getHeaders().getHeaderStringValues("Set-Cookie");
+            if (!setCookie.isEmpty())
+                cookies.put(toUri(resp.getRequest().getUrl()),
+                        Collections.singletonMap("Set-Cookie", setCookie));
+        }
+
+        private URI toUri(GenericUrl url) throws IOException {
+            try {
+                return url.toURI();
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid request URL: " + url.build(), e);
+            }
+        }
+    }
+
+    /**
+     * Creates the shared HTTP/2 transport on first use.
+     */
+    private static final class Http2Holder {
+        static final HttpTransport TRANSPORT = new Http2Transport.Builder().build();
     }
 
     /**
@@ -376,6 +1340,25 @@ public final class HttpClient {
         int timeout = 0;
         HttpHeaders headers = new HttpHeaders();
         int readTimeout = 0;
+        Executor executor;
+        int maxInFlight = 256;
+        HttpTransport transport;
+        boolean http2;
+        HostResolver resolver;
+        CookieStore cookieStore;
+        CookiePolicy cookiePolicy = CookiePolicy.ACCEPT_ALL;
+        HttpCache cache;
+        boolean coalesceRequests;
+        HttpClientMetrics metrics;
+        boolean decodeResponses;
+        ContentCoding requestCoding;
+        long minCompressedLength;
+        RetryPolicy retryPolicy;
+        HedgePolicy hedgePolicy;
+        CircuitBreaker circuitBreaker;
+        ConcurrencyLimiter concurrencyLimiter;
+        RateLimiter rateLimiter;
+        final Map<GenericUrl, Integer> prewarm = new LinkedHashMap<>();
 
         /**
          * Sets User-Agent header.
@@ -449,7 +1432,266 @@ public final class HttpClient {
         }
 
         /**
-         * Constructs {@code HttpClient} object.
+         * Enables or disables cookie handling. When enabled, the client keeps cookies in its own
+         * {@link ShardedCookieStore} with the default limits. Disabled by default: responses' {@code Set-Cookie}
+         * headers are not even parsed.
+         *
+         * @param val {@code true} or {@code false}
+         * @return a {@code Builder} instance.
+         */
+        public Builder cookies(boolean val) {
+            this.cookieStore = val ? new ShardedCookieStore.Builder().build() : null;
+            return this;
+        }
+
+        /**
+         * Enables cookie handling backed by the given store, e.g. a {@link ShardedCookieStore} with custom limits.
+         *
+         * @param store cookie store; may be shared by several clients.
+         * @return a {@code Builder} instance.
+         */
+        public Builder cookieStore(CookieStore store) {
+            this.cookieStore = requireNonNull(store, "Cookie store must not be null!");
+            return this;
+        }
+
+        /**
+         * Sets the policy deciding which cookies are accepted. Default is {@link CookiePolicy#ACCEPT_ALL}.
+         *
+         * @param policy cookie policy.
+         * @return a {@code Builder} instance.
+         */
+        public Builder cookiePolicy(CookiePolicy policy) {
+            this.cookiePolicy = requireNonNull(policy, "Cookie policy must not be null!");
+            return this;
+        }
+
+        /**
+         * Enables response caching for GET requests. Disabled by default.
+         *
+         * @param cache response cache; may be shared by several clients sending the same common headers.
+         * @return a {@code Builder} instance.
+         */
+        public Builder cache(HttpCache cache) {
+            this.cache = requireNonNull(cache, "Cache must not be null!");
+            return this;
+        }
+
+        /**
+         * Enables request coalescing: while a GET or HEAD request is in flight, identical requests (same method, URL,
+         * headers and redirect handling) sent by other threads wait for it and receive a copy of its response
+         * instead of reaching the server. Coalesced responses are read completely into memory, up to 1 MiB of a body
+         * of known length: a larger body, or one of unknown length, is only received by the request which was sent.
+         * Disabled by default.
+         *
+         * @param val {@code true} or {@code false}
+         * @return a {@code Builder} instance.
+         */
+        public Builder coalesceRequests(boolean val) {
+            this.coalesceRequests = val;
+            return this;
+        }
+
+        /**
+         * Sets the {@code Accept-Encoding} header to the given codings, e.g. {@code gzip, deflate}, or to
+         * {@code identity} if none is given. Compressed response bodies are decoded transparently with pooled
+         * inflaters: the response exposes the decoded body and neither a {@code Content-Encoding} nor a
+         * {@code Content-Length} header. By default only {@code gzip} is accepted, and decoded with a new inflater per
+         * response.
+         *
+         * @param codings accepted codings, in order of preference.
+         * @return a {@code Builder} instance.
+         */
+        public Builder acceptEncoding(ContentCoding... codings) {
+            StringBuilder sb = new StringBuilder();
+            for (ContentCoding coding : codings) {
+                requireNonNull(coding, "Content coding must not be null!");
+                if (sb.length() > 0)
+                    sb.append(", ");
+                sb.append(coding.getName());
+            }
+            this.headers.setAcceptEncoding(sb.length() > 0 ? sb.toString() : "identity");
+            this.decodeResponses = true;
+            return this;
+        }
+
+        /**
+         * Compresses request bodies of at least {@code minLength} bytes, which are then sent chunked with a
+         * {@code Content-Encoding} header; the server must support it. Bodies of unknown length, or already encoded,
+         * are sent as is. Disabled by default.
+         *
+         * @param coding    request body coding.
+         * @param minLength minimum length of a body to be compressed, in bytes.
+         * @return a {@code Builder} instance.
+         */
+        public Builder compressRequests(ContentCoding coding, long minLength) {
+            if (minLength < 0)
+                throw new IllegalArgumentException("Min compressed length must not be negative!");
+            this.requestCoding = requireNonNull(coding, "Content coding must not be null!");
+            this.minCompressedLength = minLength;
+            return this;
+        }
+
+        /**
+         * Registers a listener receiving the timings, byte counts and status of every request sent to the transport,
+         * e.g. a {@link DefaultHttpClientMetrics}.
+         *
+         * @param metrics metrics listener; may be shared by several clients.
+         * @return a {@code Builder} instance.
+         */
+        public Builder metrics(HttpClientMetrics metrics) {
+            this.metrics = requireNonNull(metrics, "Metrics must not be null!");
+            return this;
+        }
+
+        /**
+         * Enables retries of the idempotent requests (GET, HEAD, PUT, DELETE) failing with an I/O error or a
+         * retryable status, with exponential backoff and a retry budget. Disabled by default.
+         *
+         * @param policy retry policy; clients sharing it share its budget.
+         * @return a {@code Builder} instance.
+         */
+        public Builder retryPolicy(RetryPolicy policy) {
+            this.retryPolicy = requireNonNull(policy, "Retry policy must not be null!");
+            return this;
+        }
+
+        /**
+         * Enables hedging of GET and HEAD requests: a request not answered within a delay is sent once more, and the
+         * first response wins. Disabled by default.
+         *
+         * @param policy hedging policy; clients sharing it share its budget and the latencies of the hosts.
+         * @return a {@code Builder} instance.
+         */
+        public Builder hedgePolicy(HedgePolicy policy) {
+            this.hedgePolicy = requireNonNull(policy, "Hedge policy must not be null!");
+            return this;
+        }
+
+        /**
+         * Enables a circuit breaker per host: requests to a host failing repeatedly are rejected with a
+         * {@link RequestRejectedException} for a while. Disabled by default.
+         *
+         * @param breaker circuit breaker; clients sharing it share the state of the hosts.
+         * @return a {@code Builder} instance.
+         */
+        public Builder circuitBreaker(CircuitBreaker breaker) {
+            this.circuitBreaker = requireNonNull(breaker, "Circuit breaker must not be null!");
+            return this;
+        }
+
+        /**
+         * Enables an adaptive limit of the requests in flight per host: requests beyond it are rejected with a
+         * {@link RequestRejectedException} instead of waiting. Disabled by default.
+         *
+         * @param limiter concurrency limiter; clients sharing it share the limits of the hosts.
+         * @return a {@code Builder} instance.
+         */
+        public Builder concurrencyLimiter(ConcurrencyLimiter limiter) {
+            this.concurrencyLimiter = requireNonNull(limiter, "Concurrency limiter must not be null!");
+            return this;
+        }
+
+        /**
+         * Enables a rate limit of the requests, globally and per host: requests wait for their permit, or are
+         * rejected with a {@link RequestRejectedException} if it is too far away. Disabled by default.
+         *
+         * @param limiter rate limiter; clients sharing it share the limits.
+         * @return a {@code Builder} instance.
+         */
+        public Builder rateLimiter(RateLimiter limiter) {
+            this.rateLimiter = requireNonNull(limiter, "Rate limiter must not be null!");
+            return this;
+        }
+
+        /**
+         * Sets the low-level HTTP transport, e.g. a {@link PooledHttpTransport}. By default, a transport based on
+         * java.net.HttpURLConnection shared by all the HttpClient instances is used.
+         *
+         * @param transport HTTP transport; the client does not shut it down.
+         * @return a {@code Builder} instance.
+         */
+        public Builder transport(HttpTransport transport) {
+            this.transport = requireNonNull(transport, "Transport must not be null!");
+            return this;
+        }
+
+        /**
+         * Selects the HTTP/2 transport: concurrent requests to a host are multiplexed over a single connection, h2
+         * over TLS or h2c for plaintext, falling back to HTTP/1.1 if the server supports neither. A transport shared by
+         * all the HttpClient instances is used, see {@link Http2Transport} to configure one. Ignored if a transport is
+         * set with {@link #transport(HttpTransport)}. Disabled by default.
+         *
+         * @param val {@code true} or {@code false}
+         * @return a {@code Builder} instance.
+         */
+        public Builder http2(boolean val) {
+            this.http2 = val;
+            return this;
+        }
+
+        /**
+         * Sets the resolver of host addresses, e.g. a {@link CachingResolver}. The client then sends requests through
+         * its own {@link PooledHttpTransport}, racing the addresses of multi-homed hosts, and must be shut down with
+         * {@link HttpClient#shutdown()} once no longer used. Ignored if a transport is set with
+         * {@link #transport(HttpTransport)}, see {@link PooledHttpTransport.Builder#resolver(HostResolver)}, or if HTTP/2
+         * is selected.
+         *
+         * @param resolver host resolver.
+         * @return a {@code Builder} instance.
+         */
+        public Builder resolver(HostResolver resolver) {
+            this.resolver = requireNonNull(resolver, "Resolver must not be null!");
+            return this;
+        }
+
+        /**
+         * Sets hosts to be connected to ahead of the requests by {@link HttpClient#warmUp()}. The client then sends
+         * requests through its own {@link PooledHttpTransport}, to be shut down with {@link HttpClient#shutdown()},
+         * unless a transport is set with {@link #transport(HttpTransport)}, which must then be a
+         * {@code PooledHttpTransport}.
+         *
+         * @param connections number of connections to every host, at most the transport's maximum per route.
+         * @param urls        URLs of the hosts; only their scheme, host and port matter.
+         * @return a {@code Builder} instance.
+         */
+        public Builder prewarm(int connections, GenericUrl... urls) {
+            if (connections < 1)
+                throw new IllegalArgumentException("Connections must be positive!");
+            for (GenericUrl url : urls)
+                this.prewarm.put(requireNonNull(url, "Pre-warmed URL must not be null!").clone(), connections);
+            return this;
+        }
+
+        /**
+         * Sets the executor running asynchronous requests. By default, a shared virtual-thread-per-task executor is
+         * used on JDK 21+, and a shared bounded pool of daemon threads otherwise.
+         *
+         * @param executor an executor; the client does not shut it down.
+         * @return a {@code Builder} instance.
+         */
+        public Builder executor(Executor executor) {
+            this.executor = requireNonNull(executor, "Executor must not be null!");
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of asynchronous requests in flight. Callers of the {@code *Async} methods block
+         * once the limit is reached. Default is 256.
+         *
+         * @param max maximum number of concurrent asynchronous requests.
+         * @return a {@code Builder} instance.
+         */
+        public Builder maxInFlight(int max) {
+            if (max < 1)
+                throw new IllegalArgumentException("Max in-flight requests must be positive!");
+            this.maxInFlight = max;
+            return this;
+        }
+
+        /**
+         * Constructs {@code HttpClient} object. The common headers are copied, so changing this builder afterwards
+         * does not affect the constructed instance.
          *
          * @return a {@code HttpClient} instance.
          */
@@ -0,0 +1,35 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+/**
+ * Receives the metrics of every request sent by an {@link HttpClient} to its transport, see
+ * {@link HttpClient.Builder#metrics(HttpClientMetrics)}. Responses served by the cache or shared by coalesced requests
+ * are not reported, only the request which actually reached the server is.<br/>
+ * A request is reported once its response body has been read to the end, closed or disconnected, or right away when
+ * the response has no body or the request fails. The listener is called on the thread completing the request, so it
+ * must be thread-safe and fast. {@link DefaultHttpClientMetrics} aggregates the metrics in histograms and counters.
+ */
+public interface HttpClientMetrics {
+
+    /**
+     * Called once per request.
+     *
+     * @param metrics metrics of the request.
+     */
+    void requestCompleted(RequestMetrics metrics);
+}
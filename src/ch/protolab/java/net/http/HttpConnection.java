@@ -0,0 +1,486 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A persistent HTTP/1.1 connection to a single route (scheme, host and port) owned by {@link PooledHttpTransport}.
+ */
+final class HttpConnection implements Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int SCRATCH_SIZE = 256;
+
+    /**
+     * Response header names returned as constants when a header line matches one of them, ignoring case.
+     */
+    private static final String[] KNOWN_HEADERS = {
+            "Accept-Ranges", "Age", "Cache-Control", "Connection", "Content-Encoding", "Content-Length",
+            "Content-Type", "Date", "ETag", "Expires", "Keep-Alive", "Last-Modified", "Location", "Retry-After",
+            "Server", "Set-Cookie", "Transfer-Encoding", "Vary"
+    };
+
+    /**
+     * Runs the connection attempts racing to a host with several addresses.
+     */
+    private static final ExecutorService CONNECTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger seq = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "http-connect-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    final String route;
+    final Socket socket;
+    final InputStream in;
+    final OutputStream out;
+    final long createdNanos;
+
+    /**
+     * Set when the TLS handshake of the connection resumed a cached session rather than negotiating a new one.
+     */
+    boolean sessionResumed;
+
+    /**
+     * Set when the connection is taken from the pool rather than freshly opened.
+     */
+    boolean reused;
+    long idleSinceNanos;
+
+    /**
+     * Response line buffer, and encoding buffer for the request head: a connection serves one exchange at a time.
+     */
+    private byte[] line = new byte[SCRATCH_SIZE];
+    private final byte[] scratch = new byte[SCRATCH_SIZE];
+
+    private volatile boolean closed;
+
+    private HttpConnection(String route, Socket socket) throws IOException {
+        this.route = route;
+        this.socket = socket;
+        this.in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+        this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        this.createdNanos = System.nanoTime();
+    }
+
+    /**
+     * Opens a connection, performing the TLS handshake for secure routes. The handshake resumes the session cached
+     * for the host and port by the context of the socket factory, if any.
+     *
+     * @param route          route key.
+     * @param host           host name, without IPv6 brackets.
+     * @param port           port.
+     * @param ssl            socket factory for secure routes, {@code null} for plain ones.
+     * @param resolver       resolver of the host addresses.
+     * @param connectTimeout connect timeout in milliseconds, 0 for no timeout.
+     * @param attemptDelay   delay in milliseconds before racing the next address of a host, see
+     *                       {@link #connect(List, int, int, long)}.
+     * @return an open connection.
+     * @throws IOException if the connection cannot be established.
+     */
+    static HttpConnection open(String route, String host, int port, SSLSocketFactory ssl, HostResolver resolver,
+                               int connectTimeout, long attemptDelay) throws IOException {
+        Socket socket = connect(interleave(resolver.resolve(host)), port, connectTimeout, attemptDelay);
+        try {
+            boolean resumed = false;
+            if (ssl != null) {
+                SSLSocket tls = (SSLSocket) ssl.createSocket(socket, host, port, true);
+                SSLParameters params = tls.getSSLParameters();
+                params.setEndpointIdentificationAlgorithm("HTTPS");
+                tls.setSSLParameters(params);
+                socket = tls;
+                long start = System.currentTimeMillis();
+                tls.startHandshake();
+                // a resumed session keeps the creation time of the handshake which negotiated it
+                resumed = tls.getSession().getCreationTime() < start;
+            }
+            HttpConnection c = new HttpConnection(route, socket);
+            c.sessionResumed = resumed;
+            return c;
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Connects to the first address answering, Happy Eyeballs style (RFC 8305): an attempt is started every
+     * {@code attemptDelay} milliseconds, or as soon as the previous one fails, until one succeeds; the other sockets
+     * are then closed.
+     *
+     * @param addresses      addresses to try, in order of preference.
+     * @param port           port.
+     * @param connectTimeout overall connect timeout in milliseconds, 0 for no timeout.
+     * @param attemptDelay   delay in milliseconds before starting the next attempt.
+     * @return a connected socket.
+     * @throws IOException the last error if no address can be connected to.
+     */
+    static Socket connect(List<InetAddress> addresses, int port, int connectTimeout, long attemptDelay)
+            throws IOException {
+        if (addresses.size() == 1) {
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(addresses.get(0), port), connectTimeout);
+                return socket;
+            } catch (IOException | RuntimeException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        final BlockingQueue<Object> results = new LinkedBlockingQueue<>();
+        List<Socket> sockets = new ArrayList<>(addresses.size());
+        Socket winner = null;
+        long deadline = connectTimeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectTimeout) : 0;
+        IOException last = null;
+        int failed = 0;
+        try {
+            while (winner == null) {
+                if (sockets.size() < addresses.size()) {
+                    final Socket socket = new Socket();
+                    final InetSocketAddress address = new InetSocketAddress(addresses.get(sockets.size()), port);
+                    final int timeout = connectTimeout;
+                    sockets.add(socket);
+                    CONNECTOR.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                socket.setTcpNoDelay(true);
+                                socket.connect(address, timeout);
+                                results.add(socket);
+                            } catch (IOException e) {
+                                results.add(e);
+                            }
+                        }
+                    });
+                }
+                long wait = sockets.size() < addresses.size() ? attemptDelay : Long.MAX_VALUE;
+                if (deadline != 0) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0)
+                        throw new SocketTimeoutException("Connect timed out");
+                    wait = Math.min(wait, remaining);
+                }
+                Object result = results.poll(wait, TimeUnit.MILLISECONDS);
+                if (result instanceof Socket) {
+                    winner = (Socket) result;
+                } else if (result != null) {
+                    last = (IOException) result;
+                    if (++failed == addresses.size())
+                        throw last;
+                }
+            }
+            return winner;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting");
+        } finally {
+            for (Socket socket : sockets)
+                if (socket != winner)
+                    closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Orders addresses alternating between families, starting with the family of the first one, so that a
+     * connection race does not wait on every address of a broken family first.
+     *
+     * @param addresses resolved addresses, in order of preference.
+     * @return interleaved addresses.
+     */
+    static List<InetAddress> interleave(List<InetAddress> addresses) {
+        if (addresses.size() < 3)
+            return addresses;
+        boolean firstIpv6 = addresses.get(0) instanceof Inet6Address;
+        List<InetAddress> preferred = new ArrayList<>();
+        List<InetAddress> other = new ArrayList<>();
+        for (InetAddress a : addresses)
+            ((a instanceof Inet6Address) == firstIpv6 ? preferred : other).add(a);
+        List<InetAddress> result = new ArrayList<>(addresses.size());
+        for (int i = 0; i < Math.max(preferred.size(), other.size()); i++) {
+            if (i < preferred.size())
+                result.add(preferred.get(i));
+            if (i < other.size())
+                result.add(other.get(i));
+        }
+        return result;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Reads a CRLF (or LF) terminated line.
+     *
+     * @return the line without the terminator.
+     * @throws IOException if the stream ends before the line is complete, or the line is too long.
+     */
+    String readLine() throws IOException {
+        int len = fillLine();
+        return len == 0 ? "" : new String(line, 0, len, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Reads a line without decoding it, e.g. the CRLF after chunk data or a trailer.
+     *
+     * @return length of the line without the terminator.
+     * @throws IOException if the stream ends before the line is complete, or the line is too long.
+     */
+    int skipLine() throws IOException {
+        return fillLine();
+    }
+
+    /**
+     * Reads a header line, skipping lines without a name. Well-known header names are returned as constants rather
+     * than decoded.
+     *
+     * @param names  receives the header name.
+     * @param values receives the header value, without surrounding whitespace.
+     * @return {@code false} if the empty line ending the header section has been read instead.
+     * @throws IOException if the stream ends before the line is complete, or the line is too long.
+     */
+    boolean readHeader(List<String> names, List<String> values) throws IOException {
+        int len;
+        int colon;
+        do {
+            len = fillLine();
+            if (len == 0)
+                return false;
+            colon = 0;
+            while (colon < len && line[colon] != ':')
+                colon++;
+        } while (colon == 0 || colon == len);
+
+        int nameStart = 0;
+        int nameEnd = colon;
+        while (nameStart < nameEnd && (line[nameStart] & 0xFF) <= ' ')
+            nameStart++;
+        while (nameEnd > nameStart && (line[nameEnd - 1] & 0xFF) <= ' ')
+            nameEnd--;
+        int valueStart = colon + 1;
+        int valueEnd = len;
+        while (valueStart < valueEnd && (line[valueStart] & 0xFF) <= ' ')
+            valueStart++;
+        while (valueEnd > valueStart && (line[valueEnd - 1] & 0xFF) <= ' ')
+            valueEnd--;
+
+        names.add(headerName(nameStart, nameEnd));
+        values.add(valueEnd == valueStart ? "" : new String(line, valueStart, valueEnd - valueStart,
+                StandardCharsets.ISO_8859_1));
+        return true;
+    }
+
+    /**
+     * Reads a chunk size line, ignoring chunk extensions.
+     *
+     * @return the chunk size.
+     * @throws IOException if the stream ends before the line is complete, or the size is invalid.
+     */
+    long readChunkSize() throws IOException {
+        int len = fillLine();
+        int i = 0;
+        while (i < len && (line[i] == ' ' || line[i] == '\t'))
+            i++;
+        long size = 0;
+        int digits = 0;
+        for (; i < len && line[i] != ';' && line[i] != ' ' && line[i] != '\t'; i++, digits++) {
+            int d = Character.digit(line[i], 16);
+            if (d < 0 || digits == 15)
+                throw invalidChunkSize(len);
+            size = size << 4 | d;
+        }
+        if (digits == 0)
+            throw invalidChunkSize(len);
+        return size;
+    }
+
+    private ProtocolException invalidChunkSize(int len) {
+        return new ProtocolException("Invalid chunk size: " + new String(line, 0, len, StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Reads a line into {@link #line}, growing it up to {@link #MAX_LINE_LENGTH}.
+     *
+     * @return length of the line without the terminator.
+     */
+    private int fillLine() throws IOException {
+        int len = 0;
+        for (; ; ) {
+            int b = in.read();
+            if (b == -1)
+                throw new EOFException("Connection closed by peer");
+            if (b == '\n')
+                break;
+            if (len == line.length) {
+                if (len >= MAX_LINE_LENGTH)
+                    throw new ProtocolException("Response line too long");
+                line = Arrays.copyOf(line, Math.min(len * 2, MAX_LINE_LENGTH));
+            }
+            line[len++] = (byte) b;
+        }
+        if (len > 0 && line[len - 1] == '\r')
+            len--;
+        return len;
+    }
+
+    private String headerName(int start, int end) {
+        int len = end - start;
+        for (String known : KNOWN_HEADERS) {
+            if (known.length() != len)
+                continue;
+            int i = 0;
+            while (i < len && toLowerCase(line[start + i]) == toLowerCase(known.charAt(i)))
+                i++;
+            if (i == len)
+                return known;
+        }
+        return new String(line, start, len, StandardCharsets.ISO_8859_1);
+    }
+
+    private static int toLowerCase(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    /**
+     * Writes pre-encoded bytes, e.g. a header line.
+     *
+     * @param bytes bytes to write.
+     * @throws IOException if the write fails.
+     */
+    void write(byte[] bytes) throws IOException {
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Writes a string in ISO-8859-1 through the connection's scratch buffer; characters outside the charset are
+     * written as '?'.
+     *
+     * @param s string to write.
+     * @throws IOException if the write fails.
+     */
+    void write(String s) throws IOException {
+        int length = s.length();
+        for (int off = 0; off < length; ) {
+            int n = Math.min(scratch.length, length - off);
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(off + i);
+                scratch[i] = (byte) (c <= 0xFF ? c : '?');
+            }
+            out.write(scratch, 0, n);
+            off += n;
+        }
+    }
+
+    /**
+     * Writes a non-negative decimal number.
+     *
+     * @param value number to write.
+     * @throws IOException if the write fails.
+     */
+    void write(long value) throws IOException {
+        int pos = scratch.length;
+        do {
+            scratch[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        out.write(scratch, pos, scratch.length - pos);
+    }
+
+    /**
+     * Reads the messages sent by a TLS 1.3 server after the handshake, which carry the session tickets: until then the
+     * session cannot be resumed by other connections. Only for a connection which has not been used yet, as the
+     * server sends nothing else before a request.
+     *
+     * @param millis how long to wait for the tickets.
+     * @throws IOException if the connection failed meanwhile.
+     */
+    void awaitSessionTickets(int millis) throws IOException {
+        if (!(socket instanceof SSLSocket) || !"TLSv1.3".equals(((SSLSocket) socket).getSession().getProtocol()))
+            return;
+        int timeout = socket.getSoTimeout();
+        socket.setSoTimeout(millis);
+        try {
+            in.mark(1);
+            if (in.read() == -1)
+                throw new EOFException("Connection closed by the server");
+            in.reset();
+        } catch (SocketTimeoutException e) {
+            // no application data, as expected
+        } finally {
+            socket.setSoTimeout(timeout);
+        }
+    }
+
+    void setReadTimeout(int millis) throws SocketException {
+        socket.setSoTimeout(millis);
+    }
+
+    boolean isOpen() {
+        return !closed && !socket.isClosed() && !socket.isInputShutdown() && !socket.isOutputShutdown();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // nothing to do
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tracks the low-level resources (connections, sockets) of a request executed on behalf of an asynchronous call,
+ * so that cancelling the call actually tears the underlying connection down.<br/>
+ * The call is bound to the executing thread for the duration of {@link HttpClient#send}; transports register their
+ * resources through {@link #attach(Closeable)}.
+ */
+final class InFlightCall {
+
+    private static final ThreadLocal<InFlightCall> CURRENT = new ThreadLocal<>();
+
+    private final CopyOnWriteArrayList<Closeable> resources = new CopyOnWriteArrayList<>();
+    private volatile boolean aborted;
+    private volatile String permit;
+
+    /**
+     * Binds the call to the current thread.
+     *
+     * @param call the call, or {@code null} to unbind.
+     */
+    static void bind(InFlightCall call) {
+        if (call == null)
+            CURRENT.remove();
+        else
+            CURRENT.set(call);
+    }
+
+    /**
+     * @return the call bound to the current thread, or {@code null}.
+     */
+    static InFlightCall current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Registers a resource with the call bound to the current thread. No-op if no call is bound.
+     *
+     * @param resource a resource to be closed if the call gets aborted.
+     * @throws IOException if the call has already been aborted; the resource is closed in that case.
+     */
+    static void attach(Closeable resource) throws IOException {
+        InFlightCall call = CURRENT.get();
+        if (call != null)
+            call.register(resource);
+    }
+
+    void register(Closeable resource) throws IOException {
+        resources.add(resource);
+        if (aborted) {
+            closeQuietly(resource);
+            throw new IOException("Request has been cancelled");
+        }
+    }
+
+    /**
+     * Records a rate limit permit taken for the call's first request before it was scheduled.
+     *
+     * @param host {@code host:port} of the permit.
+     */
+    void prepay(String host) {
+        permit = host;
+    }
+
+    /**
+     * Uses the permit taken in advance, if any, for a request to the host.
+     *
+     * @param host {@code host:port}.
+     * @return {@code true} if the request needs no other permit.
+     */
+    boolean usePermit(String host) {
+        if (!host.equals(permit))
+            return false;
+        permit = null;
+        return true;
+    }
+
+    boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Closes all the resources registered so far; the ones registered later are closed immediately.
+     */
+    void abort() {
+        aborted = true;
+        for (Closeable c : resources)
+            closeQuietly(c);
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException | RuntimeException ignored) {
+            // the connection is being torn down anyway
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with log-linear buckets, in the manner of HdrHistogram.<br/>
+ * Values are recorded in microseconds: exactly below 128 us, and with a relative error under 1/64 above, up to
+ * about 12 days. Each thread records into one of several stripes, so concurrent writers rarely share a cache line;
+ * readers sum the stripes without blocking the writers, so a read taken under load is a consistent-enough estimate
+ * rather than an atomic snapshot.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 128;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int MAX_SHIFT = 33;
+    private static final int BUCKETS = SUB_BUCKETS + MAX_SHIFT * HALF;
+    private static final long MAX_VALUE = ((long) SUB_BUCKETS << MAX_SHIFT) - 1;
+
+    private final AtomicLongArray[] stripes;
+    private final int mask;
+
+    public LatencyHistogram() {
+        int n = Integer.highestOneBit(Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors())) * 2 - 1);
+        stripes = new AtomicLongArray[n];
+        for (int i = 0; i < n; i++)
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        mask = n - 1;
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos latency in nanoseconds; negative values are ignored.
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            return;
+        long micros = Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), MAX_VALUE);
+        stripes[(int) Thread.currentThread().getId() & mask].incrementAndGet(index(micros));
+    }
+
+    /**
+     * @return number of recorded values.
+     */
+    public long getCount() {
+        long count = 0;
+        for (long c : counts())
+            count += c;
+        return count;
+    }
+
+    /**
+     * @param percentile a percentile between 0 and 100.
+     * @return the recorded value at the percentile in nanoseconds, i.e. the upper bound of its bucket, or 0 if
+     * nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("Percentile must be between 0 and 100!");
+        long[] counts = counts();
+        long total = 0;
+        for (long c : counts)
+            total += c;
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return TimeUnit.MICROSECONDS.toNanos(upperBound(i));
+        }
+        return TimeUnit.MICROSECONDS.toNanos(MAX_VALUE);
+    }
+
+    /**
+     * @return the largest recorded value in nanoseconds, within the bucket precision, or 0.
+     */
+    public long getMax() {
+        long[] counts = counts();
+        for (int i = counts.length - 1; i >= 0; i--)
+            if (counts[i] > 0)
+                return TimeUnit.MICROSECONDS.toNanos(upperBound(i));
+        return 0;
+    }
+
+    /**
+     * @return the mean of the recorded values in nanoseconds, within the bucket precision, or 0.
+     */
+    public double getMean() {
+        long[] counts = counts();
+        double sum = 0;
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0)
+                continue;
+            sum += (double) counts[i] * (lowerBound(i) + upperBound(i)) / 2;
+            total += counts[i];
+        }
+        return total == 0 ? 0 : TimeUnit.MICROSECONDS.toNanos(1) * sum / total;
+    }
+
+    /**
+     * Clears the recorded values. Values recorded concurrently may or may not be kept.
+     */
+    public void reset() {
+        for (AtomicLongArray stripe : stripes)
+            for (int i = 0; i < BUCKETS; i++)
+                stripe.set(i, 0);
+    }
+
+    /**
+     * @return count, mean and a few percentiles in milliseconds.
+     */
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms",
+                getCount(), getMean() / 1e6, getValueAtPercentile(50) / 1e6, getValueAtPercentile(90) / 1e6,
+                getValueAtPercentile(99) / 1e6, getValueAtPercentile(99.9) / 1e6, getMax() / 1e6);
+    }
+
+    private long[] counts() {
+        long[] counts = new long[BUCKETS];
+        for (AtomicLongArray stripe : stripes)
+            for (int i = 0; i < BUCKETS; i++)
+                counts[i] += stripe.get(i);
+        return counts;
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 6; // value >>> shift is in [HALF, SUB_BUCKETS)
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    static long lowerBound(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long sub = (index - SUB_BUCKETS) % HALF + HALF;
+        return sub << shift;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        return lowerBound(index) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.util.StreamingContent;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decorates a transport to time the requests sent by {@link HttpClient} and count their body bytes, reporting them to
+ * {@link HttpClientMetrics}.<br/>
+ * {@link HttpClient} binds an {@link Exchange} to the calling thread around {@code HttpRequest.execute()}; every
+ * low-level request built meanwhile (one per redirect) is a hop of that exchange. Transports able to observe the
+ * connect and write phases report them through {@link #connected(long)} and {@link #requestWritten()}.
+ */
+final class MeteredTransport extends TransportDecorator {
+
+    private static final ThreadLocal<Exchange> EXCHANGE = new ThreadLocal<>();
+    private static final ThreadLocal<Hop> HOP = new ThreadLocal<>();
+
+    MeteredTransport(HttpTransport delegate) {
+        super(delegate);
+    }
+
+    /**
+     * Starts measuring a request sent by the calling thread, until {@link #end()}.
+     */
+    static Exchange begin(HttpClientMetrics listener, String method, GenericUrl url) {
+        Exchange exchange = new Exchange(listener, method, url.getHost());
+        EXCHANGE.set(exchange);
+        return exchange;
+    }
+
+    static void end() {
+        EXCHANGE.remove();
+    }
+
+    /**
+     * Reports the time spent opening a connection for the current request, 0 for a reused one.
+     *
+     * @param nanos connect time.
+     */
+    static void connected(long nanos) {
+        Hop hop = HOP.get();
+        if (hop != null)
+            hop.exchange.connected(nanos);
+    }
+
+    /**
+     * Reports the current request as completely written.
+     */
+    static void requestWritten() {
+        Hop hop = HOP.get();
+        if (hop != null)
+            hop.exchange.writtenAt = System.nanoTime();
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+        LowLevelHttpRequest req = buildDelegateRequest(method, url);
+        Exchange exchange = EXCHANGE.get();
+        return exchange != null ? new MeteredRequest(exchange.newHop(), req) : req;
+    }
+
+    /**
+     * Measures of a single {@code HttpClient.send()} call.
+     */
+    static final class Exchange {
+
+        private final HttpClientMetrics listener;
+        private final String method;
+        private final String host;
+        private final long start = System.nanoTime();
+        private final AtomicLong bytesSent = new AtomicLong();
+        private final AtomicLong bytesReceived = new AtomicLong();
+        private final AtomicBoolean reported = new AtomicBoolean();
+
+        // set on the request thread, read by the thread completing the body
+        private volatile long connectNanos = -1;
+        private volatile long writtenAt = -1;
+        private volatile long firstByteAt = -1;
+        private volatile int redirects;
+        private volatile int status = -1;
+        private volatile Hop last;
+        private volatile boolean received;
+
+        Exchange(HttpClientMetrics listener, String method, String host) {
+            this.listener = listener;
+            this.method = method;
+            this.host = host;
+        }
+
+        Hop newHop() {
+            Hop previous = last;
+            if (previous != null && previous.status >= 300 && previous.status < 400)
+                redirects++;
+            Hop hop = new Hop(this);
+            last = hop;
+            return hop;
+        }
+
+        void connected(long nanos) {
+            long current = connectNanos;
+            connectNanos = (current < 0 ? 0 : current) + nanos;
+        }
+
+        /**
+         * Called with the final response. Reports it right away if it has no body, or the body is already complete.
+         */
+        void responseReceived(HttpResponse resp) {
+            status = resp.getStatusCode();
+            received = true;
+            Long length = resp.getHeaders().getContentLength();
+            boolean noBody = "HEAD".equals(method) || status == 204 || status == 304 || status < 200
+                             || (length != null && length == 0);
+            Hop hop = last;
+            if (noBody || hop == null || hop.completed)
+                report(null);
+        }
+
+        void failed(Throwable failure) {
+            report(failure);
+        }
+
+        void bodyComplete(Hop hop) {
+            hop.completed = true;
+            // the bodies of the redirect responses are discarded before the final one is received
+            if (received && hop == last)
+                report(null);
+        }
+
+        private void report(Throwable failure) {
+            if (!reported.compareAndSet(false, true))
+                return;
+            long now = System.nanoTime();
+            long written = writtenAt;
+            long firstByte = firstByteAt;
+            RequestMetrics metrics = new RequestMetrics(method, host, failure == null ? status : -1, failure,
+                    redirects, connectNanos, written < 0 ? -1 : written - start,
+                    firstByte < 0 ? -1 : firstByte - start, now - start, bytesSent.get(), bytesReceived.get());
+            try {
+                listener.requestCompleted(metrics);
+            } catch (RuntimeException ignored) {
+                // a faulty listener must not fail the request
+            }
+        }
+    }
+
+    /**
+     * A low-level request of an exchange.
+     */
+    private static final class Hop {
+
+        final Exchange exchange;
+        volatile int status;
+        volatile boolean completed;
+
+        Hop(Exchange exchange) {
+            this.exchange = exchange;
+        }
+    }
+
+    private static final class MeteredRequest extends ForwardingRequest {
+
+        private final Hop hop;
+
+        MeteredRequest(Hop hop, LowLevelHttpRequest delegate) {
+            super(delegate);
+            this.hop = hop;
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            delegate.setContentLength(getContentLength());
+            delegate.setContentEncoding(getContentEncoding());
+            delegate.setContentType(getContentType());
+            if (getStreamingContent() != null)
+                delegate.setStreamingContent(new CountingContent(hop.exchange, getStreamingContent()));
+
+            HOP.set(hop);
+            try {
+                LowLevelHttpResponse resp = delegate.execute();
+                hop.exchange.firstByteAt = System.nanoTime();
+                hop.status = resp.getStatusCode();
+                return new MeteredResponse(hop, resp);
+            } finally {
+                HOP.remove();
+            }
+        }
+    }
+
+    /**
+     * Counts the request body bytes. Being an {@link HttpContent} keeps the retry support of the wrapped content
+     * visible to the transport.
+     */
+    private static final class CountingContent implements HttpContent {
+
+        private final Exchange exchange;
+        private final StreamingContent content;
+
+        CountingContent(Exchange exchange, StreamingContent content) {
+            this.exchange = exchange;
+            this.content = content;
+        }
+
+        @Override
+        public long getLength() throws IOException {
+            return content instanceof HttpContent ? ((HttpContent) content).getLength() : -1;
+        }
+
+        @Override
+        public String getType() {
+            return content instanceof HttpContent ? ((HttpContent) content).getType() : null;
+        }
+
+        @Override
+        public boolean retrySupported() {
+            return content instanceof HttpContent && ((HttpContent) content).retrySupported();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            content.writeTo(new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    exchange.bytesSent.incrementAndGet();
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    exchange.bytesSent.addAndGet(len);
+                }
+            });
+            exchange.writtenAt = System.nanoTime();
+        }
+    }
+
+    private static final class MeteredResponse extends ForwardingResponse {
+
+        private final Hop hop;
+
+        MeteredResponse(Hop hop, LowLevelHttpResponse delegate) {
+            super(delegate);
+            this.hop = hop;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            InputStream in = delegate.getContent();
+            if (in == null) {
+                hop.exchange.bodyComplete(hop);
+                return null;
+            }
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b == -1)
+                        hop.exchange.bodyComplete(hop);
+                    else
+                        hop.exchange.bytesReceived.incrementAndGet();
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buf, int off, int len) throws IOException {
+                    int n = super.read(buf, off, len);
+                    if (n == -1)
+                        hop.exchange.bodyComplete(hop);
+                    else
+                        hop.exchange.bytesReceived.addAndGet(n);
+                    return n;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    long skipped = super.skip(n);
+                    hop.exchange.bytesReceived.addAndGet(skipped);
+                    return skipped;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        hop.exchange.bodyComplete(hop);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void disconnect() throws IOException {
+            try {
+                delegate.disconnect();
+            } finally {
+                hop.exchange.bodyComplete(hop);
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.HttpContent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A {@code multipart/form-data} request body (RFC 7578), as sent by an HTML form: text fields and files, every part
+ * streamed from its source as it is sent, see {@link UploadContent}. The body has a known length, and is sent with
+ * {@code Content-Length}, if all its parts do; it can be retried if all its parts can.<br/>
+ * Sample usage:<br/>
+ * <code>
+ * MultipartFormContent form = new MultipartFormContent.Builder()<br/>
+ * .field("title", "Quarterly report")<br/>
+ * .file("report", Paths.get("/tmp/report.pdf"), "application/pdf")<br/>
+ * .build();<br/>
+ * HttpResponse resp = c.post(url, form);<br/>
+ * </code>
+ */
+public final class MultipartFormContent implements HttpContent {
+
+    private static final byte[] DASHES = {'-', '-'};
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final char[] BOUNDARY_CHARS =
+            "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final String boundary;
+    private final List<Part> parts;
+    private final long length;
+
+    MultipartFormContent(Builder b) throws IOException {
+        this.boundary = boundary();
+        this.parts = new ArrayList<>(b.parts.size());
+        byte[] separator = ("--" + boundary + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        long total = 0;
+        for (Part p : b.parts) {
+            // the separator of every part is written with its head
+            byte[] head = new byte[separator.length + p.head.length];
+            System.arraycopy(separator, 0, head, 0, separator.length);
+            System.arraycopy(p.head, 0, head, separator.length, p.head.length);
+            parts.add(new Part(head, p.body));
+            long bodyLength = p.body.getLength();
+            total = total < 0 || bodyLength < 0 ? -1 : total + head.length + bodyLength + CRLF.length;
+        }
+        this.length = total < 0 ? -1 : total + DASHES.length + boundary.length() + DASHES.length + CRLF.length;
+    }
+
+    private static String boundary() {
+        char[] chars = new char[32];
+        for (int i = 0; i < chars.length; i++)
+            chars[i] = BOUNDARY_CHARS[RANDOM.nextInt(BOUNDARY_CHARS.length)];
+        return "----FormBoundary" + new String(chars);
+    }
+
+    /**
+     * @return the boundary delimiting the parts.
+     */
+    public String getBoundary() {
+        return boundary;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public String getType() {
+        return "multipart/form-data; boundary=" + boundary;
+    }
+
+    @Override
+    public boolean retrySupported() {
+        for (Part p : parts)
+            if (!p.body.retrySupported())
+                return false;
+        return true;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        for (Part p : parts) {
+            out.write(p.head);
+            // the part must not close the request stream
+            p.body.writeTo(new BodyStreams.NonClosingOutputStream(out));
+            out.write(CRLF);
+        }
+        out.write(DASHES);
+        out.write(boundary.getBytes(StandardCharsets.ISO_8859_1));
+        out.write(DASHES);
+        out.write(CRLF);
+        out.flush();
+    }
+
+    private static final class Part {
+
+        final byte[] head;
+        final HttpContent body;
+
+        Part(byte[] head, HttpContent body) {
+            this.head = head;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Constructs a MultipartFormContent instance.
+     */
+    public static final class Builder {
+
+        final List<Part> parts = new ArrayList<>();
+
+        /**
+         * Adds a text field, encoded in UTF-8.
+         *
+         * @param name  field name.
+         * @param value field value.
+         * @return a {@code Builder} instance.
+         */
+        public Builder field(String name, String value) {
+            requireNonNull(value, "Value must not be null!");
+            return part(name, null, null,
+                    new ByteArrayContent(null, value.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        /**
+         * Adds a file, named after the file name.
+         *
+         * @param name field name.
+         * @param file file to send, see {@link UploadContent#file(Path, String)}.
+         * @param type content type of the file, {@code application/octet-stream} if {@code null}.
+         * @return a {@code Builder} instance.
+         * @throws IOException if the file cannot be read.
+         */
+        public Builder file(String name, Path file, String type) throws IOException {
+            return part(name, String.valueOf(file.getFileName()), type, UploadContent.file(file, type));
+        }
+
+        /**
+         * Adds a part.
+         *
+         * @param name     field name.
+         * @param filename file name sent to the server, or {@code null} for a text field.
+         * @param type     content type of the part; {@code application/octet-stream} if {@code null} for a file,
+         *                 none for a text field.
+         * @param body     part body, e.g. an {@link UploadContent}; a body of unknown length makes the whole form
+         *                 chunked.
+         * @return a {@code Builder} instance.
+         */
+        public Builder part(String name, String filename, String type, HttpContent body) {
+            requireNonNull(name, "Name must not be null!");
+            requireNonNull(body, "Body must not be null!");
+            StringBuilder head = new StringBuilder("Content-Disposition: form-data; name=\"")
+                    .append(escape(name)).append('"');
+            if (filename != null)
+                head.append("; filename=\"").append(escape(filename)).append('"');
+            head.append("\r\n");
+            if (type != null || filename != null)
+                head.append("Content-Type: ").append(type != null ? type : "application/octet-stream").append("\r\n");
+            head.append("\r\n");
+            parts.add(new Part(head.toString().getBytes(StandardCharsets.UTF_8), body));
+            return this;
+        }
+
+        /**
+         * Escapes a quoted parameter value as browsers do: {@code "} and line breaks are percent-encoded.
+         */
+        private static String escape(String value) {
+            return value.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+        }
+
+        /**
+         * Constructs {@code MultipartFormContent} object.
+         *
+         * @return a {@code MultipartFormContent} instance.
+         * @throws IOException if the length of a part cannot be read.
+         */
+        public MultipartFormContent build() throws IOException {
+            return new MultipartFormContent(this);
+        }
+    }
+}
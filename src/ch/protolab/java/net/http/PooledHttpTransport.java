@@ -0,0 +1,1007 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.util.StreamingContent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * HTTP/1.1 transport keeping persistent connections in a pool owned by the transport instance.<br/>
+ * Unlike the JVM-wide keep-alive cache used by java.net.HttpURLConnection the pool is bounded per route (scheme, host
+ * and port), evicts idle and aged connections, and exposes reuse counters.<br/><br/>
+ * A connection is returned to the pool once the response body has been read to the end or the response content
+ * stream has been closed, so always consume, {@link com.google.api.client.http.HttpResponse#ignore() ignore} or
+ * {@link com.google.api.client.http.HttpResponse#disconnect() disconnect} responses.<br/>
+ * Hosts with several addresses are connected to by racing them, see
+ * {@link Builder#connectionAttemptDelay(long, TimeUnit)}. Proxies are not supported.<br/>
+ * All the HTTPS connections of the transport share the TLS session cache of its SSL context, so that a new
+ * connection to a host resumes the session negotiated by a previous one instead of a full handshake; see
+ * {@link #getFullHandshakes()} and {@link #getResumedHandshakes()}.<br/>
+ * Sample usage:<br/>
+ * <code>
+ * PooledHttpTransport transport = new PooledHttpTransport.Builder()<br/>
+ * .maxConnectionsPerRoute(16)<br/>
+ * .idleTimeout(30, TimeUnit.SECONDS)<br/>
+ * .build();<br/>
+ * HttpClient c = new HttpClient.Builder().transport(transport).build();<br/>
+ * </code>
+ */
+public final class PooledHttpTransport extends HttpTransport {
+
+    /**
+     * Response bytes read when a partially consumed body is closed, to keep the connection reusable.
+     */
+    private static final int MAX_DRAIN = 64 * 1024;
+
+    /**
+     * Bounds of the wait for the TLS 1.3 session tickets of a pre-warmed connection, in milliseconds.
+     */
+    private static final long MIN_TICKET_WAIT = 50;
+    private static final long MAX_TICKET_WAIT = 500;
+
+    private static final byte[] SP = ascii(" ");
+    private static final byte[] COLON = ascii(":");
+    private static final byte[] COLON_SP = ascii(": ");
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final byte[] HTTP_11_HOST = ascii(" HTTP/1.1\r\nHost: ");
+    private static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+    private static final byte[] CONTENT_ENCODING = ascii("Content-Encoding: ");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] CONTENT_LENGTH_0 = ascii("Content-Length: 0\r\n");
+    private static final byte[] TRANSFER_ENCODING_CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+
+    private final int maxConnectionsPerRoute;
+    private final long idleTimeoutNanos;
+    private final long ttlNanos;
+    private final SSLSocketFactory sslSocketFactory;
+    private final HostResolver resolver;
+    private final long connectionAttemptDelay;
+
+    /**
+     * Encoded common headers of the clients using this transport.
+     */
+    final EncodedHeaders encodedHeaders = new EncodedHeaders();
+
+    private final ConcurrentHashMap<String, RoutePool> routes = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean shutdown;
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+
+    PooledHttpTransport(Builder b) {
+        this.maxConnectionsPerRoute = b.maxConnectionsPerRoute;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(b.idleTimeout);
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(b.ttl);
+        SSLContext context = b.sslContext;
+        if (context == null && (b.sessionCacheSize > 0 || b.sessionTimeout > 0)) {
+            // tuning the cache of the JVM default context would affect every TLS client of the JVM
+            try {
+                context = SSLContext.getInstance("TLS");
+                context.init(null, null, null);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Cannot create an SSL context", e);
+            }
+        }
+        if (context != null) {
+            SSLSessionContext sessions = context.getClientSessionContext();
+            if (b.sessionCacheSize > 0)
+                sessions.setSessionCacheSize(b.sessionCacheSize);
+            if (b.sessionTimeout > 0)
+                sessions.setSessionTimeout(b.sessionTimeout);
+            this.sslSocketFactory = context.getSocketFactory();
+        } else {
+            this.sslSocketFactory = b.sslSocketFactory != null
+                    ? b.sslSocketFactory : (SSLSocketFactory) SSLSocketFactory.getDefault();
+        }
+        this.resolver = b.resolver;
+        this.connectionAttemptDelay = b.connectionAttemptDelay;
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "http-pool-evictor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(100L, Math.min(b.idleTimeout, b.ttl > 0 ? b.ttl : Long.MAX_VALUE) / 2);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictExpired();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean supportsMethod(String method) {
+        return true;
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+        if (shutdown)
+            throw new IOException("Transport has been shut down");
+        URL u = new URL(url);
+        String scheme = u.getProtocol();
+        if (!"http".equals(scheme) && !"https".equals(scheme))
+            throw new IllegalArgumentException("Unsupported URL scheme: " + scheme);
+        return new PooledRequest(method, u);
+    }
+
+    /**
+     * Closes all the idle connections and stops the eviction thread. Connections in use are closed as soon as they
+     * are released.
+     */
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        evictor.shutdownNow();
+        for (RoutePool pool : routes.values())
+            pool.closeIdle();
+    }
+
+    /**
+     * @return number of connections opened by this transport.
+     */
+    public long getConnectionsCreated() {
+        return created.get();
+    }
+
+    /**
+     * @return number of requests served by a connection taken from the pool.
+     */
+    public long getConnectionsReused() {
+        return reused.get();
+    }
+
+    /**
+     * @return number of pooled connections closed because they exceeded the idle timeout or the time to live.
+     */
+    public long getConnectionsEvicted() {
+        return evicted.get();
+    }
+
+    /**
+     * @return number of HTTPS connections which negotiated a new TLS session.
+     */
+    public long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    /**
+     * @return number of HTTPS connections which resumed a cached TLS session, with an abbreviated handshake.
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * @return number of idle connections currently in the pool.
+     */
+    public int getIdleConnections() {
+        int n = 0;
+        for (RoutePool pool : routes.values())
+            n += pool.idleCount();
+        return n;
+    }
+
+    /**
+     * @return number of connections currently serving a request.
+     */
+    public int getLeasedConnections() {
+        int n = 0;
+        for (RoutePool pool : routes.values())
+            n += pool.leased();
+        return n;
+    }
+
+    /**
+     * Opens a connection to the route of the URL ahead of the requests, and adds it to the idle connections, unless
+     * {@code connections} are already idle or being opened. The connection is evicted like any other once idle for
+     * longer than the idle timeout.
+     *
+     * @param url            URL of the route.
+     * @param connections    number of idle connections wanted.
+     * @param connectTimeout connect timeout in milliseconds, 0 for no timeout.
+     * @return {@code true} if a connection was opened.
+     * @throws IOException if the connection cannot be established.
+     */
+    boolean prewarm(URL url, int connections, int connectTimeout) throws IOException {
+        if (shutdown)
+            throw new IOException("Transport has been shut down");
+        return pool(url).prewarm(connections, connectTimeout);
+    }
+
+    /**
+     * Closes the idle connections which exceeded the idle timeout or the time to live.
+     */
+    void evictExpired() {
+        long now = System.nanoTime();
+        for (RoutePool pool : routes.values())
+            pool.evict(now);
+    }
+
+    private boolean isExpired(HttpConnection c, long now) {
+        return now - c.idleSinceNanos > idleTimeoutNanos || (ttlNanos > 0 && now - c.createdNanos > ttlNanos);
+    }
+
+    private RoutePool pool(URL u) {
+        String host = u.getHost();
+        boolean secure = "https".equals(u.getProtocol());
+        int port = u.getPort() != -1 ? u.getPort() : u.getDefaultPort();
+        String key = u.getProtocol() + "://" + host + ":" + port;
+
+        RoutePool pool = routes.get(key);
+        if (pool == null) {
+            if (host.startsWith("[") && host.endsWith("]"))
+                host = host.substring(1, host.length() - 1);
+            RoutePool created = new RoutePool(key, host, port, secure);
+            pool = routes.putIfAbsent(key, created);
+            if (pool == null)
+                pool = created;
+        }
+        return pool;
+    }
+
+    /**
+     * Connections to a single route. The semaphore caps the connections in use, the deque keeps idle ones,
+     * most recently used first. A connection is only kept idle, or opened ahead of the requests, while the route has
+     * no more connections than allowed, idle ones included.
+     */
+    private final class RoutePool {
+
+        final String key;
+        final String host;
+        final int port;
+        final boolean secure;
+        final Semaphore permits = new Semaphore(maxConnectionsPerRoute, true);
+        private final ArrayDeque<HttpConnection> idle = new ArrayDeque<>();
+        private final AtomicInteger warming = new AtomicInteger();
+
+        RoutePool(String key, String host, int port, boolean secure) {
+            this.key = key;
+            this.host = host;
+            this.port = port;
+            this.secure = secure;
+        }
+
+        /**
+         * Takes an idle connection or opens a new one.
+         *
+         * @param connectTimeout connect timeout in milliseconds, also bounds the wait for a free connection;
+         *                       0 for no timeout.
+         * @param fresh          {@code true} to skip the idle connections.
+         */
+        HttpConnection lease(int connectTimeout, boolean fresh) throws IOException {
+            try {
+                if (connectTimeout > 0) {
+                    if (!permits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS))
+                        throw new SocketTimeoutException("Timed out waiting for a pooled connection to " + key);
+                } else {
+                    permits.acquire();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a pooled connection to " + key, e);
+            }
+
+            try {
+                if (!fresh) {
+                    long now = System.nanoTime();
+                    HttpConnection c;
+                    while ((c = pollIdle()) != null) {
+                        if (c.isOpen() && !isExpired(c, now)) {
+                            c.reused = true;
+                            reused.incrementAndGet();
+                            MeteredTransport.connected(0);
+                            return c;
+                        }
+                        evicted.incrementAndGet();
+                        c.close();
+                    }
+                }
+                long start = System.nanoTime();
+                HttpConnection c = open(connectTimeout);
+                MeteredTransport.connected(System.nanoTime() - start);
+                return c;
+            } catch (IOException | RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        private HttpConnection open(int connectTimeout) throws IOException {
+            HttpConnection c = HttpConnection.open(key, host, port, secure ? sslSocketFactory : null,
+                    resolver, connectTimeout, connectionAttemptDelay);
+            created.incrementAndGet();
+            if (secure)
+                (c.sessionResumed ? resumedHandshakes : fullHandshakes).incrementAndGet();
+            return c;
+        }
+
+        /**
+         * Opens an idle connection, unless {@code target} connections are idle or being opened, or the route has
+         * as many connections as allowed.
+         */
+        boolean prewarm(int target, int connectTimeout) throws IOException {
+            try {
+                // counted as idle once released, before no longer being counted as opened
+                if (warming.incrementAndGet() + idleCount() > target || !permits.tryAcquire())
+                    return false;
+                if (idleCount() + leased() > maxConnectionsPerRoute) {
+                    permits.release();
+                    return false;
+                }
+                HttpConnection c;
+                try {
+                    long start = System.nanoTime();
+                    c = open(connectTimeout);
+                    // TLS 1.3 tickets are used once: every connection waits for the ticket resumed by the next one,
+                    // as long as its handshake took, as the tickets follow it closely
+                    if (secure)
+                        c.awaitSessionTickets((int) Math.min(MAX_TICKET_WAIT, Math.max(MIN_TICKET_WAIT,
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))));
+                } catch (IOException | RuntimeException e) {
+                    permits.release();
+                    throw e;
+                }
+                release(c, true);
+                return true;
+            } finally {
+                warming.decrementAndGet();
+            }
+        }
+
+        void release(HttpConnection c, boolean reusable) {
+            try {
+                if (reusable && !shutdown && c.isOpen()) {
+                    c.idleSinceNanos = System.nanoTime();
+                    if (!isExpired(c, c.idleSinceNanos)) {
+                        synchronized (this) {
+                            // the connection is still counted as leased
+                            if (idle.size() + leased() <= maxConnectionsPerRoute) {
+                                idle.addFirst(c);
+                                return;
+                            }
+                        }
+                    }
+                }
+                c.close();
+            } finally {
+                permits.release();
+            }
+        }
+
+        private synchronized HttpConnection pollIdle() {
+            return idle.pollFirst();
+        }
+
+        synchronized int idleCount() {
+            return idle.size();
+        }
+
+        int leased() {
+            return maxConnectionsPerRoute - permits.availablePermits();
+        }
+
+        void evict(long now) {
+            List<HttpConnection> expired = new ArrayList<>();
+            synchronized (this) {
+                for (Iterator<HttpConnection> it = idle.iterator(); it.hasNext(); ) {
+                    HttpConnection c = it.next();
+                    if (!c.isOpen() || isExpired(c, now)) {
+                        it.remove();
+                        expired.add(c);
+                    }
+                }
+            }
+            for (HttpConnection c : expired) {
+                evicted.incrementAndGet();
+                c.close();
+            }
+        }
+
+        void closeIdle() {
+            List<HttpConnection> all;
+            synchronized (this) {
+                all = new ArrayList<>(idle);
+                idle.clear();
+            }
+            for (HttpConnection c : all)
+                c.close();
+        }
+    }
+
+    private final class PooledRequest extends LowLevelHttpRequest {
+
+        private final String method;
+        private final URL url;
+        private final List<String> headerNames = new ArrayList<>();
+        private final List<String> headerValues = new ArrayList<>();
+        private int connectTimeout;
+        private int readTimeout;
+
+        PooledRequest(String method, URL url) {
+            this.method = method;
+            this.url = url;
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            headerNames.add(name);
+            headerValues.add(value);
+        }
+
+        @Override
+        public void setTimeout(int connectTimeout, int readTimeout) {
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            RoutePool pool = pool(url);
+            StreamingContent content = getStreamingContent();
+            boolean replayable = content == null
+                                 || (content instanceof HttpContent && ((HttpContent) content).retrySupported());
+            InFlightCall call = InFlightCall.current();
+
+            boolean fresh = false;
+            for (; ; ) {
+                HttpConnection conn = pool.lease(connectTimeout, fresh);
+                boolean headReceived = false;
+                try {
+                    InFlightCall.attach(conn);
+                    conn.setReadTimeout(readTimeout);
+                    boolean keepAlive = writeRequest(conn, content);
+                    PooledResponse resp = readResponse(pool, conn, keepAlive);
+                    headReceived = true;
+                    return resp;
+                } catch (IOException e) {
+                    pool.release(conn, false);
+                    // a pooled connection may have been closed by the server while idle: retry once on a new one
+                    boolean stale = conn.reused && !headReceived && !(e instanceof SocketTimeoutException);
+                    if (stale && replayable && !fresh && (call == null || !call.isAborted())) {
+                        fresh = true;
+                        continue;
+                    }
+                    throw e;
+                } catch (RuntimeException e) {
+                    pool.release(conn, false);
+                    throw e;
+                }
+            }
+        }
+
+        /**
+         * @return {@code false} if the request asks the server to close the connection.
+         */
+        private boolean writeRequest(HttpConnection conn, StreamingContent content) throws IOException {
+            boolean keepAlive = true;
+            String target = url.getFile();
+            conn.write(method);
+            conn.write(SP);
+            conn.write(target.isEmpty() ? "/" : target);
+            conn.write(HTTP_11_HOST);
+            conn.write(url.getHost());
+            if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+                conn.write(COLON);
+                conn.write(url.getPort());
+            }
+            conn.write(CRLF);
+
+            for (int i = 0; i < headerNames.size(); i++) {
+                String name = headerNames.get(i);
+                if (name.equalsIgnoreCase("Host") || name.equalsIgnoreCase("Content-Length")
+                    || name.equalsIgnoreCase("Transfer-Encoding"))
+                    continue;
+                String value = headerValues.get(i);
+                if (name.equalsIgnoreCase("Connection") && value.equalsIgnoreCase("close"))
+                    keepAlive = false;
+                byte[] encoded = encodedHeaders.get(name, value);
+                if (encoded != null) {
+                    conn.write(encoded);
+                } else {
+                    conn.write(name);
+                    conn.write(COLON_SP);
+                    conn.write(value);
+                    conn.write(CRLF);
+                }
+            }
+            if (getContentType() != null) {
+                conn.write(CONTENT_TYPE);
+                conn.write(getContentType());
+                conn.write(CRLF);
+            }
+            if (getContentEncoding() != null) {
+                conn.write(CONTENT_ENCODING);
+                conn.write(getContentEncoding());
+                conn.write(CRLF);
+            }
+
+            long length = getContentLength();
+            if (content == null) {
+                if ("POST".equals(method) || "PUT".equals(method) || "PATCH".equals(method))
+                    conn.write(CONTENT_LENGTH_0);
+            } else if (length >= 0) {
+                conn.write(CONTENT_LENGTH);
+                conn.write(length);
+                conn.write(CRLF);
+            } else {
+                conn.write(TRANSFER_ENCODING_CHUNKED);
+            }
+            conn.write(CRLF);
+
+            if (content != null) {
+                if (length >= 0) {
+                    BodyStreams.writeContent(content, new BodyStreams.NonClosingOutputStream(conn.out));
+                } else {
+                    OutputStream chunked = new BodyStreams.ChunkedOutputStream(conn.out);
+                    BodyStreams.writeContent(content, new BodyStreams.NonClosingOutputStream(chunked));
+                    chunked.close();
+                }
+            }
+            conn.out.flush();
+            MeteredTransport.requestWritten();
+            return keepAlive;
+        }
+
+        private PooledResponse readResponse(RoutePool pool, HttpConnection conn, boolean keepAlive)
+                throws IOException {
+            String statusLine;
+            int status;
+            List<String> names = new ArrayList<>();
+            List<String> values = new ArrayList<>();
+            do {
+                statusLine = conn.readLine();
+                status = parseStatus(statusLine);
+                names.clear();
+                values.clear();
+                while (conn.readHeader(names, values)) {
+                    // read up to the empty line
+                }
+            } while (status >= 100 && status < 200 && status != 101);
+
+            return new PooledResponse(pool, conn, method, statusLine, status, names, values, keepAlive);
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static int parseStatus(String statusLine) throws IOException {
+        if (!statusLine.startsWith("HTTP/") || statusLine.length() < 12)
+            throw new ProtocolException("Invalid status line: " + statusLine);
+        try {
+            return Integer.parseInt(statusLine.substring(9, 12));
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid status line: " + statusLine);
+        }
+    }
+
+    private static final class PooledResponse extends LowLevelHttpResponse {
+
+        private final RoutePool pool;
+        private final HttpConnection conn;
+        private final String statusLine;
+        private final int status;
+        private final List<String> names;
+        private final List<String> values;
+        private final long contentLength;
+        private final boolean reusable;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private final InputStream content;
+
+        PooledResponse(RoutePool pool, HttpConnection conn, String method, String statusLine, int status,
+                       List<String> names, List<String> values, boolean keepAlive) throws IOException {
+            this.pool = pool;
+            this.conn = conn;
+            this.statusLine = statusLine;
+            this.status = status;
+            this.names = names;
+            this.values = values;
+
+            String connection = header("Connection");
+            boolean http10 = statusLine.startsWith("HTTP/1.0");
+            if (connection != null && connection.equalsIgnoreCase("close"))
+                keepAlive = false;
+            else if (http10 && (connection == null || !connection.equalsIgnoreCase("keep-alive")))
+                keepAlive = false;
+            // the connection now speaks another protocol, which the transport cannot hand over
+            if (status == 101)
+                keepAlive = false;
+
+            String te = header("Transfer-Encoding");
+            String cl = header("Content-Length");
+            long length = -1;
+            InputStream body;
+            if ("HEAD".equals(method) || status == 204 || status == 304 || status < 200) {
+                length = 0;
+                body = null;
+            } else if (te != null && te.toLowerCase().contains("chunked")) {
+                body = new BodyStreams.ChunkedInputStream(conn);
+            } else if (cl != null) {
+                try {
+                    length = Long.parseLong(cl);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Invalid Content-Length: " + cl);
+                }
+                body = length == 0 ? null : new BodyStreams.FixedLengthInputStream(conn.in, length);
+            } else {
+                keepAlive = false;
+                body = new BodyStreams.UntilCloseInputStream(conn.in);
+            }
+            this.contentLength = length;
+            this.reusable = keepAlive;
+
+            if (body == null) {
+                release(true);
+                this.content = null;
+            } else {
+                this.content = new ResponseBody(body);
+            }
+        }
+
+        private String header(String name) {
+            for (int i = 0; i < names.size(); i++)
+                if (names.get(i).equalsIgnoreCase(name))
+                    return values.get(i);
+            return null;
+        }
+
+        void release(boolean complete) {
+            if (released.compareAndSet(false, true))
+                pool.release(conn, complete && reusable);
+        }
+
+        @Override
+        public InputStream getContent() {
+            return content;
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return header("Content-Encoding");
+        }
+
+        @Override
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        @Override
+        public String getContentType() {
+            return header("Content-Type");
+        }
+
+        @Override
+        public String getStatusLine() {
+            return statusLine;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return status;
+        }
+
+        @Override
+        public String getReasonPhrase() {
+            return statusLine.length() > 13 ? statusLine.substring(13) : "";
+        }
+
+        @Override
+        public int getHeaderCount() {
+            return names.size();
+        }
+
+        @Override
+        public String getHeaderName(int index) {
+            return names.get(index);
+        }
+
+        @Override
+        public String getHeaderValue(int index) {
+            return values.get(index);
+        }
+
+        @Override
+        public void disconnect() {
+            release(false);
+        }
+
+        /**
+         * Returns the connection to the pool once the body has been read to the end or closed. Reading a body cut short
+         * by {@link #disconnect()} fails instead of reporting a premature end.
+         */
+        private final class ResponseBody extends InputStream {
+
+            private final InputStream in;
+            private volatile boolean closed;
+            private boolean ended;
+
+            ResponseBody(InputStream in) {
+                this.in = in;
+            }
+
+            @Override
+            public int read() throws IOException {
+                if (released.get())
+                    return end();
+                try {
+                    int b = in.read();
+                    if (b == -1) {
+                        ended = true;
+                        release(true);
+                    }
+                    return b;
+                } catch (IOException e) {
+                    release(false);
+                    throw e;
+                }
+            }
+
+            @Override
+            public int read(byte[] buf, int off, int len) throws IOException {
+                if (released.get())
+                    return end();
+                try {
+                    int n = in.read(buf, off, len);
+                    if (n == -1) {
+                        ended = true;
+                        release(true);
+                    }
+                    return n;
+                } catch (IOException e) {
+                    release(false);
+                    throw e;
+                }
+            }
+
+            /**
+             * @return -1 if the body has been read to the end.
+             * @throws IOException if the stream has been closed, or disconnected before the end of the body.
+             */
+            private int end() throws IOException {
+                if (closed)
+                    throw new IOException("Stream closed");
+                if (!ended)
+                    throw new IOException("Stream was disconnected");
+                return -1;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return released.get() ? 0 : in.available();
+            }
+
+            @Override
+            public void close() {
+                closed = true;
+                if (released.get())
+                    return;
+                if (!reusable) {
+                    release(false);
+                    return;
+                }
+                // drain a short remainder to keep the connection reusable
+                ByteBuffer buf = BufferPool.DEFAULT.acquire();
+                try {
+                    int drained = 0;
+                    int n;
+                    while (drained < MAX_DRAIN && (n = in.read(buf.array(), 0, buf.capacity())) != -1)
+                        drained += n;
+                    release(drained < MAX_DRAIN);
+                } catch (IOException e) {
+                    release(false);
+                } finally {
+                    BufferPool.DEFAULT.release(buf);
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructs a PooledHttpTransport instance.
+     */
+    public static final class Builder {
+
+        int maxConnectionsPerRoute = 10;
+        long idleTimeout = 30000L;
+        long ttl = 0L;
+        SSLSocketFactory sslSocketFactory;
+        SSLContext sslContext;
+        int sessionCacheSize;
+        int sessionTimeout;
+        HostResolver resolver = HostResolver.SYSTEM;
+        long connectionAttemptDelay = 250L;
+
+        /**
+         * Sets the maximum number of connections (both in use and idle) to a single route. Requests wait for a free
+         * connection up to their connect timeout. Default is 10.
+         *
+         * @param max maximum number of connections per route.
+         * @return a {@code Builder} instance.
+         */
+        public Builder maxConnectionsPerRoute(int max) {
+            if (max < 1)
+                throw new IllegalArgumentException("Max connections per route must be positive!");
+            this.maxConnectionsPerRoute = max;
+            return this;
+        }
+
+        /**
+         * Sets how long a connection may stay idle in the pool before being closed. Default is 30 seconds.
+         *
+         * @param value idle timeout.
+         * @param unit  time interval unit.
+         * @return a {@code Builder} instance.
+         */
+        public Builder idleTimeout(long value, TimeUnit unit) {
+            if (value <= 0)
+                throw new IllegalArgumentException("Idle timeout must be positive!");
+            this.idleTimeout = unit.toMillis(value);
+            return this;
+        }
+
+        /**
+         * Sets the maximum lifetime of a connection; it is closed instead of being returned to the pool once
+         * exceeded. Default is 0, i.e. unlimited.
+         *
+         * @param value time to live.
+         * @param unit  time interval unit.
+         * @return a {@code Builder} instance.
+         */
+        public Builder connectionTtl(long value, TimeUnit unit) {
+            if (value < 0)
+                throw new IllegalArgumentException("Connection TTL must not be negative!");
+            this.ttl = unit.toMillis(value);
+            return this;
+        }
+
+        /**
+         * Sets the socket factory for HTTPS connections. Default is the JVM default one.
+         *
+         * @param factory SSL socket factory.
+         * @return a {@code Builder} instance.
+         */
+        public Builder sslSocketFactory(SSLSocketFactory factory) {
+            this.sslSocketFactory = requireNonNull(factory, "SSL socket factory must not be null!");
+            this.sslContext = null;
+            return this;
+        }
+
+        /**
+         * Sets the SSL context of HTTPS connections, replacing the socket factory if any; its client session cache
+         * holds the TLS sessions resumed by new connections. Default is the JVM default one.
+         *
+         * @param context SSL context.
+         * @return a {@code Builder} instance.
+         */
+        public Builder sslContext(SSLContext context) {
+            this.sslContext = requireNonNull(context, "SSL context must not be null!");
+            this.sslSocketFactory = null;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of TLS sessions cached for resumption, one per host at least. Changes the SSL
+         * context set by {@link #sslContext(SSLContext)}, or makes the transport use an SSL context of its own. Not
+         * supported with {@link #sslSocketFactory(SSLSocketFactory)}. Default is the setting of the context.
+         *
+         * @param size maximum number of cached sessions.
+         * @return a {@code Builder} instance.
+         */
+        public Builder sessionCacheSize(int size) {
+            if (size < 1)
+                throw new IllegalArgumentException("Session cache size must be positive!");
+            this.sessionCacheSize = size;
+            return this;
+        }
+
+        /**
+         * Sets how long a cached TLS session may be resumed; servers usually accept resumption for a few hours at
+         * most. Changes the SSL context like {@link #sessionCacheSize(int)}. Default is the setting of the context.
+         *
+         * @param value session timeout, at least one second.
+         * @param unit  time interval unit.
+         * @return a {@code Builder} instance.
+         */
+        public Builder sessionTimeout(long value, TimeUnit unit) {
+            long seconds = unit.toSeconds(value);
+            if (seconds < 1 || seconds > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Session timeout must be between 1 second and 68 years!");
+            this.sessionTimeout = (int) seconds;
+            return this;
+        }
+
+        /**
+         * Sets the resolver of host addresses, e.g. a {@link CachingResolver}. Default is
+         * {@link HostResolver#SYSTEM}.
+         *
+         * @param resolver host resolver.
+         * @return a {@code Builder} instance.
+         */
+        public Builder resolver(HostResolver resolver) {
+            this.resolver = requireNonNull(resolver, "Resolver must not be null!");
+            return this;
+        }
+
+        /**
+         * Sets how long a connection attempt to one address of a host may stay unanswered before the next address is
+         * tried in parallel (Happy Eyeballs); the first connection established wins. Default is 250 milliseconds.
+         *
+         * @param value attempt delay.
+         * @param unit  time interval unit.
+         * @return a {@code Builder} instance.
+         */
+        public Builder connectionAttemptDelay(long value, TimeUnit unit) {
+            if (value <= 0)
+                throw new IllegalArgumentException("Connection attempt delay must be positive!");
+            this.connectionAttemptDelay = unit.toMillis(value);
+            return this;
+        }
+
+        /**
+         * Constructs {@code PooledHttpTransport} object.
+         *
+         * @return a {@code PooledHttpTransport} instance.
+         */
+        public PooledHttpTransport build() {
+            if (sslSocketFactory != null && (sessionCacheSize > 0 || sessionTimeout > 0))
+                throw new IllegalStateException("Session cache settings require an SSL context, not a socket factory!");
+            return new PooledHttpTransport(this);
+        }
+    }
+}
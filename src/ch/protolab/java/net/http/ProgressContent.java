@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.HttpContent;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Reports the progress of a request body to an {@link UploadListener} as the body is written, see
+ * {@link HttpClient#upload(com.google.api.client.http.GenericUrl, String, com.google.api.client.http.HttpHeaders,
+ * HttpContent, UploadListener)}.
+ */
+final class ProgressContent implements HttpContent {
+
+    static final int REPORT_INTERVAL = 64 * 1024;
+
+    private final HttpContent content;
+    private final UploadListener listener;
+
+    ProgressContent(HttpContent content, UploadListener listener) {
+        this.content = content;
+        this.listener = listener;
+    }
+
+    @Override
+    public long getLength() throws IOException {
+        return content.getLength();
+    }
+
+    @Override
+    public String getType() {
+        return content.getType();
+    }
+
+    @Override
+    public boolean retrySupported() {
+        return content.retrySupported();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        // every attempt reports from the start
+        CountingOutputStream counting = new CountingOutputStream(out, new UploadProgress(content.getLength()));
+        content.writeTo(counting);
+        counting.complete();
+    }
+
+    private final class CountingOutputStream extends FilterOutputStream {
+
+        private final UploadProgress progress;
+        private long sent;
+        private long nextReport = REPORT_INTERVAL;
+
+        CountingOutputStream(OutputStream out, UploadProgress progress) {
+            super(out);
+            this.progress = progress;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count(len);
+        }
+
+        private void count(int n) {
+            sent += n;
+            if (sent >= nextReport) {
+                nextReport = (sent / REPORT_INTERVAL + 1) * REPORT_INTERVAL;
+                progress.update(sent, false);
+                listener.progress(progress);
+            }
+        }
+
+        void complete() {
+            progress.update(sent, true);
+            listener.progress(progress);
+        }
+    }
+}
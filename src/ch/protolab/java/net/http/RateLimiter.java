@@ -0,0 +1,363 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponse;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the rate of the requests sent by {@link HttpClient}, globally and per host ({@code host:port}), so that an
+ * upstream enforcing a rate limit is not sent requests bound to be answered 429.<br/>
+ * Each limit is a token bucket of {@code permits} tokens refilled over {@code period}: up to {@code permits} requests
+ * are sent at once, then one every {@code period / permits}. A request waits for its permit at most
+ * {@link Builder#maxWait(long, TimeUnit)}; a request which would wait longer fails at once with a
+ * {@link RequestRejectedException}, so {@code maxWait(0, unit)} never waits. Synchronous requests wait on the calling
+ * thread, asynchronous ones are submitted to the executor once their permit is due, without occupying a thread.<br/>
+ * Unless disabled with {@link Builder#adaptive(boolean)}, the limiter follows what the hosts tell: a host answering
+ * 429 or 503 with a {@code Retry-After} header, or announcing that no request remains with
+ * {@code X-RateLimit-Remaining: 0} (or {@code RateLimit-Remaining: 0}) and the matching {@code Reset} header, is sent
+ * nothing until then.<br/>
+ * Every request sent counts, retries and hedges included; the redirects followed by the client do not. The buckets
+ * are updated by compare-and-set, as in GCRA (generic cell rate algorithm): a bucket is the time at which it will be
+ * full again. The limiter may be shared by several clients.
+ */
+public final class RateLimiter {
+
+    private static final ScheduledExecutorService TIMER =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "http-rate-limit-timer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private static final String[] PREFIXES = {"X-RateLimit-", "RateLimit-"};
+
+    /**
+     * Values of a reset header above this are epoch seconds rather than seconds to wait.
+     */
+    private static final long EPOCH_SECONDS = 1000000000L;
+
+    private final Bucket global;
+    private final long hostPeriodNanos;
+    private final int hostPermits;
+    private final long maxWaitNanos;
+    private final boolean adaptive;
+    private final ConcurrentMap<String, Bucket> hosts = new ConcurrentHashMap<>();
+
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder pauses = new LongAdder();
+
+    RateLimiter(Builder b) {
+        this.global = b.globalPermits > 0 ? new Bucket(b.globalPermits, b.globalPeriodNanos) : null;
+        this.hostPermits = b.hostPermits;
+        this.hostPeriodNanos = b.hostPeriodNanos;
+        this.maxWaitNanos = b.maxWaitNanos;
+        this.adaptive = b.adaptive;
+    }
+
+    /**
+     * @return number of requests which waited for their permit.
+     */
+    public long getDelayedCount() {
+        return delayed.sum();
+    }
+
+    /**
+     * @return number of requests rejected because their permit was too far away.
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return number of times a host was paused after telling its limit was exhausted.
+     */
+    public long getPauseCount() {
+        return pauses.sum();
+    }
+
+    /**
+     * Takes a permit for a request to the host, waiting on the calling thread until it is due.
+     *
+     * @param host {@code host:port}.
+     * @throws RequestRejectedException if the permit is further away than the maximum wait.
+     * @throws InterruptedIOException   if interrupted while waiting.
+     */
+    void acquire(String host) throws RequestRejectedException, InterruptedIOException {
+        long wait = reserve(host);
+        if (wait == 0)
+            return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a rate limit permit");
+        }
+    }
+
+    /**
+     * Takes a permit for a request to the host, due now or later.
+     *
+     * @param host {@code host:port}.
+     * @return nanoseconds until the permit is due, 0 if now.
+     * @throws RequestRejectedException if the permit is further away than the maximum wait.
+     */
+    long reserve(String host) throws RequestRejectedException {
+        Bucket bucket = bucket(host);
+        // read after the bucket is created, which is full from its creation on
+        long now = System.nanoTime();
+        long wait = bucket != null ? bucket.reserve(now, maxWaitNanos) : 0;
+        if (wait >= 0 && global != null) {
+            long globalWait = global.reserve(now, maxWaitNanos);
+            if (globalWait < 0 && bucket != null)
+                bucket.refund();
+            wait = globalWait < 0 ? -1 : Math.max(wait, globalWait);
+        }
+        if (wait < 0) {
+            rejected.increment();
+            throw new RequestRejectedException(RequestRejectedException.Reason.RATE_LIMIT, host);
+        }
+        if (wait > 0)
+            delayed.increment();
+        return wait;
+    }
+
+    /**
+     * Runs a task once a reserved permit is due.
+     *
+     * @param task  the task, run on the limiter's timer thread: it must only hand the request over to an executor.
+     * @param nanos the wait returned by {@link #reserve(String)}.
+     */
+    static void schedule(Runnable task, long nanos) {
+        TIMER.schedule(task, nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Pauses the host if its response tells that its limit is exhausted.
+     *
+     * @param host {@code host:port}.
+     * @param resp the response of a request to the host.
+     */
+    void update(String host, HttpResponse resp) {
+        if (!adaptive)
+            return;
+        long millis = -1;
+        int status = resp.getStatusCode();
+        if (status == 429 || status == 503)
+            millis = RetryPolicy.retryAfter(resp);
+        if (millis < 0)
+            millis = reset(resp.getHeaders());
+        if (millis <= 0)
+            return;
+        Bucket bucket = bucket(host);
+        if (bucket.pause(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis)))
+            pauses.increment();
+    }
+
+    /**
+     * @return the milliseconds until the limit announced by the headers is reset if no request remains, or -1.
+     */
+    private static long reset(HttpHeaders headers) {
+        for (String prefix : PREFIXES) {
+            String remaining = headers.getFirstHeaderStringValue(prefix + "Remaining");
+            if (remaining == null)
+                continue;
+            String reset = headers.getFirstHeaderStringValue(prefix + "Reset");
+            try {
+                if (reset == null || Long.parseLong(remaining.trim()) > 0)
+                    return -1;
+                long seconds = Long.parseLong(reset.trim());
+                return seconds > EPOCH_SECONDS
+                        ? TimeUnit.SECONDS.toMillis(seconds) - System.currentTimeMillis()
+                        : TimeUnit.SECONDS.toMillis(seconds);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the bucket of the host, or {@code null} if hosts are neither limited nor paused.
+     */
+    private Bucket bucket(String host) {
+        if (hostPermits == 0 && !adaptive)
+            return null;
+        Bucket bucket = hosts.get(host);
+        if (bucket == null) {
+            // an unlimited bucket only serves to pause the host
+            bucket = hostPermits > 0 ? new Bucket(hostPermits, hostPeriodNanos) : new Bucket(1, 0);
+            Bucket existing = hosts.putIfAbsent(host, bucket);
+            if (existing != null)
+                bucket = existing;
+        }
+        return bucket;
+    }
+
+    /**
+     * A token bucket, kept as the time at which it is full again (the theoretical arrival time of GCRA).
+     */
+    static final class Bucket {
+
+        private final long interval;
+        private final long period;
+        private final AtomicLong full;
+
+        Bucket(int permits, long periodNanos) {
+            this.interval = periodNanos / permits;
+            this.period = interval * permits;
+            this.full = new AtomicLong(System.nanoTime() - period);
+        }
+
+        /**
+         * @return nanoseconds until the permit taken is due, or -1 if none was taken as it is further away than
+         * {@code maxWait}.
+         */
+        long reserve(long now, long maxWait) {
+            while (true) {
+                long current = full.get();
+                long next = Math.max(current, now) + interval;
+                long wait = next - period - now;
+                if (wait > maxWait)
+                    return -1;
+                if (full.compareAndSet(current, next))
+                    return Math.max(0, wait);
+            }
+        }
+
+        /**
+         * Gives back a permit taken by {@link #reserve(long, long)}.
+         */
+        void refund() {
+            full.addAndGet(-interval);
+        }
+
+        /**
+         * Makes the next permit due at {@code until} at the earliest, with no burst after it.
+         *
+         * @return {@code true} if the bucket was not already paused as long.
+         */
+        boolean pause(long until) {
+            long paused = until + period - interval;
+            while (true) {
+                long current = full.get();
+                if (current - paused >= 0)
+                    return false;
+                if (full.compareAndSet(current, paused))
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * Constructs a RateLimiter instance.
+     */
+    public static final class Builder {
+
+        int globalPermits;
+        long globalPeriodNanos;
+        int hostPermits;
+        long hostPeriodNanos;
+        long maxWaitNanos = TimeUnit.SECONDS.toNanos(30);
+        boolean adaptive = true;
+
+        /**
+         * Limits the rate of all the requests. Unlimited by default.
+         *
+         * @param permits number of requests per period, and of requests sent at once.
+         * @param period  period.
+         * @param unit    time interval unit.
+         * @return a {@code Builder} instance.
+         */
+        public Builder globalRate(int permits, long period, TimeUnit unit) {
+            this.globalPeriodNanos = period(permits, period, unit);
+            this.globalPermits = permits;
+            return this;
+        }
+
+        /**
+         * Limits the rate of the requests to every host. Unlimited by default.
+         *
+         * @param permits number of requests per period, and of requests sent at once.
+         * @param period  period.
+         * @param unit    time interval unit.
+         * @return a {@code Builder} instance.
+         */
+        public Builder hostRate(int permits, long period, TimeUnit unit) {
+            this.hostPeriodNanos = period(permits, period, unit);
+            this.hostPermits = permits;
+            return this;
+        }
+
+        private static long period(int permits, long period, TimeUnit unit) {
+            if (permits < 1)
+                throw new IllegalArgumentException("Permits must be positive!");
+            if (period < 1)
+                throw new IllegalArgumentException("Period must be positive!");
+            return unit.toNanos(period);
+        }
+
+        /**
+         * Sets the longest a request waits for its permit before being rejected. Default is 30 seconds.
+         *
+         * @param value maximum wait, 0 to reject the requests instead of delaying them.
+         * @param unit  time interval unit.
+         * @return a {@code Builder} instance.
+         */
+        public Builder maxWait(long value, TimeUnit unit) {
+            if (value < 0)
+                throw new IllegalArgumentException("Max wait must not be negative!");
+            this.maxWaitNanos = unit.toNanos(value);
+            return this;
+        }
+
+        /**
+         * Indicates whether hosts are paused as asked by their {@code Retry-After} and rate limit headers. Enabled by
+         * default.
+         *
+         * @param value {@code true} to follow the headers.
+         * @return a {@code Builder} instance.
+         */
+        public Builder adaptive(boolean value) {
+            this.adaptive = value;
+            return this;
+        }
+
+        /**
+         * Constructs {@code RateLimiter} object.
+         *
+         * @return a {@code RateLimiter} instance.
+         */
+        public RateLimiter build() {
+            return new RateLimiter(this);
+        }
+    }
+}
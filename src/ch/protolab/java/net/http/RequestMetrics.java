@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+/**
+ * Metrics of a single request reported to {@link HttpClientMetrics}, redirects included.<br/>
+ * The timings are measured from the start of the request, so they grow phase after phase. A timing the transport
+ * cannot observe is -1: the transport based on java.net.HttpURLConnection reports neither the connect time nor,
+ * for requests without a body, the time the request was written, while {@link PooledHttpTransport} reports all.
+ */
+public final class RequestMetrics {
+
+    private final String method;
+    private final String host;
+    private final int statusCode;
+    private final Throwable failure;
+    private final int redirects;
+    private final long connectNanos;
+    private final long requestWrittenNanos;
+    private final long firstByteNanos;
+    private final long totalNanos;
+    private final long bytesSent;
+    private final long bytesReceived;
+
+    RequestMetrics(String method, String host, int statusCode, Throwable failure, int redirects, long connectNanos,
+                   long requestWrittenNanos, long firstByteNanos, long totalNanos, long bytesSent,
+                   long bytesReceived) {
+        this.method = method;
+        this.host = host;
+        this.statusCode = statusCode;
+        this.failure = failure;
+        this.redirects = redirects;
+        this.connectNanos = connectNanos;
+        this.requestWrittenNanos = requestWrittenNanos;
+        this.firstByteNanos = firstByteNanos;
+        this.totalNanos = totalNanos;
+        this.bytesSent = bytesSent;
+        this.bytesReceived = bytesReceived;
+    }
+
+    /**
+     * @return HTTP method.
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return host of the request URL.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return status code of the final response, or -1 if the request failed.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the exception which failed the request, or {@code null}.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return number of redirects followed.
+     */
+    public int getRedirects() {
+        return redirects;
+    }
+
+    /**
+     * @return time spent resolving host names and establishing connections, TLS handshakes included; 0 if pooled
+     * connections were reused, -1 if unknown.
+     */
+    public long getConnectNanos() {
+        return connectNanos;
+    }
+
+    /**
+     * @return time until the last request was completely written, or -1 if unknown.
+     */
+    public long getRequestWrittenNanos() {
+        return requestWrittenNanos;
+    }
+
+    /**
+     * @return time until the head of the final response was received, or -1 if the request failed before.
+     */
+    public long getFirstByteNanos() {
+        return firstByteNanos;
+    }
+
+    /**
+     * @return time until the final response body was complete, or the request failed.
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return number of request body bytes sent, redirects included.
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return number of response body bytes received as transferred, i.e. before decompression, redirects included.
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    @Override
+    public String toString() {
+        return method + ' ' + host + " status=" + statusCode + " redirects=" + redirects
+               + " connect=" + connectNanos + "ns written=" + requestWrittenNanos + "ns firstByte=" + firstByteNanos
+               + "ns total=" + totalNanos + "ns sent=" + bytesSent + " received=" + bytesReceived
+               + (failure != null ? " failure=" + failure : "");
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request to a host considered unhealthy or saturated, see {@link CircuitBreaker},
+ * {@link ConcurrencyLimiter} and {@link RateLimiter}. The request has not reached the network, so it can safely be
+ * sent again later.
+ */
+public final class RequestRejectedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Why a request was rejected.
+     */
+    public enum Reason {
+        /**
+         * The circuit breaker of the host is open.
+         */
+        CIRCUIT_OPEN,
+        /**
+         * The host has as many requests in flight as its concurrency limit.
+         */
+        CONCURRENCY_LIMIT,
+        /**
+         * The rate limit of the host, or the global one, would delay the request longer than allowed.
+         */
+        RATE_LIMIT
+    }
+
+    private final Reason reason;
+    private final String host;
+
+    public RequestRejectedException(Reason reason, String host) {
+        super(message(reason) + host);
+        this.reason = reason;
+        this.host = host;
+    }
+
+    private static String message(Reason reason) {
+        switch (reason) {
+            case CIRCUIT_OPEN:
+                return "Circuit open for ";
+            case CONCURRENCY_LIMIT:
+                return "Concurrency limit reached for ";
+            default:
+                return "Rate limit reached for ";
+        }
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * @return the rejected host, as {@code host:port}.
+     */
+    public String getHost() {
+        return host;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpHeaders;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * An HTTP request to be sent by {@link HttpClient#executeAll(java.util.List)}.<br/>
+ * Sample usage:<br/>
+ * <code>
+ * List&lt;RequestSpec&gt; batch = new ArrayList&lt;&gt;();<br/>
+ * batch.add(RequestSpec.get(new GenericUrl("http://example.com/a")));<br/>
+ * batch.add(new RequestSpec.Builder("PUT", new GenericUrl("http://example.com/b")).body(content).build());<br/>
+ * </code>
+ */
+public final class RequestSpec {
+
+    private final String method;
+    private final GenericUrl url;
+    private final HttpHeaders headers;
+    private final HttpContent body;
+    private final Boolean followRedirects;
+
+    RequestSpec(Builder b) {
+        this.method = b.method;
+        this.url = b.url;
+        this.headers = b.headers;
+        this.body = b.body;
+        this.followRedirects = b.followRedirects;
+    }
+
+    /**
+     * @param url request URL
+     * @return a GET request.
+     */
+    public static RequestSpec get(GenericUrl url) {
+        return new Builder("GET", url).build();
+    }
+
+    /**
+     * @param url request URL
+     * @return a HEAD request.
+     */
+    public static RequestSpec head(GenericUrl url) {
+        return new Builder("HEAD", url).build();
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public GenericUrl getUrl() {
+        return url;
+    }
+
+    /**
+     * @return additional headers sent along with the common headers sent by the client, {@code null} if none.
+     */
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return request payload, {@code null} if none.
+     */
+    public HttpContent getBody() {
+        return body;
+    }
+
+    /**
+     * @param defaultValue the client's setting.
+     * @return whether the redirect responses should be handled automatically.
+     */
+    boolean followRedirects(boolean defaultValue) {
+        return followRedirects != null ? followRedirects : defaultValue;
+    }
+
+    /**
+     * Constructs a RequestSpec instance.
+     */
+    public static final class Builder {
+
+        final String method;
+        final GenericUrl url;
+        HttpHeaders headers;
+        HttpContent body;
+        Boolean followRedirects;
+
+        /**
+         * @param method HTTP method.
+         * @param url    request URL
+         */
+        public Builder(String method, GenericUrl url) {
+            this.method = requireNonNull(method, "HTTP method must not be null!");
+            this.url = requireNonNull(url, "Request URL instance must not be null!");
+        }
+
+        /**
+         * Sets additional headers to be sent along with the common headers sent by the client.
+         *
+         * @param headers request headers.
+         * @return a {@code Builder} instance.
+         */
+        public Builder headers(HttpHeaders headers) {
+            this.headers = headers;
+            return this;
+        }
+
+        /**
+         * Sets the request payload; not allowed for GET, HEAD and DELETE requests.
+         *
+         * @param body Request payload to be sent to the server.
+         * @return a {@code Builder} instance.
+         */
+        public Builder body(HttpContent body) {
+            this.body = body;
+            return this;
+        }
+
+        /**
+         * Indicates whether the redirect responses should be handled automatically. Default is the client's setting.
+         *
+         * @param val {@code true} or {@code false}
+         * @return a {@code Builder} instance.
+         */
+        public Builder followRedirects(boolean val) {
+            this.followRedirects = val;
+            return this;
+        }
+
+        /**
+         * Constructs {@code RequestSpec} object.
+         *
+         * @return a {@code RequestSpec} instance.
+         * @throws IllegalArgumentException if a body is supplied with either GET, HEAD, or DELETE request.
+         */
+        public RequestSpec build() {
+            if (("GET".equals(method) || "HEAD".equals(method) || "DELETE".equals(method)) && body != null)
+                throw new IllegalArgumentException("Body must not be supplied for GET/HEAD/DELETE request!");
+            return new RequestSpec(this);
+        }
+    }
+}
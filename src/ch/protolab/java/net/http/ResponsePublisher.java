@@ -0,0 +1,400 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.HttpMediaType;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Publishes the body of a response as it is read, see {@link HttpClient#stream} and {@link HttpClient#streamLines}.
+ * <br/>
+ * Every subscription sends its own request once items are first requested. The body is read on the executor, and only
+ * while the subscriber has outstanding demand: a slow subscriber leaves the rest of the body in the connection rather
+ * than in memory, and no thread waits on its behalf. At most one chunk of the body, and the items decoded from it, are
+ * held at a time.<br/>
+ * A successful body ending normally releases the connection for reuse; cancelling the subscription closes the
+ * connection at once. An unsuccessful (non-2xx) response is signalled as an {@link HttpResponseException}.
+ *
+ * @param <T> type of the published items.
+ */
+final class ResponsePublisher<T> implements Flow.Publisher<T> {
+
+    /**
+     * Sends the request.
+     */
+    interface Opener {
+
+        HttpResponse open() throws IOException;
+    }
+
+    /**
+     * Turns the body of a response into items; one instance per subscription.
+     */
+    interface Decoder<T> {
+
+        /**
+         * @param chunk the next bytes of the body, between the buffer's position and limit; reused afterwards.
+         * @param out   receives the decoded items.
+         */
+        void decode(ByteBuffer chunk, Queue<T> out) throws IOException;
+
+        /**
+         * Called at the end of the body.
+         *
+         * @param out receives the remaining items.
+         */
+        void finish(Queue<T> out) throws IOException;
+    }
+
+    /**
+     * Creates the decoder of a response.
+     */
+    interface DecoderFactory<T> {
+
+        Decoder<T> create(HttpResponse resp);
+    }
+
+    private static final int ACTIVE = 0;
+    private static final int CANCELLED = 1;
+    private static final int DONE = 2;
+
+    private final Executor executor;
+    private final Opener opener;
+    private final DecoderFactory<T> decoders;
+
+    ResponsePublisher(Executor executor, Opener opener, DecoderFactory<T> decoders) {
+        this.executor = executor;
+        this.opener = opener;
+        this.decoders = decoders;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        requireNonNull(subscriber, "Subscriber must not be null!");
+        new BodySubscription<T>(this, subscriber).signal();
+    }
+
+    /**
+     * Publishes the chunks of the body, copied out of the read buffer.
+     */
+    static DecoderFactory<ByteBuffer> chunks() {
+        return new DecoderFactory<ByteBuffer>() {
+            @Override
+            public Decoder<ByteBuffer> create(HttpResponse resp) {
+                return new Decoder<ByteBuffer>() {
+                    @Override
+                    public void decode(ByteBuffer chunk, Queue<ByteBuffer> out) {
+                        out.add(ByteBuffer.wrap(Arrays.copyOfRange(chunk.array(), chunk.position(), chunk.limit())));
+                    }
+
+                    @Override
+                    public void finish(Queue<ByteBuffer> out) {
+                        // nothing buffered
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Publishes the lines of the body, without their LF or CRLF terminator, decoded with the charset of the response,
+     * UTF-8 by default.
+     *
+     * @param maxLength maximum length of a line in bytes; a longer line fails the stream.
+     */
+    static DecoderFactory<String> lines(final int maxLength) {
+        return new DecoderFactory<String>() {
+            @Override
+            public Decoder<String> create(HttpResponse resp) {
+                HttpMediaType type = resp.getMediaType();
+                Charset charset = type != null && type.getCharsetParameter() != null
+                        ? type.getCharsetParameter() : StandardCharsets.UTF_8;
+                return new LineDecoder(charset, maxLength);
+            }
+        };
+    }
+
+    private static final class LineDecoder implements Decoder<String> {
+
+        private final Charset charset;
+        private final int maxLength;
+        private byte[] line = new byte[256];
+        private int length;
+
+        LineDecoder(Charset charset, int maxLength) {
+            this.charset = charset;
+            this.maxLength = maxLength;
+        }
+
+        @Override
+        public void decode(ByteBuffer chunk, Queue<String> out) throws IOException {
+            byte[] bytes = chunk.array();
+            int start = chunk.position();
+            for (int i = start; i < chunk.limit(); i++) {
+                if (bytes[i] == '\n') {
+                    append(bytes, start, i - start);
+                    emit(out);
+                    start = i + 1;
+                }
+            }
+            append(bytes, start, chunk.limit() - start);
+        }
+
+        @Override
+        public void finish(Queue<String> out) {
+            if (length > 0)
+                emit(out);
+        }
+
+        private void append(byte[] bytes, int off, int len) throws IOException {
+            if (length + len > maxLength)
+                throw new IOException("Line longer than " + maxLength + " bytes");
+            if (length + len > line.length)
+                line = Arrays.copyOf(line, Math.min(Math.max(line.length * 2, length + len), maxLength));
+            System.arraycopy(bytes, off, line, length, len);
+            length += len;
+        }
+
+        private void emit(Queue<String> out) {
+            int end = length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+            out.add(new String(line, 0, end, charset));
+            length = 0;
+        }
+    }
+
+    /**
+     * A subscription, driven by a drain loop on the executor: signals are serialized by the loop, and at most one
+     * executor task runs the loop at a time.
+     */
+    private static final class BodySubscription<T> implements Flow.Subscription, Runnable {
+
+        private final ResponsePublisher<T> publisher;
+        private final Flow.Subscriber<? super T> subscriber;
+        private final InFlightCall call = new InFlightCall();
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicInteger state = new AtomicInteger(ACTIVE);
+        private volatile boolean cancelled;
+        private volatile long invalidRequest;
+
+        // accessed by the drain loop only
+        private final Queue<T> pending = new ArrayDeque<>();
+        private boolean subscribed;
+        private boolean terminated;
+        private HttpResponse resp;
+        private InputStream in;
+        private Decoder<T> decoder;
+        private ByteBuffer buffer;
+        private boolean eof;
+
+        BodySubscription(ResponsePublisher<T> publisher, Flow.Subscriber<? super T> subscriber) {
+            this.publisher = publisher;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = n;
+            } else {
+                long current;
+                do {
+                    current = demand.get();
+                    if (current == Long.MAX_VALUE)
+                        break;
+                } while (!demand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+            }
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            // a completed body has been handed back to the transport: its connection must not be closed any more
+            if (state.compareAndSet(ACTIVE, CANCELLED))
+                call.abort();
+            signal();
+        }
+
+        void signal() {
+            if (wip.getAndIncrement() != 0)
+                return;
+            try {
+                publisher.executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // no thread to run the loop: fail on the caller's thread instead
+                if (!subscribed) {
+                    subscribed = true;
+                    subscriber.onSubscribe(this);
+                }
+                terminated = true;
+                subscriber.onError(e);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            for (; ; ) {
+                if (!subscribed) {
+                    subscribed = true;
+                    try {
+                        subscriber.onSubscribe(this);
+                    } catch (Throwable t) {
+                        cancel();
+                    }
+                }
+                if (!terminated)
+                    pump();
+                missed = wip.addAndGet(-missed);
+                if (missed == 0)
+                    return;
+            }
+        }
+
+        private void pump() {
+            for (; ; ) {
+                if (cancelled) {
+                    terminate();
+                    return;
+                }
+                if (invalidRequest != 0) {
+                    cancel();
+                    terminate();
+                    subscriber.onError(new IllegalArgumentException(
+                            "Requested items must be positive, got " + invalidRequest));
+                    return;
+                }
+                if (demand.get() == 0)
+                    return;
+                if (!pending.isEmpty()) {
+                    if (demand.get() != Long.MAX_VALUE)
+                        demand.decrementAndGet();
+                    try {
+                        subscriber.onNext(pending.poll());
+                    } catch (Throwable t) {
+                        cancel();
+                    }
+                    continue;
+                }
+                if (eof) {
+                    terminate();
+                    subscriber.onComplete();
+                    return;
+                }
+                try {
+                    read();
+                } catch (Throwable t) {
+                    boolean aborted = cancelled;
+                    cancel();
+                    terminate();
+                    // reading a cancelled body fails, as its connection is closed: not worth a signal
+                    if (!aborted)
+                        subscriber.onError(t);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Sends the request on the first call, then reads the next chunk of the body.
+         */
+        private void read() throws IOException {
+            if (resp == null) {
+                InFlightCall.bind(call);
+                try {
+                    resp = publisher.opener.open();
+                } finally {
+                    InFlightCall.bind(null);
+                }
+                final HttpResponse opened = resp;
+                call.register(new Closeable() {
+                    @Override
+                    public void close() throws IOException {
+                        opened.disconnect();
+                    }
+                });
+                if (!resp.isSuccessStatusCode())
+                    throw new HttpResponseException(resp);
+                decoder = publisher.decoders.create(resp);
+                in = resp.getContent();
+                if (in == null)
+                    finish();
+                else
+                    buffer = BufferPool.DEFAULT.acquire();
+                return;
+            }
+            int n = in.read(buffer.array(), 0, buffer.capacity());
+            if (n == -1) {
+                finish();
+                return;
+            }
+            buffer.position(0).limit(n);
+            decoder.decode(buffer, pending);
+            buffer.clear();
+        }
+
+        /**
+         * Completes the body, and hands the connection back to the transport unless cancelled meanwhile.
+         */
+        private void finish() throws IOException {
+            decoder.finish(pending);
+            eof = true;
+            if (state.compareAndSet(ACTIVE, DONE)) {
+                if (in != null)
+                    in.close();
+                in = null;
+                resp = null;
+            }
+        }
+
+        private void terminate() {
+            terminated = true;
+            pending.clear();
+            if (buffer != null) {
+                BufferPool.DEFAULT.release(buffer);
+                buffer = null;
+            }
+            if (resp != null) {
+                try {
+                    resp.disconnect();
+                } catch (IOException ignored) {
+                    // the connection is discarded anyway
+                }
+                resp = null;
+            }
+        }
+    }
+}
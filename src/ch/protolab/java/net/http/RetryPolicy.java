@@ -0,0 +1,294 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpResponse;
+
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Retries idempotent requests (GET, HEAD, PUT, DELETE) failing with an I/O error or answered with a retryable status,
+ * 429, 502, 503 and 504 by default.<br/>
+ * Retries are delayed by an exponential backoff with full jitter: a random delay between 0 and
+ * {@code min(maxBackoff, initialBackoff * 2^(retry - 1))}. A {@code Retry-After} header in the response sets the delay
+ * instead; the response is returned as is if it asks to wait longer than {@link Builder#maxRetryAfter(long, TimeUnit)}.
+ * <br/>
+ * Retries are paid from a token bucket so that they cannot exceed a fixed fraction of the traffic: every request adds
+ * {@code ratio} tokens, every retry takes one, and the bucket holds at most {@code reserve} tokens. When it is empty
+ * the failure is returned to the caller. The budget belongs to the policy; clients sharing a policy share it.<br/>
+ * Sample usage:<br/>
+ * <code>
+ * RetryPolicy retries = new RetryPolicy.Builder().maxAttempts(4).budget(0.1, 20).build();<br/>
+ * HttpClient c = new HttpClient.Builder().retryPolicy(retries).build();<br/>
+ * </code>
+ */
+public final class RetryPolicy {
+
+    private final int maxAttempts;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final long maxRetryAfter;
+    private final boolean[] retryStatuses = new boolean[600];
+    private final TokenBudget budget;
+
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder budgetExhausted = new LongAdder();
+
+    RetryPolicy(Builder b) {
+        this.maxAttempts = b.maxAttempts;
+        this.initialBackoff = b.initialBackoff;
+        this.maxBackoff = b.maxBackoff;
+        this.maxRetryAfter = b.maxRetryAfter;
+        for (int status : b.retryStatuses)
+            retryStatuses[status] = true;
+        this.budget = new TokenBudget(b.budgetRatio, b.budgetReserve);
+    }
+
+    /**
+     * Sends a request attempt.
+     */
+    interface Attempt {
+        HttpResponse execute() throws IOException;
+    }
+
+    /**
+     * @return number of retries made.
+     */
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    /**
+     * @return number of retries given up because the budget was exhausted.
+     */
+    public long getBudgetExhaustedCount() {
+        return budgetExhausted.sum();
+    }
+
+    /**
+     * Sends a request, retrying it as configured.
+     *
+     * @param method  HTTP method; requests of other methods than GET, HEAD, PUT and DELETE are sent once.
+     * @param body    request body, {@code null} if none; a body not supporting retries disables them.
+     * @param attempt sends the request.
+     * @return the response of the last attempt.
+     * @throws IOException thrown by the last attempt, or {@link InterruptedIOException} if interrupted while waiting.
+     */
+    HttpResponse execute(String method, HttpContent body, Attempt attempt) throws IOException {
+        budget.deposit();
+        if (!isIdempotent(method) || (body != null && !body.retrySupported()))
+            return attempt.execute();
+
+        for (int n = 1; ; n++) {
+            HttpResponse resp;
+            try {
+                resp = attempt.execute();
+            } catch (IOException e) {
+                if (n >= maxAttempts || !isRetryable(e) || !withdraw())
+                    throw e;
+                sleep(backoff(n));
+                continue;
+            }
+
+            if (n >= maxAttempts || !isRetryable(resp.getStatusCode()))
+                return resp;
+            long delay = retryAfter(resp);
+            if (delay > maxRetryAfter || !withdraw())
+                return resp;
+            // reading a short error body is cheaper than a new connection
+            try {
+                resp.ignore();
+            } catch (IOException e) {
+                resp.disconnect();
+            }
+            sleep(delay >= 0 ? delay : backoff(n));
+        }
+    }
+
+    private static boolean isIdempotent(String method) {
+        return "GET".equals(method) || "HEAD".equals(method) || "PUT".equals(method) || "DELETE".equals(method);
+    }
+
+    private boolean isRetryable(int status) {
+        return status >= 0 && status < retryStatuses.length && retryStatuses[status];
+    }
+
+    /**
+     * @return {@code false} for failures another attempt cannot fix: unknown host, TLS handshake or certificate
+     * errors, interruption or cancellation, and for requests rejected to spare an unhealthy host.
+     */
+    private static boolean isRetryable(IOException e) {
+        if (e instanceof RequestRejectedException || e instanceof UnknownHostException
+            || e instanceof SSLHandshakeException || e instanceof SSLPeerUnverifiedException)
+            return false;
+        if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException))
+            return false;
+        InFlightCall call = InFlightCall.current();
+        return (call == null || !call.isAborted()) && !Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * @return the jittered delay in milliseconds before the retry following attempt {@code n}.
+     */
+    private long backoff(int n) {
+        long ceiling = initialBackoff << Math.min(n - 1, 30);
+        if (ceiling <= 0 || ceiling > maxBackoff)
+            ceiling = maxBackoff;
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * @return the delay in milliseconds asked by the {@code Retry-After} header, or -1 if none.
+     */
+    static long retryAfter(HttpResponse resp) {
+        String value = resp.getHeaders().getFirstHeaderStringValue("Retry-After");
+        if (value == null)
+            return -1;
+        value = value.trim();
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            long date = HttpCache.parseDate(value);
+            return date < 0 ? -1 : Math.max(0, date - System.currentTimeMillis());
+        }
+    }
+
+    private boolean withdraw() {
+        if (!budget.take()) {
+            budgetExhausted.increment();
+            return false;
+        }
+        retries.increment();
+        return true;
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    /**
+     * Constructs a RetryPolicy instance.
+     */
+    public static final class Builder {
+
+        int maxAttempts = 3;
+        long initialBackoff = 100;
+        long maxBackoff = TimeUnit.SECONDS.toMillis(10);
+        long maxRetryAfter = TimeUnit.SECONDS.toMillis(30);
+        int[] retryStatuses = {429, 502, 503, 504};
+        double budgetRatio = 0.1;
+        int budgetReserve = 10;
+
+        /**
+         * Sets the maximum number of attempts of a request, the first one included. Default is 3.
+         *
+         * @param max maximum number of attempts.
+         * @return a {@code Builder} instance.
+         */
+        public Builder maxAttempts(int max) {
+            if (max < 1)
+                throw new IllegalArgumentException("Max attempts must be positive!");
+            this.maxAttempts = max;
+            return this;
+        }
+
+        /**
+         * Sets the backoff bounds. Defaults are 100 milliseconds and 10 seconds.
+         *
+         * @param initial ceiling of the delay before the first retry, doubled for every further one.
+         * @param max     maximum ceiling of the delay.
+         * @param unit    time interval unit.
+         * @return a {@code Builder} instance.
+         */
+        public Builder backoff(long initial, long max, TimeUnit unit) {
+            if (initial < 1 || max < initial)
+                throw new IllegalArgumentException("Backoff must be positive and not exceed its maximum!");
+            this.initialBackoff = Math.max(1, unit.toMillis(initial));
+            this.maxBackoff = Math.max(initialBackoff, unit.toMillis(max));
+            return this;
+        }
+
+        /**
+         * Sets the longest {@code Retry-After} delay honoured; a response asking to wait longer is returned to the
+         * caller. Default is 30 seconds.
+         *
+         * @param max  maximum delay.
+         * @param unit time interval unit.
+         * @return a {@code Builder} instance.
+         */
+        public Builder maxRetryAfter(long max, TimeUnit unit) {
+            if (max < 0)
+                throw new IllegalArgumentException("Max Retry-After must not be negative!");
+            this.maxRetryAfter = unit.toMillis(max);
+            return this;
+        }
+
+        /**
+         * Sets the response status codes worth retrying. Default is 429, 502, 503 and 504.
+         *
+         * @param statuses HTTP status codes.
+         * @return a {@code Builder} instance.
+         */
+        public Builder retryOn(int... statuses) {
+            for (int status : statuses) {
+                if (status < 100 || status > 599)
+                    throw new IllegalArgumentException("Invalid HTTP status code: " + status);
+            }
+            this.retryStatuses = statuses.clone();
+            return this;
+        }
+
+        /**
+         * Sets the retry budget. Defaults are 0.1 and 10: retries are limited to 10% of the requests, beyond an
+         * initial reserve of 10 retries.
+         *
+         * @param ratio   tokens earned by every request, one token paying for a retry.
+         * @param reserve maximum number of tokens saved, and initial balance.
+         * @return a {@code Builder} instance.
+         */
+        public Builder budget(double ratio, int reserve) {
+            if (!(ratio >= 0) || reserve < 0)
+                throw new IllegalArgumentException("Retry budget must not be negative!");
+            this.budgetRatio = ratio;
+            this.budgetReserve = reserve;
+            return this;
+        }
+
+        /**
+         * Constructs {@code RetryPolicy} object.
+         *
+         * @return a {@code RetryPolicy} instance.
+         */
+        public RetryPolicy build() {
+            return new RetryPolicy(this);
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import java.net.CookieStore;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded, concurrent {@link CookieStore}.<br/>
+ * Cookies are sharded by domain, each shard being locked independently, so lookups for different hosts do not
+ * contend. Expired cookies are dropped on access; when a domain or the whole store exceeds its cap, the least
+ * recently used cookies are evicted.<br/>
+ * Sample usage:<br/>
+ * <code>
+ * HttpClient c = new HttpClient.Builder()<br/>
+ * .cookieStore(new ShardedCookieStore.Builder().maxCookies(10000).maxCookiesPerDomain(50).build())<br/>
+ * .build();<br/>
+ * </code>
+ */
+public final class ShardedCookieStore implements CookieStore {
+
+    private final int maxCookies;
+    private final int maxCookiesPerDomain;
+    private final ConcurrentHashMap<String, Shard> shards = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    ShardedCookieStore(Builder b) {
+        this.maxCookies = b.maxCookies;
+        this.maxCookiesPerDomain = b.maxCookiesPerDomain;
+    }
+
+    @Override
+    public void add(URI uri, HttpCookie cookie) {
+        if (cookie == null)
+            throw new NullPointerException("Cookie must not be null!");
+        String domain = cookie.getDomain();
+        if (domain == null) {
+            if (uri == null || uri.getHost() == null)
+                return;
+            domain = uri.getHost();
+        }
+        domain = shardDomain(uri, domain);
+
+        Shard shard = shards.get(domain);
+        if (shard == null) {
+            Shard created = new Shard();
+            shard = shards.putIfAbsent(domain, created);
+            if (shard == null)
+                shard = created;
+        }
+        shard.put(key(cookie, domain), cookie);
+
+        if (size.get() > maxCookies)
+            evictGlobally();
+    }
+
+    @Override
+    public List<HttpCookie> get(URI uri) {
+        if (uri == null)
+            throw new NullPointerException("URI must not be null!");
+        String host = uri.getHost();
+        if (host == null)
+            return Collections.emptyList();
+        host = normalize(host);
+
+        List<HttpCookie> result = new ArrayList<>();
+        // walk the host and its parent domains: a.b.example.com, b.example.com, example.com, com; as the domain a
+        // cookie manager fills in for a host-only cookie is the host itself, such a cookie is shared with the
+        // subdomains of its host, like a cookie set with the Domain attribute
+        for (String domain = host; ; ) {
+            Shard shard = shards.get(domain);
+            if (shard != null)
+                shard.collect(true, result);
+            int dot = domain.indexOf('.');
+            if (dot < 0)
+                break;
+            domain = domain.substring(dot + 1);
+        }
+        return result;
+    }
+
+    @Override
+    public List<HttpCookie> getCookies() {
+        List<HttpCookie> result = new ArrayList<>();
+        for (Shard shard : shards.values())
+            shard.collect(false, result);
+        return Collections.unmodifiableList(result);
+    }
+
+    @Override
+    public List<URI> getURIs() {
+        List<URI> result = new ArrayList<>();
+        for (Map.Entry<String, Shard> e : shards.entrySet()) {
+            if (e.getValue().isEmpty())
+                continue;
+            try {
+                result.add(new URI("http", e.getKey(), null, null));
+            } catch (URISyntaxException ignored) {
+                // not a valid host name
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    @Override
+    public boolean remove(URI uri, HttpCookie cookie) {
+        if (cookie == null)
+            throw new NullPointerException("Cookie must not be null!");
+        String domain = cookie.getDomain() != null ? cookie.getDomain() : uri != null ? uri.getHost() : null;
+        if (domain == null)
+            return false;
+        domain = shardDomain(uri, domain);
+        Shard shard = shards.get(domain);
+        return shard != null && shard.remove(key(cookie, domain));
+    }
+
+    @Override
+    public boolean removeAll() {
+        boolean removed = false;
+        for (Shard shard : shards.values())
+            removed |= shard.clear();
+        return removed;
+    }
+
+    /**
+     * @return number of cookies held by the store, including the expired ones not purged yet.
+     */
+    public int size() {
+        return size.get();
+    }
+
+    private void evictGlobally() {
+        for (Shard shard : shards.values())
+            shard.purgeExpired();
+        while (size.get() > maxCookies) {
+            Shard oldest = null;
+            long oldestAccess = Long.MAX_VALUE;
+            for (Shard shard : shards.values()) {
+                long access = shard.eldestAccess();
+                if (access < oldestAccess) {
+                    oldestAccess = access;
+                    oldest = shard;
+                }
+            }
+            if (oldest == null || !oldest.removeEldest())
+                break;
+        }
+    }
+
+    private static String normalize(String domain) {
+        domain = domain.toLowerCase();
+        return domain.startsWith(".") ? domain.substring(1) : domain;
+    }
+
+    /**
+     * @return the normalized domain of the shard holding a cookie of the domain, set by the URI.
+     */
+    private static String shardDomain(URI uri, String domain) {
+        domain = normalize(domain);
+        // CookieManager gives the host-only cookies of a dotless host such as localhost the domain host.local
+        String host = uri != null ? uri.getHost() : null;
+        if (host != null && host.indexOf('.') < 0 && domain.equals(normalize(host) + ".local"))
+            return normalize(host);
+        return domain;
+    }
+
+    private static String key(HttpCookie cookie, String domain) {
+        String path = cookie.getPath() != null ? cookie.getPath() : "/";
+        return cookie.getName() + ';' + domain + ';' + path;
+    }
+
+    /**
+     * Cookies of a single domain in access order.
+     */
+    private final class Shard {
+
+        private final LinkedHashMap<String, Entry> cookies = new LinkedHashMap<>(8, 0.75f, true);
+
+        synchronized void put(String key, HttpCookie cookie) {
+            Entry old = cookies.remove(key);
+            if (old != null)
+                size.decrementAndGet();
+            if (cookie.hasExpired())
+                return; // a cookie with Max-Age=0 deletes the stored one
+            cookies.put(key, new Entry(cookie));
+            size.incrementAndGet();
+            if (cookies.size() > maxCookiesPerDomain) {
+                purgeExpired();
+                while (cookies.size() > maxCookiesPerDomain)
+                    removeEldest();
+            }
+        }
+
+        /**
+         * Drops the expired cookies and adds the others to {@code result}.
+         *
+         * @param touch {@code true} to mark the collected cookies as recently used.
+         */
+        synchronized void collect(boolean touch, List<HttpCookie> result) {
+            List<String> used = touch ? new ArrayList<String>() : null;
+            for (Iterator<Map.Entry<String, Entry>> it = cookies.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Entry> e = it.next();
+                if (e.getValue().cookie.hasExpired()) {
+                    it.remove();
+                    size.decrementAndGet();
+                } else {
+                    result.add(e.getValue().cookie);
+                    if (touch)
+                        used.add(e.getKey());
+                }
+            }
+            if (touch) {
+                long now = System.nanoTime();
+                for (String key : used)
+                    cookies.get(key).accessed = now; // moves the entry to the tail of the access order
+            }
+        }
+
+        synchronized boolean remove(String key) {
+            if (cookies.remove(key) == null)
+                return false;
+            size.decrementAndGet();
+            return true;
+        }
+
+        synchronized boolean clear() {
+            int n = cookies.size();
+            cookies.clear();
+            size.addAndGet(-n);
+            return n > 0;
+        }
+
+        synchronized boolean isEmpty() {
+            return cookies.isEmpty();
+        }
+
+        synchronized void purgeExpired() {
+            for (Iterator<Entry> it = cookies.values().iterator(); it.hasNext(); ) {
+                if (it.next().cookie.hasExpired()) {
+                    it.remove();
+                    size.decrementAndGet();
+                }
+            }
+        }
+
+        synchronized long eldestAccess() {
+            Iterator<Entry> it = cookies.values().iterator();
+            return it.hasNext() ? it.next().accessed : Long.MAX_VALUE;
+        }
+
+        synchronized boolean removeEldest() {
+            Iterator<Entry> it = cookies.values().iterator();
+            if (!it.hasNext())
+                return false;
+            it.next();
+            it.remove();
+            size.decrementAndGet();
+            return true;
+        }
+    }
+
+    private static final class Entry {
+
+        final HttpCookie cookie;
+        long accessed = System.nanoTime();
+
+        Entry(HttpCookie cookie) {
+            this.cookie = cookie;
+        }
+    }
+
+    /**
+     * Constructs a ShardedCookieStore instance.
+     */
+    public static final class Builder {
+
+        int maxCookies = 3000;
+        int maxCookiesPerDomain = 50;
+
+        /**
+         * Sets the maximum number of cookies held by the store. Default is 3000.
+         *
+         * @param max maximum number of cookies.
+         * @return a {@code Builder} instance.
+         */
+        public Builder maxCookies(int max) {
+            if (max < 1)
+                throw new IllegalArgumentException("Max cookies must be positive!");
+            this.maxCookies = max;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of cookies held for a single domain. Default is 50.
+         *
+         * @param max maximum number of cookies per domain.
+         * @return a {@code Builder} instance.
+         */
+        public Builder maxCookiesPerDomain(int max) {
+            if (max < 1)
+                throw new IllegalArgumentException("Max cookies per domain must be positive!");
+            this.maxCookiesPerDomain = max;
+            return this;
+        }
+
+        /**
+         * Constructs {@code ShardedCookieStore} object.
+         *
+         * @return a {@code ShardedCookieStore} instance.
+         */
+        public ShardedCookieStore build() {
+            return new ShardedCookieStore(this);
+        }
+    }
+}
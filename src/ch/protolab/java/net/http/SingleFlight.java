@@ -0,0 +1,154 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Deduplicates identical idempotent requests in flight: the first caller (the leader) sends the request and buffers
+ * the response, the callers arriving before it completes (the followers) wait and get a replay of the same response.
+ * A failure of the leader is reported to all of them.<br/>
+ * Only a body of known length up to {@link #MAX_BUFFERED_BYTES} is buffered. A larger body, or one whose length is
+ * unknown (chunked, or compressed), is handed to the leader as it is, and the followers then send their own requests.
+ */
+final class SingleFlight {
+
+    static final int MAX_BUFFERED_BYTES = 1 << 20;
+
+    /**
+     * Sends the request.
+     */
+    interface Call {
+        HttpResponse execute() throws IOException;
+    }
+
+    private final ConcurrentHashMap<String, CompletableFuture<BufferedResponse>> flights = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * @param method          request method, GET or HEAD.
+     * @param url             request URL.
+     * @param requestHeaders  complete request headers.
+     * @param followRedirects part of the request identity.
+     * @param call            sends the request when the caller turns out to be the leader, or when the leader's
+     *                        response is not buffered.
+     * @return a replay of the leader's response, or the caller's own response.
+     * @throws IOException thrown by the leader's call.
+     */
+    HttpResponse execute(String method, GenericUrl url, HttpHeaders requestHeaders, boolean followRedirects, Call call)
+            throws IOException {
+        String key = key(method, url, requestHeaders, followRedirects);
+        CompletableFuture<BufferedResponse> flight = new CompletableFuture<>();
+        CompletableFuture<BufferedResponse> leader = flights.putIfAbsent(key, flight);
+        if (leader != null) {
+            coalesced.increment();
+            BufferedResponse shared = await(leader);
+            if (shared != null)
+                return shared.replay(method, url, requestHeaders);
+            // the leader's response was not buffered
+            coalesced.decrement();
+            return call.execute();
+        }
+
+        BufferedResponse resp;
+        try {
+            HttpResponse live = call.execute();
+            if (!isBufferable(method, live)) {
+                flights.remove(key, flight);
+                flight.complete(null);
+                return live;
+            }
+            resp = BufferedResponse.read(live);
+        } catch (IOException | RuntimeException | Error e) {
+            flights.remove(key, flight);
+            flight.completeExceptionally(e);
+            throw e;
+        }
+        // removed first, so that the callers arriving from now on start a new flight
+        flights.remove(key, flight);
+        flight.complete(resp);
+        return resp.replay(method, url, requestHeaders);
+    }
+
+    /**
+     * @return number of calls answered with the response of another call.
+     */
+    long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return {@code true} if the response has no body, or a body of known length small enough to be buffered.
+     */
+    private static boolean isBufferable(String method, HttpResponse resp) {
+        if ("HEAD".equals(method))
+            return true;
+        Long length = resp.getHeaders().getContentLength();
+        // a compressed body is decoded as it is read, into an unknown length
+        return length != null && length <= MAX_BUFFERED_BYTES && resp.getContentEncoding() == null;
+    }
+
+    private static BufferedResponse await(CompletableFuture<BufferedResponse> leader) throws IOException {
+        try {
+            return leader.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a coalesced request");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw new IOException("Coalesced request failed: " + cause.getMessage(), cause);
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * The header names are case-insensitive and sorted, so the key does not depend on the order headers were set.
+     */
+    private static String key(String method, GenericUrl url, HttpHeaders headers, boolean followRedirects) {
+        TreeMap<String, Object> sorted = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        sorted.putAll(headers);
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(method).append(' ').append(url.build()).append(followRedirects ? " R" : " N");
+        for (Map.Entry<String, Object> e : sorted.entrySet()) {
+            if (e.getValue() == null)
+                continue;
+            sb.append('\n').append(e.getKey().toLowerCase()).append(':');
+            if (e.getValue() instanceof Collection) {
+                for (Object v : (Collection<?>) e.getValue())
+                    sb.append(v).append('\u0000');
+            } else {
+                sb.append(e.getValue());
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds extra requests (retries, hedges) to a fraction of the traffic: every request deposits {@code ratio} tokens,
+ * every extra request takes one, and the bucket holds at most {@code reserve} tokens, which it starts with.
+ */
+final class TokenBudget {
+
+    // thousandths of a token, so that fractional deposits add up exactly
+    private static final long TOKEN = 1000;
+
+    private final long deposit;
+    private final long capacity;
+    private final AtomicLong balance;
+
+    TokenBudget(double ratio, int reserve) {
+        this.deposit = Math.round(ratio * TOKEN);
+        this.capacity = reserve * TOKEN;
+        this.balance = new AtomicLong(capacity);
+    }
+
+    /**
+     * Deposits the share of a request.
+     */
+    void deposit() {
+        long current;
+        do {
+            current = balance.get();
+            if (current >= capacity)
+                return;
+        } while (!balance.compareAndSet(current, Math.min(capacity, current + deposit)));
+    }
+
+    /**
+     * @return {@code true} if a token was taken, {@code false} if the budget is exhausted.
+     */
+    boolean take() {
+        long current;
+        do {
+            current = balance.get();
+            if (current < TOKEN)
+                return false;
+        } while (!balance.compareAndSet(current, current - TOKEN));
+        return true;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Base class of the transports decorating another one, e.g. {@link MeteredTransport}: forwards everything to the
+ * decorated transport, subclasses wrap the low-level requests it builds.
+ */
+abstract class TransportDecorator extends HttpTransport {
+
+    private static final Method BUILD_REQUEST;
+
+    static {
+        try {
+            // protected in HttpTransport, and the decorated transport is usually of another package
+            BUILD_REQUEST = HttpTransport.class.getDeclaredMethod("buildRequest", String.class, String.class);
+            BUILD_REQUEST.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    final HttpTransport delegate;
+
+    TransportDecorator(HttpTransport delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public boolean supportsMethod(String method) throws IOException {
+        return delegate.supportsMethod(method);
+    }
+
+    @Override
+    public boolean isMtls() {
+        return delegate.isMtls();
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        delegate.shutdown();
+    }
+
+    /**
+     * @return a request built by the decorated transport.
+     */
+    final LowLevelHttpRequest buildDelegateRequest(String method, String url) throws IOException {
+        try {
+            return (LowLevelHttpRequest) BUILD_REQUEST.invoke(delegate, method, url);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw (Error) cause;
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Forwards the headers and timeouts to the decorated request. The content settings are final in
+     * {@link LowLevelHttpRequest}, subclasses pass them on in {@code execute()}.
+     */
+    abstract static class ForwardingRequest extends LowLevelHttpRequest {
+
+        final LowLevelHttpRequest delegate;
+
+        ForwardingRequest(LowLevelHttpRequest delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void addHeader(String name, String value) throws IOException {
+            delegate.addHeader(name, value);
+        }
+
+        @Override
+        public void setTimeout(int connectTimeout, int readTimeout) throws IOException {
+            delegate.setTimeout(connectTimeout, readTimeout);
+        }
+
+        @Override
+        public void setWriteTimeout(int writeTimeout) throws IOException {
+            delegate.setWriteTimeout(writeTimeout);
+        }
+    }
+
+    /**
+     * Forwards everything to the decorated response.
+     */
+    abstract static class ForwardingResponse extends LowLevelHttpResponse {
+
+        final LowLevelHttpResponse delegate;
+
+        ForwardingResponse(LowLevelHttpResponse delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return delegate.getContent();
+        }
+
+        @Override
+        public String getContentEncoding() throws IOException {
+            return delegate.getContentEncoding();
+        }
+
+        @Override
+        public long getContentLength() throws IOException {
+            return delegate.getContentLength();
+        }
+
+        @Override
+        public String getContentType() throws IOException {
+            return delegate.getContentType();
+        }
+
+        @Override
+        public String getStatusLine() throws IOException {
+            return delegate.getStatusLine();
+        }
+
+        @Override
+        public int getStatusCode() throws IOException {
+            return delegate.getStatusCode();
+        }
+
+        @Override
+        public String getReasonPhrase() throws IOException {
+            return delegate.getReasonPhrase();
+        }
+
+        @Override
+        public int getHeaderCount() throws IOException {
+            return delegate.getHeaderCount();
+        }
+
+        @Override
+        public String getHeaderName(int index) throws IOException {
+            return delegate.getHeaderName(index);
+        }
+
+        @Override
+        public String getHeaderValue(int index) throws IOException {
+            return delegate.getHeaderValue(index);
+        }
+
+        @Override
+        public void disconnect() throws IOException {
+            delegate.disconnect();
+        }
+    }
+}
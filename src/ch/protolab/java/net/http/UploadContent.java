@@ -0,0 +1,222 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.HttpContent;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A request body streamed from its source as it is sent, through a {@link BufferPool} buffer: however large, the
+ * body is never held in memory. A body of known length is sent with {@code Content-Length}, other ones with
+ * {@code Transfer-Encoding: chunked}.<br/>
+ * Sample usage:<br/>
+ * <code>
+ * HttpResponse resp = c.put(url, UploadContent.file(Paths.get("/tmp/archive.zip"), "application/zip"));<br/>
+ * </code>
+ *
+ * @see HttpClient#upload(com.google.api.client.http.GenericUrl, HttpContent, UploadListener)
+ * @see MultipartFormContent
+ */
+public abstract class UploadContent implements HttpContent {
+
+    private final String type;
+
+    UploadContent(String type) {
+        this.type = type;
+    }
+
+    /**
+     * A file body, read with a {@link FileChannel} straight into the buffer written to the connection. The request
+     * can be retried, the file being read again.
+     *
+     * @param file file to send; its length is read now, and must not change until the body is sent.
+     * @param type content type, e.g. {@code application/octet-stream}. Can be {@code null}.
+     * @return a body of known length.
+     * @throws IOException if the file cannot be read.
+     */
+    public static UploadContent file(Path file, String type) throws IOException {
+        requireNonNull(file, "File must not be null!");
+        return new FileUpload(file, Files.size(file), type);
+    }
+
+    /**
+     * A body read from a stream, which is closed once read. The request cannot be retried.
+     *
+     * @param in     stream to send.
+     * @param length number of bytes to send, or -1 to send the stream until its end, chunked.
+     * @param type   content type. Can be {@code null}.
+     * @return a body.
+     */
+    public static UploadContent stream(InputStream in, long length, String type) {
+        requireNonNull(in, "Input stream must not be null!");
+        if (length < -1)
+            throw new IllegalArgumentException("Length must not be negative, or -1 if unknown!");
+        return new StreamUpload(in, length, type);
+    }
+
+    /**
+     * A body produced chunk by chunk, as it is sent, and sent chunked. The request cannot be retried.
+     *
+     * @param source producer of the body.
+     * @param type   content type. Can be {@code null}.
+     * @return a body of unknown length.
+     */
+    public static UploadContent source(ByteBufferSource source, String type) {
+        requireNonNull(source, "Source must not be null!");
+        return new SourceUpload(source, type);
+    }
+
+    @Override
+    public String getType() {
+        return type;
+    }
+
+    private static final class FileUpload extends UploadContent {
+
+        private final Path file;
+        private final long length;
+
+        FileUpload(Path file, long length, String type) {
+            super(type);
+            this.file = file;
+            this.length = length;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public boolean retrySupported() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            ByteBuffer buf = BufferPool.DEFAULT.acquire();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                for (long remaining = length; remaining > 0; ) {
+                    buf.clear();
+                    if (remaining < buf.capacity())
+                        buf.limit((int) remaining);
+                    int n = channel.read(buf);
+                    if (n == -1)
+                        throw new EOFException("File " + file + " is shorter than " + length + " bytes");
+                    out.write(buf.array(), 0, n);
+                    remaining -= n;
+                }
+                out.flush();
+            } finally {
+                BufferPool.DEFAULT.release(buf);
+            }
+        }
+    }
+
+    private static final class StreamUpload extends UploadContent {
+
+        private final InputStream in;
+        private final long length;
+
+        StreamUpload(InputStream in, long length, String type) {
+            super(type);
+            this.in = in;
+            this.length = length;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public boolean retrySupported() {
+            return false;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            ByteBuffer buf = BufferPool.DEFAULT.acquire();
+            try (InputStream stream = in) {
+                byte[] bytes = buf.array();
+                for (long remaining = length; remaining != 0; ) {
+                    int n = stream.read(bytes, 0, remaining < 0 ? bytes.length : (int) Math.min(remaining, bytes.length));
+                    if (n == -1) {
+                        if (remaining > 0)
+                            throw new EOFException("Stream is shorter than " + length + " bytes");
+                        break;
+                    }
+                    out.write(bytes, 0, n);
+                    if (remaining > 0)
+                        remaining -= n;
+                }
+                out.flush();
+            } finally {
+                BufferPool.DEFAULT.release(buf);
+            }
+        }
+    }
+
+    private static final class SourceUpload extends UploadContent {
+
+        private final ByteBufferSource source;
+
+        SourceUpload(ByteBufferSource source, String type) {
+            super(type);
+            this.source = source;
+        }
+
+        @Override
+        public long getLength() {
+            return -1;
+        }
+
+        @Override
+        public boolean retrySupported() {
+            return false;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            ByteBuffer buf = BufferPool.DEFAULT.acquire();
+            try {
+                boolean more;
+                do {
+                    buf.clear();
+                    more = source.fill(buf);
+                    buf.flip();
+                    if (buf.hasRemaining())
+                        out.write(buf.array(), buf.position(), buf.remaining());
+                } while (more);
+                out.flush();
+            } finally {
+                BufferPool.DEFAULT.release(buf);
+            }
+        }
+    }
+}
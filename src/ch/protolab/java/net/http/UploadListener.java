@@ -0,0 +1,33 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+/**
+ * Receives the progress of a request body being sent, see
+ * {@link HttpClient#upload(com.google.api.client.http.GenericUrl, com.google.api.client.http.HttpContent,
+ * UploadListener)}.
+ */
+public interface UploadListener {
+
+    /**
+     * Called as the body is written to the connection, every 64 KiB at most, and once the body is complete. Called
+     * again from the start if the request is retried.
+     *
+     * @param progress the progress so far; the instance is updated afterwards, so it must not be retained.
+     */
+    void progress(UploadProgress progress);
+}
@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Progress of a request body being sent, see {@link UploadListener}.
+ */
+public final class UploadProgress {
+
+    private final long length;
+    private final long startNanos;
+    private long bytesSent;
+    private long elapsedNanos;
+    private boolean complete;
+
+    UploadProgress(long length) {
+        this.length = length;
+        this.startNanos = System.nanoTime();
+    }
+
+    void update(long sent, boolean done) {
+        this.bytesSent = sent;
+        this.elapsedNanos = System.nanoTime() - startNanos;
+        this.complete = done;
+    }
+
+    /**
+     * @return number of bytes of the body written to the connection so far.
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return length of the body, -1 if unknown (chunked upload).
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @param unit time unit.
+     * @return time since the body started being written.
+     */
+    public long getElapsed(TimeUnit unit) {
+        return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return average throughput since the body started being written, 0 if no time elapsed yet.
+     */
+    public double getBytesPerSecond() {
+        return elapsedNanos > 0 ? bytesSent * 1e9 / elapsedNanos : 0;
+    }
+
+    /**
+     * @return {@code true} once the whole body has been written.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    @Override
+    public String toString() {
+        return "UploadProgress{bytesSent=" + bytesSent + ", length=" + length + ", elapsedMillis="
+               + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + ", complete=" + complete + '}';
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Pools of {@link Inflater} and {@link Deflater} instances. Each of them holds a native zlib stream of a few hundred
+ * KiB that is expensive to allocate and only freed by {@code end()} or the garbage collector; reusing them makes
+ * compression per request nearly free of allocation.<br/>
+ * Instances in excess of the pool capacity are ended when released.
+ */
+final class ZlibPool {
+
+    private static final int MAX_IDLE = 32;
+
+    // nowrap (raw DEFLATE, used for GZIP) and ZLIB-wrapped instances cannot be converted into each other
+    private static final BlockingQueue<Inflater> RAW_INFLATERS = new ArrayBlockingQueue<>(MAX_IDLE);
+    private static final BlockingQueue<Inflater> ZLIB_INFLATERS = new ArrayBlockingQueue<>(MAX_IDLE);
+    private static final BlockingQueue<Deflater> RAW_DEFLATERS = new ArrayBlockingQueue<>(MAX_IDLE);
+    private static final BlockingQueue<Deflater> ZLIB_DEFLATERS = new ArrayBlockingQueue<>(MAX_IDLE);
+
+    private ZlibPool() {
+    }
+
+    /**
+     * @param nowrap {@code true} for raw DEFLATE data, {@code false} for ZLIB-wrapped data.
+     * @return a reset inflater, to be given back with {@link #release(Inflater, boolean)}.
+     */
+    static Inflater acquireInflater(boolean nowrap) {
+        Inflater inf = (nowrap ? RAW_INFLATERS : ZLIB_INFLATERS).poll();
+        return inf != null ? inf : new Inflater(nowrap);
+    }
+
+    /**
+     * @param inf    an inflater obtained from {@link #acquireInflater(boolean)}; it must not be used afterwards.
+     * @param nowrap the value it was acquired with.
+     */
+    static void release(Inflater inf, boolean nowrap) {
+        inf.reset();
+        if (!(nowrap ? RAW_INFLATERS : ZLIB_INFLATERS).offer(inf))
+            inf.end();
+    }
+
+    /**
+     * @param nowrap {@code true} for raw DEFLATE data, {@code false} for ZLIB-wrapped data.
+     * @return a reset deflater using the default compression level, to be given back with
+     * {@link #release(Deflater, boolean)}.
+     */
+    static Deflater acquireDeflater(boolean nowrap) {
+        Deflater def = (nowrap ? RAW_DEFLATERS : ZLIB_DEFLATERS).poll();
+        return def != null ? def : new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+    }
+
+    /**
+     * @param def    a deflater obtained from {@link #acquireDeflater(boolean)}; it must not be used afterwards.
+     * @param nowrap the value it was acquired with.
+     */
+    static void release(Deflater def, boolean nowrap) {
+        def.reset();
+        if (!(nowrap ? RAW_DEFLATERS : ZLIB_DEFLATERS).offer(def))
+            def.end();
+    }
+}
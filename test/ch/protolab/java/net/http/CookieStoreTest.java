@@ -0,0 +1,175 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.HttpHeaders;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CookieStoreTest {
+
+    /**
+     * {@code /login} sets a session cookie and redirects to {@code /home}, every path echoes the Cookie header.
+     */
+    private static final HttpHandler SESSION = new HttpHandler() {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            if (ex.getRequestURI().getPath().equals("/login")) {
+                ex.getResponseHeaders().add("Set-Cookie", "session=abc; Path=/");
+                ex.getResponseHeaders().add("Location", "/home");
+                ex.sendResponseHeaders(302, -1);
+                ex.close();
+                return;
+            }
+            String cookie = ex.getRequestHeaders().getFirst("Cookie");
+            StubServer.send(ex, 200, cookie == null ? "none" : cookie);
+        }
+    };
+
+    @Test
+    public void test_Cookies_Disabled_By_Default() throws IOException {
+        try (StubServer server = new StubServer(SESSION)) {
+            HttpClient c = HttpClient.newInstance();
+            assertEquals("none", c.get(server.url("/login")).parseAsString());
+            assertEquals("none", c.get(server.url("/home")).parseAsString());
+        }
+    }
+
+    @Test
+    public void test_Cookies_Follow_Redirects_And_Stay_Per_Client() throws IOException {
+        try (StubServer server = new StubServer(SESSION)) {
+            HttpClient c = new HttpClient.Builder().cookies(true).build();
+            assertEquals("session=abc", c.get(server.url("/login")).parseAsString());
+            assertEquals("session=abc", c.get(server.url("/home")).parseAsString());
+
+            HttpHeaders hh = new HttpHeaders();
+            hh.setCookie("explicit=1");
+            assertEquals("explicit=1; session=abc", c.get(server.url("/home"), hh).parseAsString());
+
+            HttpClient other = new HttpClient.Builder().cookies(true).build();
+            assertEquals("none", other.get(server.url("/home")).parseAsString());
+        }
+    }
+
+    @Test
+    public void test_Domain_Matching() {
+        ShardedCookieStore store = new ShardedCookieStore.Builder().build();
+        store.add(URI.create("http://www.example.com/"), cookie("host", "www.example.com"));
+        store.add(URI.create("http://www.example.com/"), cookie("parent", ".example.com"));
+        store.add(URI.create("http://other.org/"), cookie("other", "other.org"));
+
+        assertEquals(2, store.get(URI.create("http://www.example.com/x")).size());
+        List<HttpCookie> sub = store.get(URI.create("http://api.example.com/"));
+        assertEquals(1, sub.size());
+        assertEquals("parent", sub.get(0).getName());
+        assertEquals(1, store.get(URI.create("http://other.org/")).size());
+        assertEquals(3, store.getCookies().size());
+    }
+
+    @Test
+    public void test_Host_Only_Cookies_Of_Dotless_Host() throws IOException {
+        ShardedCookieStore store = new ShardedCookieStore.Builder().build();
+        CookieManager manager = new CookieManager(store, CookiePolicy.ACCEPT_ORIGINAL_SERVER);
+        URI uri = URI.create("http://localhost/login");
+        manager.put(uri, Collections.singletonMap("Set-Cookie", Collections.singletonList("session=abc; Path=/")));
+
+        List<HttpCookie> cookies = store.get(URI.create("http://localhost/home"));
+        assertEquals(1, cookies.size());
+        assertEquals("session", cookies.get(0).getName());
+        assertEquals(Collections.singletonList("session=abc"),
+                manager.get(URI.create("http://localhost/home"), Collections.<String, List<String>>emptyMap())
+                        .get("Cookie"));
+        assertTrue(store.remove(uri, cookies.get(0)));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void test_Replace_And_Delete_With_Max_Age_0() {
+        ShardedCookieStore store = new ShardedCookieStore.Builder().build();
+        URI uri = URI.create("http://example.com/");
+        store.add(uri, cookie("a", "example.com"));
+        HttpCookie replacement = cookie("a", "example.com");
+        replacement.setValue("2");
+        store.add(uri, replacement);
+        assertEquals(1, store.size());
+        assertEquals("2", store.get(uri).get(0).getValue());
+
+        HttpCookie delete = cookie("a", "example.com");
+        delete.setMaxAge(0);
+        store.add(uri, delete);
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void test_Per_Domain_Cap_Evicts_Least_Recently_Used() {
+        ShardedCookieStore store = new ShardedCookieStore.Builder().maxCookiesPerDomain(2).build();
+        URI uri = URI.create("http://example.com/");
+        store.add(uri, cookie("a", "example.com"));
+        store.add(uri, cookie("b", "example.com"));
+        store.get(uri); // touches a and b, a first
+        store.add(uri, cookie("c", "example.com"));
+
+        assertEquals(2, store.size());
+        List<HttpCookie> left = store.get(uri);
+        assertEquals("b", left.get(0).getName());
+        assertEquals("c", left.get(1).getName());
+    }
+
+    @Test
+    public void test_Global_Cap_Evicts_Across_Domains() throws InterruptedException {
+        ShardedCookieStore store = new ShardedCookieStore.Builder().maxCookies(3).build();
+        for (int i = 0; i < 10; i++) {
+            String domain = "host" + i + ".example.com";
+            store.add(URI.create("http://" + domain + "/"), cookie("c", domain));
+        }
+        assertEquals(3, store.size());
+        assertTrue(store.get(URI.create("http://host0.example.com/")).isEmpty());
+        assertEquals(1, store.get(URI.create("http://host9.example.com/")).size());
+    }
+
+    @Test
+    public void test_Expired_Cookies_Are_Dropped() throws InterruptedException {
+        ShardedCookieStore store = new ShardedCookieStore.Builder().build();
+        URI uri = URI.create("http://example.com/");
+        HttpCookie shortLived = cookie("a", "example.com");
+        shortLived.setMaxAge(1);
+        store.add(uri, shortLived);
+        assertEquals(1, store.get(uri).size());
+        Thread.sleep(2100); // HttpCookie expiry has a one second granularity
+        assertTrue(store.get(uri).isEmpty());
+        assertEquals(0, store.size());
+    }
+
+    private static HttpCookie cookie(String name, String domain) {
+        HttpCookie c = new HttpCookie(name, "1");
+        c.setDomain(domain);
+        c.setPath("/");
+        return c;
+    }
+}
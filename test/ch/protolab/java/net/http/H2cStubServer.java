@@ -0,0 +1,184 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.GenericUrl;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal h2c server for tests: accepts the HTTP/1.1 upgrade to HTTP/2 and answers every stream with status 200
+ * and a body naming the stream, after a fixed delay. Request headers and bodies are not decoded.
+ */
+final class H2cStubServer implements Closeable {
+
+    private static final int DATA = 0, HEADERS = 1, SETTINGS = 4, PING = 6, GOAWAY = 7;
+    private static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4;
+    // HPACK: indexed field 8 of the static table, ":status: 200"
+    private static final byte[] STATUS_200 = {(byte) 0x88};
+
+    private final ServerSocket socket;
+    private final ExecutorService pool = Executors.newCachedThreadPool();
+    private final long delayMillis;
+
+    final AtomicInteger connections = new AtomicInteger();
+    final AtomicInteger streams = new AtomicInteger();
+    final AtomicInteger concurrentStreams = new AtomicInteger();
+    final AtomicInteger peakConcurrentStreams = new AtomicInteger();
+
+    H2cStubServer(long delayMillis) throws IOException {
+        this.delayMillis = delayMillis;
+        this.socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    GenericUrl url(String path) {
+        return new GenericUrl("http://127.0.0.1:" + socket.getLocalPort() + path);
+    }
+
+    private void accept() {
+        while (!socket.isClosed()) {
+            try {
+                final Socket s = socket.accept();
+                connections.incrementAndGet();
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(s);
+                    }
+                });
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket s) {
+        try (Socket conn = s) {
+            InputStream in = conn.getInputStream();
+            final OutputStream out = conn.getOutputStream();
+            String head = readHead(in);
+            if (!head.toLowerCase().contains("upgrade: h2c")) {
+                out.write("HTTP/1.1 505 HTTP Version Not Supported\r\nContent-Length: 0\r\n\r\n"
+                        .getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            out.write("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            writeFrame(out, SETTINGS, 0, 0, new byte[0]);
+
+            DataInputStream data = new DataInputStream(in);
+            byte[] preface = new byte[24];
+            data.readFully(preface);
+            // the upgrade request is stream 1
+            respond(out, 1);
+            while (true) {
+                int length = data.readUnsignedShort() << 8 | data.readUnsignedByte();
+                int type = data.readUnsignedByte();
+                int flags = data.readUnsignedByte();
+                int stream = data.readInt() & 0x7fffffff;
+                byte[] payload = new byte[length];
+                data.readFully(payload);
+                if (type == SETTINGS && (flags & ACK) == 0)
+                    writeFrame(out, SETTINGS, ACK, 0, new byte[0]);
+                else if (type == PING && (flags & ACK) == 0)
+                    writeFrame(out, PING, ACK, 0, payload);
+                else if (type == HEADERS)
+                    respond(out, stream);
+                else if (type == GOAWAY)
+                    return;
+            }
+        } catch (IOException e) {
+            // connection closed by the client
+        }
+    }
+
+    private void respond(final OutputStream out, final int stream) {
+        streams.incrementAndGet();
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                int n = concurrentStreams.incrementAndGet();
+                peakConcurrentStreams.accumulateAndGet(n, Math::max);
+                try {
+                    Thread.sleep(delayMillis);
+                    writeFrame(out, HEADERS, END_HEADERS, stream, STATUS_200);
+                    writeFrame(out, DATA, END_STREAM, stream,
+                            ("stream " + stream).getBytes(StandardCharsets.US_ASCII));
+                } catch (IOException e) {
+                    // connection closed by the client
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    concurrentStreams.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 4 || sb.lastIndexOf("\r\n\r\n") != sb.length() - 4) {
+            int b = in.read();
+            if (b == -1)
+                throw new IOException("Connection closed");
+            sb.append((char) b);
+        }
+        return sb.toString();
+    }
+
+    private static void writeFrame(OutputStream out, int type, int flags, int stream, byte[] payload)
+            throws IOException {
+        byte[] frame = new byte[9 + payload.length];
+        frame[0] = (byte) (payload.length >>> 16);
+        frame[1] = (byte) (payload.length >>> 8);
+        frame[2] = (byte) payload.length;
+        frame[3] = (byte) type;
+        frame[4] = (byte) flags;
+        frame[5] = (byte) (stream >>> 24);
+        frame[6] = (byte) (stream >>> 16);
+        frame[7] = (byte) (stream >>> 8);
+        frame[8] = (byte) stream;
+        System.arraycopy(payload, 0, frame, 9, payload.length);
+        synchronized (out) {
+            out.write(frame);
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        pool.shutdownNow();
+    }
+}
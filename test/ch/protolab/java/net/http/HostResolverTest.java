@@ -0,0 +1,250 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.GenericUrl;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HostResolverTest {
+
+    /**
+     * Resolves the hosts put in {@link #hosts}, counting the lookups.
+     */
+    private static final class FakeResolver implements HostResolver {
+
+        final Map<String, List<InetAddress>> hosts = new ConcurrentHashMap<>();
+        final AtomicInteger lookups = new AtomicInteger();
+
+        @Override
+        public List<InetAddress> resolve(String host) throws UnknownHostException {
+            lookups.incrementAndGet();
+            List<InetAddress> addresses = hosts.get(host);
+            if (addresses == null)
+                throw new UnknownHostException(host);
+            return addresses;
+        }
+    }
+
+    private static InetAddress ip(String literal) throws UnknownHostException {
+        return InetAddress.getByName(literal);
+    }
+
+    @Test
+    public void test_Lookups_Cached_Until_Expiry() throws Exception {
+        FakeResolver fake = new FakeResolver();
+        fake.hosts.put("a.test", Arrays.asList(ip("10.0.0.1")));
+        CachingResolver resolver = new CachingResolver.Builder()
+                .delegate(fake)
+                .ttl(100, TimeUnit.MILLISECONDS)
+                .refreshAhead(1)
+                .build();
+
+        for (int i = 0; i < 3; i++)
+            assertEquals(Arrays.asList(ip("10.0.0.1")), resolver.resolve("a.test"));
+        assertEquals(1, fake.lookups.get());
+        assertEquals(2, resolver.getHitCount());
+
+        fake.hosts.put("a.test", Arrays.asList(ip("10.0.0.2")));
+        Thread.sleep(150);
+        assertEquals(Arrays.asList(ip("10.0.0.2")), resolver.resolve("a.test"));
+        assertEquals(2, fake.lookups.get());
+        assertEquals(2, resolver.getMissCount());
+    }
+
+    @Test
+    public void test_Entries_Refreshed_In_Background() throws Exception {
+        FakeResolver fake = new FakeResolver();
+        fake.hosts.put("a.test", Arrays.asList(ip("10.0.0.1")));
+        CachingResolver resolver = new CachingResolver.Builder()
+                .delegate(fake)
+                .ttl(400, TimeUnit.MILLISECONDS)
+                .refreshAhead(0.25)
+                .build();
+        resolver.resolve("a.test");
+
+        fake.hosts.put("a.test", Arrays.asList(ip("10.0.0.2")));
+        Thread.sleep(150);
+        // served from the cache while the refresh runs
+        assertEquals(Arrays.asList(ip("10.0.0.1")), resolver.resolve("a.test"));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (resolver.getRefreshCount() == 0 && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertEquals(1, resolver.getRefreshCount());
+        assertEquals(Arrays.asList(ip("10.0.0.2")), resolver.resolve("a.test"));
+        assertEquals(1, resolver.getMissCount());
+    }
+
+    @Test
+    public void test_Failed_Refresh_Keeps_Cached_Addresses() throws Exception {
+        FakeResolver fake = new FakeResolver();
+        fake.hosts.put("a.test", Arrays.asList(ip("10.0.0.1")));
+        CachingResolver resolver = new CachingResolver.Builder()
+                .delegate(fake)
+                .ttl(1, TimeUnit.SECONDS)
+                .refreshAhead(0.1)
+                .negativeTtl(1, TimeUnit.MINUTES)
+                .build();
+        resolver.resolve("a.test");
+
+        fake.hosts.remove("a.test");
+        Thread.sleep(150);
+        assertEquals(Arrays.asList(ip("10.0.0.1")), resolver.resolve("a.test"));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (fake.lookups.get() < 2 && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        Thread.sleep(50);
+        // the addresses are still valid, and served from the cache
+        assertEquals(Arrays.asList(ip("10.0.0.1")), resolver.resolve("a.test"));
+        assertEquals(1, resolver.getMissCount());
+        assertEquals(0, resolver.getRefreshCount());
+    }
+
+    @Test
+    public void test_Failed_Lookups_Cached() throws Exception {
+        FakeResolver fake = new FakeResolver();
+        CachingResolver resolver = new CachingResolver.Builder()
+                .delegate(fake)
+                .negativeTtl(1, TimeUnit.MINUTES)
+                .build();
+        for (int i = 0; i < 2; i++) {
+            try {
+                resolver.resolve("missing.test");
+                fail();
+            } catch (UnknownHostException expected) {
+                // expected
+            }
+        }
+        assertEquals(1, fake.lookups.get());
+    }
+
+    /**
+     * Fills the accept queue of a server socket which never accepts, so that further connections to it hang.
+     */
+    private static ServerSocket blackhole(InetAddress address, int port, List<Socket> queued) throws IOException {
+        ServerSocket server = new ServerSocket(port, 1, address);
+        for (int i = 0; i < 8; i++) {
+            Socket s = new Socket();
+            try {
+                s.connect(server.getLocalSocketAddress(), 200);
+                queued.add(s);
+            } catch (SocketTimeoutException e) {
+                s.close();
+                return server;
+            }
+        }
+        server.close();
+        throw new IllegalStateException("Accept queue not filled");
+    }
+
+    @Test
+    public void test_Connection_Raced_Across_Addresses() throws Exception {
+        List<Socket> queued = new ArrayList<>();
+        try (StubServer server = new StubServer(StubServer.respond(200, "ok"));
+             ServerSocket hanging = blackhole(ip("127.0.0.2"), server.url("/").getPort(), queued)) {
+            // the port of the server, on which the first address hangs
+            int port = hanging.getLocalPort();
+            FakeResolver fake = new FakeResolver();
+            fake.hosts.put("multi.test", Arrays.asList(ip("127.0.0.2"), ip("127.0.0.1")));
+            PooledHttpTransport transport = new PooledHttpTransport.Builder()
+                    .resolver(fake)
+                    .connectionAttemptDelay(50, TimeUnit.MILLISECONDS)
+                    .build();
+            try {
+                HttpClient c = new HttpClient.Builder().transport(transport).timeout(10, TimeUnit.SECONDS).build();
+                long start = System.nanoTime();
+                assertEquals("ok", c.get(new GenericUrl("http://multi.test:" + port + "/")).parseAsString());
+                assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+            } finally {
+                transport.shutdown();
+            }
+
+            HttpClient c = new HttpClient.Builder().resolver(fake).build();
+            try {
+                assertEquals("ok", c.get(new GenericUrl("http://multi.test:" + port + "/")).parseAsString());
+            } finally {
+                c.shutdown();
+            }
+        } finally {
+            for (Socket s : queued)
+                s.close();
+        }
+    }
+
+    @Test
+    public void test_Client_Shuts_Down_Its_Own_Transport() throws Exception {
+        try (StubServer server = new StubServer(StubServer.respond(200, "ok"))) {
+            int evictors = evictorThreads();
+            HttpClient c = new HttpClient.Builder().resolver(HostResolver.SYSTEM).build();
+            assertEquals(evictors + 1, evictorThreads());
+            assertEquals("ok", c.get(server.url("/")).parseAsString());
+
+            c.shutdown();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+            while (evictorThreads() > evictors && System.nanoTime() < deadline)
+                Thread.sleep(10);
+            assertEquals(evictors, evictorThreads());
+        }
+    }
+
+    private static int evictorThreads() {
+        int n = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet())
+            if (t.getName().equals("http-pool-evictor") && t.isAlive())
+                n++;
+        return n;
+    }
+
+    @Test
+    public void test_Connect_Fails_When_All_Addresses_Fail() throws Exception {
+        // loopback addresses the server is not bound to refuse connections
+        try (StubServer server = new StubServer(StubServer.respond(200, "ok"))) {
+            List<InetAddress> addresses = Arrays.asList(ip("127.0.0.2"), ip("127.0.0.3"));
+            try {
+                Socket s = HttpConnection.connect(addresses, server.url("/").getPort(), 2000, 50);
+                s.close();
+                fail();
+            } catch (IOException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void test_Addresses_Interleaved_By_Family() throws Exception {
+        List<InetAddress> addresses = Arrays.asList(ip("::1"), ip("::2"), ip("::3"), ip("10.0.0.1"), ip("10.0.0.2"));
+        assertEquals(Arrays.asList(ip("::1"), ip("10.0.0.1"), ip("::2"), ip("10.0.0.2"), ip("::3")),
+                HttpConnection.interleave(addresses));
+    }
+}
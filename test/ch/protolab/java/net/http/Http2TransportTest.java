@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.HttpResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Http2TransportTest {
+
+    @Test
+    public void test_Concurrent_Requests_Multiplexed() throws Exception {
+        Http2Transport transport = new Http2Transport.Builder().build();
+        try (H2cStubServer server = new H2cStubServer(100)) {
+            HttpClient c = new HttpClient.Builder().transport(transport).build();
+            // the upgrade request
+            HttpResponse first = c.get(server.url("/"));
+            assertEquals(200, first.getStatusCode());
+            assertEquals("stream 1", first.parseAsString());
+
+            List<CompletableFuture<HttpResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++)
+                futures.add(c.getAsync(server.url("/" + i)));
+            for (CompletableFuture<HttpResponse> f : futures) {
+                HttpResponse resp = f.get(5, TimeUnit.SECONDS);
+                assertEquals(200, resp.getStatusCode());
+                assertTrue(resp.parseAsString().startsWith("stream "));
+            }
+            assertEquals(1, server.connections.get());
+            assertEquals(9, server.streams.get());
+            assertTrue(server.peakConcurrentStreams.get() > 1);
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    public void test_Falls_Back_To_Http11() throws Exception {
+        HttpHandler echo = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                byte[] body = ex.getRequestBody().readAllBytes();
+                ex.getResponseHeaders().add("X-Upgrade", String.valueOf(ex.getRequestHeaders().getFirst("Upgrade")));
+                ex.getResponseHeaders().add("X-Common", String.valueOf(ex.getRequestHeaders().getFirst("X-Common")));
+                StubServer.send(ex, 201, ex.getRequestMethod() + " " + new String(body, StandardCharsets.UTF_8));
+            }
+        };
+        try (StubServer server = new StubServer(echo)) {
+            HttpClient c = new HttpClient.Builder().http2(true).header("X-Common", "common").build();
+            HttpResponse resp = c.post(server.url("/"), ByteArrayContent.fromString("text/plain", "payload"));
+            assertEquals(201, resp.getStatusCode());
+            assertEquals("h2c", resp.getHeaders().getFirstHeaderStringValue("X-Upgrade"));
+            assertEquals("common", resp.getHeaders().getFirstHeaderStringValue("X-Common"));
+            assertEquals("POST payload", resp.parseAsString());
+
+            resp = c.get(server.url("/"));
+            assertEquals("GET ", resp.parseAsString());
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class HttpCacheTest {
+
+    /**
+     * Responds with the request count and the given cache headers.
+     */
+    private static final class Counting implements HttpHandler {
+
+        final AtomicInteger requests = new AtomicInteger();
+        final String[] headers;
+
+        Counting(String... headers) {
+            this.headers = headers;
+        }
+
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            int n = requests.incrementAndGet();
+            for (int i = 0; i < headers.length; i += 2)
+                ex.getResponseHeaders().add(headers[i], headers[i + 1]);
+            StubServer.send(ex, 200, ex.getRequestURI().getPath() + '#' + n);
+        }
+    }
+
+    @Test
+    public void test_Fresh_Response_Served_From_Cache() throws IOException {
+        Counting handler = new Counting("Cache-Control", "max-age=60");
+        try (StubServer server = new StubServer(handler)) {
+            HttpCache cache = new HttpCache.Builder().build();
+            HttpClient c = new HttpClient.Builder().cache(cache).build();
+
+            assertEquals("/a#1", c.get(server.url("/a")).parseAsString());
+            HttpResponse cached = c.get(server.url("/a"));
+            assertEquals(200, cached.getStatusCode());
+            assertEquals("text/plain; charset=UTF-8", cached.getContentType());
+            assertEquals("/a#1", cached.parseAsString());
+            assertEquals(1, handler.requests.get());
+            assertEquals(1, cache.getHitCount());
+            assertEquals(1, cache.getMissCount());
+
+            HttpHeaders noCache = new HttpHeaders();
+            noCache.setCacheControl("no-cache");
+            assertEquals("/a#2", c.get(server.url("/a"), noCache).parseAsString());
+        }
+    }
+
+    @Test
+    public void test_Stale_Response_Revalidated_With_ETag() throws IOException {
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger conditional = new AtomicInteger();
+        HttpHandler handler = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                requests.incrementAndGet();
+                ex.getResponseHeaders().add("Cache-Control", "no-cache");
+                ex.getResponseHeaders().add("ETag", "\"v1\"");
+                if ("\"v1\"".equals(ex.getRequestHeaders().getFirst("If-None-Match"))) {
+                    conditional.incrementAndGet();
+                    ex.sendResponseHeaders(304, -1);
+                    ex.close();
+                    return;
+                }
+                StubServer.send(ex, 200, "payload");
+            }
+        };
+        try (StubServer server = new StubServer(handler)) {
+            HttpCache cache = new HttpCache.Builder().build();
+            HttpClient c = new HttpClient.Builder().cache(cache).build();
+
+            assertEquals("payload", c.get(server.url("/r")).parseAsString());
+            HttpResponse revalidated = c.get(server.url("/r"));
+            assertEquals(200, revalidated.getStatusCode());
+            assertEquals("payload", revalidated.parseAsString());
+            assertEquals(2, requests.get());
+            assertEquals(1, conditional.get());
+            assertEquals(1, cache.getRevalidationCount());
+            assertEquals(1, cache.getNotModifiedCount());
+            assertEquals(0, cache.getHitCount());
+        }
+    }
+
+    @Test
+    public void test_Uncacheable_Responses_Pass_Through() throws IOException {
+        Counting noStore = new Counting("Cache-Control", "no-store, max-age=60");
+        try (StubServer server = new StubServer(noStore)) {
+            HttpCache cache = new HttpCache.Builder().build();
+            HttpClient c = new HttpClient.Builder().cache(cache).build();
+            c.get(server.url("/x")).parseAsString();
+            assertEquals("/x#2", c.get(server.url("/x")).parseAsString());
+            assertEquals(0, cache.getMemoryEntries());
+        }
+
+        // stale on arrival and without validators
+        Counting expired = new Counting("Cache-Control", "max-age=10", "Age", "20");
+        try (StubServer server = new StubServer(expired)) {
+            HttpCache cache = new HttpCache.Builder().build();
+            HttpClient c = new HttpClient.Builder().cache(cache).build();
+            c.get(server.url("/x")).parseAsString();
+            assertEquals("/x#2", c.get(server.url("/x")).parseAsString());
+            assertEquals(2, cache.getMissCount());
+        }
+    }
+
+    @Test
+    public void test_Redirected_Response_Not_Stored_Under_Requested_Url() throws IOException {
+        final String[] target = {"/v1"};
+        HttpHandler handler = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                String path = ex.getRequestURI().getPath();
+                if (path.equals("/latest")) {
+                    ex.getResponseHeaders().add("Cache-Control", "no-store");
+                    ex.getResponseHeaders().add("Location", target[0]);
+                    ex.sendResponseHeaders(302, -1);
+                    ex.close();
+                    return;
+                }
+                ex.getResponseHeaders().add("Cache-Control", "max-age=31536000");
+                StubServer.send(ex, 200, path);
+            }
+        };
+        try (StubServer server = new StubServer(handler)) {
+            HttpCache cache = new HttpCache.Builder().build();
+            HttpClient c = new HttpClient.Builder().cache(cache).build();
+
+            assertEquals("/v1", c.get(server.url("/latest")).parseAsString());
+            assertEquals(0, cache.getMemoryEntries());
+            target[0] = "/v2";
+            assertEquals("/v2", c.get(server.url("/latest")).parseAsString());
+            assertEquals(0, cache.getHitCount());
+        }
+    }
+
+    @Test
+    public void test_Unfollowed_Redirect_Not_Stored() throws IOException {
+        HttpHandler handler = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                String path = ex.getRequestURI().getPath();
+                ex.getResponseHeaders().add("Cache-Control", "max-age=3600");
+                if (path.equals("/moved")) {
+                    ex.getResponseHeaders().add("Location", "/target");
+                    ex.sendResponseHeaders(301, -1);
+                    ex.close();
+                    return;
+                }
+                StubServer.send(ex, 200, path);
+            }
+        };
+        try (StubServer server = new StubServer(handler)) {
+            HttpCache cache = new HttpCache.Builder().build();
+            HttpClient manual = new HttpClient.Builder().cache(cache).followRedirects(false).build();
+            HttpClient c = new HttpClient.Builder().cache(cache).build();
+
+            HttpResponse resp = manual.get(server.url("/moved"));
+            assertEquals(301, resp.getStatusCode());
+            resp.disconnect();
+            assertEquals("/target", c.get(server.url("/moved")).parseAsString());
+            assertEquals(0, cache.getHitCount());
+        }
+    }
+
+    @Test
+    public void test_Vary_And_Invalidation() throws IOException {
+        Counting handler = new Counting("Cache-Control", "max-age=60", "Vary", "Accept");
+        try (StubServer server = new StubServer(handler)) {
+            HttpCache cache = new HttpCache.Builder().build();
+            HttpClient c = new HttpClient.Builder().accept("text/plain").cache(cache).build();
+
+            assertEquals("/v#1", c.get(server.url("/v")).parseAsString());
+            assertEquals("/v#1", c.get(server.url("/v")).parseAsString());
+            HttpHeaders json = new HttpHeaders();
+            json.setAccept("application/json");
+            assertEquals("/v#2", c.get(server.url("/v"), json).parseAsString());
+
+            c.post(server.url("/v"), ByteArrayContent.fromString("text/plain", "x")).disconnect();
+            assertEquals(0, cache.getMemoryEntries());
+            assertEquals("/v#4", c.get(server.url("/v"), json).parseAsString());
+        }
+    }
+
+    @Test
+    public void test_Evicted_Entries_Spill_To_Disk() throws IOException {
+        Counting handler = new Counting("Cache-Control", "max-age=60");
+        Path dir = Files.createTempDirectory("http-cache");
+        try (StubServer server = new StubServer(handler)) {
+            HttpCache cache = new HttpCache.Builder().maxEntries(1).diskDirectory(dir, 1 << 20).build();
+            HttpClient c = new HttpClient.Builder().cache(cache).build();
+
+            assertEquals("/a#1", c.get(server.url("/a")).parseAsString());
+            assertEquals("/b#2", c.get(server.url("/b")).parseAsString());
+            assertEquals(1, cache.getMemoryEntries());
+            assertEquals(1, cache.getDiskEntries());
+
+            assertEquals("/a#1", c.get(server.url("/a")).parseAsString());
+            assertEquals(2, handler.requests.get());
+            assertEquals(1, cache.getHitCount());
+
+            cache.clear();
+            assertEquals(0, cache.getDiskEntries());
+            try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+                assertEquals(0, files.count());
+            }
+        } finally {
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void test_Freshness_Computation() {
+        assertEquals(-1, HttpCache.parseDate("not a date"));
+        assertEquals(784111777000L, HttpCache.parseDate("Sun, 06 Nov 1994 08:49:37 GMT"));
+        assertEquals(60, HttpCache.CacheControl.parse("public, MAX-AGE=60").maxAge);
+        assertEquals(true, HttpCache.CacheControl.parse("no-cache=\"Set-Cookie\"").noCache);
+        assertNull(new HttpHeaders().getCacheControl());
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HttpClientAsyncTest {
+
+    @Test
+    public void test_Get_Async() throws Exception {
+        try (StubServer server = new StubServer(StubServer.respond(200, "hello"))) {
+            HttpResponse resp = HttpClient.newInstance().getAsync(server.url("/")).get(5, TimeUnit.SECONDS);
+            assertEquals(200, resp.getStatusCode());
+            assertEquals("hello", resp.parseAsString());
+        }
+    }
+
+    @Test
+    public void test_Post_Async() throws Exception {
+        try (StubServer server = new StubServer(StubServer.respond(200, "ok"))) {
+            HttpResponse resp = HttpClient.newInstance()
+                    .postAsync(server.url("/"), ByteArrayContent.fromString("text/plain", "payload"))
+                    .get(5, TimeUnit.SECONDS);
+            assertEquals(200, resp.getStatusCode());
+        }
+    }
+
+    @Test
+    public void test_Body_With_Get_Fails_Future() {
+        HttpClient c = HttpClient.newInstance();
+        CompletableFuture<HttpResponse> f = c.sendAsync(new GenericUrl("http://127.0.0.1/"),
+                "GET", null, true, ByteArrayContent.fromString("text/plain", "x"));
+        try {
+            f.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+            return;
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+        throw new AssertionError("IllegalArgumentException expected");
+    }
+
+    @Test
+    public void test_Max_In_Flight_Is_Respected() throws Exception {
+        final AtomicInteger current = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        HttpHandler slow = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                int n = current.incrementAndGet();
+                peak.accumulateAndGet(n, Math::max);
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                current.decrementAndGet();
+                StubServer.send(ex, 200, "ok");
+            }
+        };
+        try (StubServer server = new StubServer(slow)) {
+            HttpClient c = new HttpClient.Builder().maxInFlight(2).build();
+            List<CompletableFuture<HttpResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++)
+                futures.add(c.getAsync(server.url("/" + i)));
+            for (CompletableFuture<HttpResponse> f : futures)
+                assertEquals(200, f.get(5, TimeUnit.SECONDS).getStatusCode());
+            assertTrue("peak " + peak.get(), peak.get() <= 2);
+        }
+    }
+
+    @Test
+    public void test_Cancel_Disconnects_Request() throws Exception {
+        final CountDownLatch received = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        HttpHandler hanging = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                if (ex.getRequestURI().getPath().equals("/hang")) {
+                    received.countDown();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                StubServer.send(ex, 200, "ok");
+            }
+        };
+        try (StubServer server = new StubServer(hanging)) {
+            HttpClient c = new HttpClient.Builder().maxInFlight(1).build();
+            CompletableFuture<HttpResponse> hung = c.getAsync(server.url("/hang"));
+            assertTrue(received.await(5, TimeUnit.SECONDS));
+            assertTrue(hung.cancel(true));
+
+            // the single in-flight permit is only returned once the hung request has been torn down
+            long start = System.nanoTime();
+            HttpResponse resp = c.getAsync(server.url("/next")).get(5, TimeUnit.SECONDS);
+            assertEquals(200, resp.getStatusCode());
+            assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 5);
+            release.countDown();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpClientBatchTest {
+
+    /**
+     * Echoes the request path, and records the peak number of concurrent requests.
+     */
+    private static final class Echo implements HttpHandler {
+
+        final AtomicInteger current = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            int n = current.incrementAndGet();
+            peak.accumulateAndGet(n, Math::max);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                current.decrementAndGet();
+            }
+            StubServer.send(ex, 200, ex.getRequestURI().getPath());
+        }
+    }
+
+    @Test
+    public void test_Results_In_Order_Over_Reused_Connections() throws Exception {
+        Echo echo = new Echo();
+        PooledHttpTransport transport = new PooledHttpTransport.Builder().build();
+        try (StubServer server = new StubServer(echo)) {
+            HttpClient c = new HttpClient.Builder().transport(transport).build();
+            List<RequestSpec> batch = new ArrayList<>();
+            for (int i = 0; i < 30; i++)
+                batch.add(RequestSpec.get(server.url("/" + i)));
+
+            List<CompletableFuture<HttpResponse>> results = c.executeAll(batch, 2);
+            assertEquals(30, results.size());
+            for (int i = 0; i < 30; i++) {
+                HttpResponse resp = results.get(i).get(5, TimeUnit.SECONDS);
+                assertEquals(200, resp.getStatusCode());
+                assertEquals("/" + i, resp.parseAsString());
+            }
+            assertTrue(echo.peak.get() <= 2);
+            assertTrue(transport.getConnectionsCreated() <= 2);
+            assertTrue(transport.getConnectionsReused() >= 28);
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    public void test_Failed_Host_Does_Not_Fail_Others() throws Exception {
+        GenericUrl unreachable;
+        try (StubServer closed = new StubServer(StubServer.respond(200, "gone"))) {
+            unreachable = closed.url("/");
+        }
+        try (StubServer server = new StubServer(new Echo())) {
+            List<RequestSpec> batch = new ArrayList<>();
+            batch.add(RequestSpec.get(server.url("/a")));
+            batch.add(RequestSpec.get(unreachable));
+            batch.add(new RequestSpec.Builder("PUT", server.url("/b"))
+                    .body(ByteArrayContent.fromString("text/plain", "payload"))
+                    .build());
+
+            List<CompletableFuture<HttpResponse>> results = HttpClient.newInstance().executeAll(batch);
+            assertEquals("/a", results.get(0).get(5, TimeUnit.SECONDS).parseAsString());
+            assertEquals("/b", results.get(2).get(5, TimeUnit.SECONDS).parseAsString());
+            try {
+                results.get(1).get(5, TimeUnit.SECONDS);
+                fail("The request must fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+    }
+
+    @Test
+    public void test_Body_With_Get_Rejected() {
+        try {
+            new RequestSpec.Builder("GET", new GenericUrl("http://127.0.0.1/"))
+                    .body(ByteArrayContent.fromString("text/plain", "x"))
+                    .build();
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
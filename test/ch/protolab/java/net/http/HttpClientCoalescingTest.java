@@ -0,0 +1,180 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HttpClientCoalescingTest {
+
+    /**
+     * Holds every response until released, answering with the request count.
+     */
+    private static final class Gate implements HttpHandler {
+
+        final AtomicInteger requests = new AtomicInteger();
+        final CountDownLatch open = new CountDownLatch(1);
+
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            int n = requests.incrementAndGet();
+            try {
+                open.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            ex.getResponseHeaders().add("X-Accept", String.valueOf(ex.getRequestHeaders().getFirst("Accept")));
+            StubServer.send(ex, 200, "response #" + n);
+        }
+    }
+
+    @Test
+    public void test_Identical_Requests_Share_One_Response() throws Exception {
+        final int callers = 32;
+        Gate gate = new Gate();
+        try (StubServer server = new StubServer(gate)) {
+            ExecutorService executor = Executors.newFixedThreadPool(callers);
+            final HttpClient c = new HttpClient.Builder().coalesceRequests(true).executor(executor).build();
+            final GenericUrl url = server.url("/hot");
+            List<CompletableFuture<HttpResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < callers; i++)
+                futures.add(c.getAsync(url));
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (c.getCoalescedCount() < callers - 1 && System.currentTimeMillis() < deadline)
+                Thread.sleep(5);
+            gate.open.countDown();
+
+            for (CompletableFuture<HttpResponse> f : futures)
+                assertEquals("response #1", f.get(10, TimeUnit.SECONDS).parseAsString());
+            assertEquals(1, gate.requests.get());
+            assertEquals(callers - 1, c.getCoalescedCount());
+
+            // the flight is over: the next call goes to the server
+            assertEquals("response #2", c.get(url).parseAsString());
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void test_Different_Headers_Are_Not_Coalesced() throws Exception {
+        Gate gate = new Gate();
+        try (StubServer server = new StubServer(gate)) {
+            HttpClient c = new HttpClient.Builder().coalesceRequests(true).build();
+            GenericUrl url = server.url("/hot");
+            HttpHeaders json = new HttpHeaders();
+            json.setAccept("application/json");
+            HttpHeaders xml = new HttpHeaders();
+            xml.setAccept("application/xml");
+
+            CompletableFuture<HttpResponse> a = c.getAsync(url, json);
+            CompletableFuture<HttpResponse> b = c.getAsync(url, xml);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (gate.requests.get() < 2 && System.currentTimeMillis() < deadline)
+                Thread.sleep(5);
+            gate.open.countDown();
+
+            assertEquals("application/json", a.get(10, TimeUnit.SECONDS).getHeaders().getFirstHeaderStringValue("X-Accept"));
+            assertEquals("application/xml", b.get(10, TimeUnit.SECONDS).getHeaders().getFirstHeaderStringValue("X-Accept"));
+            assertEquals(2, gate.requests.get());
+            assertEquals(0, c.getCoalescedCount());
+        }
+    }
+
+    @Test
+    public void test_Large_Or_Unknown_Length_Responses_Are_Not_Shared() throws Exception {
+        final byte[] large = new byte[SingleFlight.MAX_BUFFERED_BYTES + 1];
+        final AtomicInteger requests = new AtomicInteger();
+        final CountDownLatch[] open = {null};
+        HttpHandler handler = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                requests.incrementAndGet();
+                try {
+                    open[0].await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                // chunked unless the length is given
+                ex.sendResponseHeaders(200, ex.getRequestURI().getPath().equals("/large") ? large.length : 0);
+                try (OutputStream out = ex.getResponseBody()) {
+                    out.write(large);
+                }
+                ex.close();
+            }
+        };
+        final int callers = 4;
+        try (StubServer server = new StubServer(handler)) {
+            ExecutorService executor = Executors.newFixedThreadPool(callers);
+            HttpClient c = new HttpClient.Builder().coalesceRequests(true).executor(executor).build();
+            for (String path : new String[]{"/large", "/chunked"}) {
+                requests.set(0);
+                open[0] = new CountDownLatch(1);
+                List<CompletableFuture<HttpResponse>> futures = new ArrayList<>();
+                for (int i = 0; i < callers; i++)
+                    futures.add(c.getAsync(server.url(path)));
+                long deadline = System.currentTimeMillis() + 10000;
+                while (c.getCoalescedCount() < callers - 1 && System.currentTimeMillis() < deadline)
+                    Thread.sleep(5);
+                open[0].countDown();
+
+                for (CompletableFuture<HttpResponse> f : futures)
+                    assertEquals(large.length, f.get(10, TimeUnit.SECONDS).getContent().readAllBytes().length);
+                // every follower sent its own request
+                assertEquals(callers, requests.get());
+                assertEquals(0, c.getCoalescedCount());
+            }
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void test_Head_Keeps_Content_Length() throws IOException {
+        try (StubServer server = new StubServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                ex.getResponseHeaders().add("Content-Length", "1234");
+                ex.sendResponseHeaders(200, -1);
+                ex.close();
+            }
+        })) {
+            HttpClient c = new HttpClient.Builder().coalesceRequests(true).build();
+            HttpResponse resp = c.head(server.url("/file"));
+            assertEquals(200, resp.getStatusCode());
+            assertEquals(Long.valueOf(1234), resp.getHeaders().getContentLength());
+            assertTrue(resp.getContent() == null || resp.getContent().read() == -1);
+        }
+    }
+}
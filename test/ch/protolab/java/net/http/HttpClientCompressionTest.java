@@ -0,0 +1,180 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.HttpResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class HttpClientCompressionTest {
+
+    private static final String TEXT;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++)
+            sb.append("line ").append(i).append('\n');
+        TEXT = sb.toString();
+    }
+
+    /**
+     * Answers {@link #TEXT} encoded as asked by the path: {@code /gzip}, {@code /gzip2} (two members), {@code /zlib},
+     * {@code /raw} (raw DEFLATE data labelled {@code deflate}). {@code /echo} decodes the request body and answers
+     * its {@code Content-Encoding} followed by the body.
+     */
+    private static final HttpHandler CODER = new HttpHandler() {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            String path = ex.getRequestURI().getPath();
+            if (path.equals("/echo")) {
+                String encoding = ex.getRequestHeaders().getFirst("Content-Encoding");
+                InputStream in = ex.getRequestBody();
+                if ("gzip".equals(encoding))
+                    in = new GZIPInputStream(in);
+                StubServer.send(ex, 200, encoding + ":" + new String(in.readAllBytes(), StandardCharsets.UTF_8));
+                return;
+            }
+            byte[] text = TEXT.getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            String encoding = "deflate";
+            if (path.startsWith("/gzip")) {
+                encoding = "gzip";
+                int half = path.equals("/gzip2") ? text.length / 2 : text.length;
+                try (GZIPOutputStream out = new GZIPOutputStream(body)) {
+                    out.write(text, 0, half);
+                }
+                if (half < text.length) {
+                    try (GZIPOutputStream out = new GZIPOutputStream(body)) {
+                        out.write(text, half, text.length - half);
+                    }
+                }
+            } else {
+                try (OutputStream out = new DeflaterOutputStream(body,
+                        new Deflater(Deflater.DEFAULT_COMPRESSION, path.equals("/raw")))) {
+                    out.write(text);
+                }
+            }
+            ex.getResponseHeaders().add("Content-Encoding", encoding);
+            ex.getResponseHeaders().add("X-Accept-Encoding", ex.getRequestHeaders().getFirst("Accept-Encoding"));
+            if ("HEAD".equals(ex.getRequestMethod())) {
+                ex.sendResponseHeaders(200, -1);
+                ex.close();
+                return;
+            }
+            ex.sendResponseHeaders(200, body.size());
+            try (OutputStream out = ex.getResponseBody()) {
+                body.writeTo(out);
+            }
+            ex.close();
+        }
+    };
+
+    @Test
+    public void test_Responses_Decoded() throws IOException {
+        PooledHttpTransport transport = new PooledHttpTransport.Builder().build();
+        try (StubServer server = new StubServer(CODER)) {
+            HttpClient[] clients = {
+                    new HttpClient.Builder().acceptEncoding(ContentCoding.GZIP, ContentCoding.DEFLATE).build(),
+                    new HttpClient.Builder().acceptEncoding(ContentCoding.GZIP, ContentCoding.DEFLATE)
+                            .transport(transport).build()
+            };
+            for (HttpClient c : clients) {
+                for (String path : new String[]{"/gzip", "/gzip2", "/zlib", "/raw"}) {
+                    HttpResponse resp = c.get(server.url(path));
+                    assertEquals("gzip, deflate", resp.getHeaders().getFirstHeaderStringValue("X-Accept-Encoding"));
+                    assertNull(resp.getContentEncoding());
+                    assertNull(resp.getHeaders().getContentLength());
+                    assertEquals(path, TEXT, resp.parseAsString());
+                }
+                HttpResponse resp = c.head(server.url("/gzip"));
+                assertEquals(200, resp.getStatusCode());
+                assertEquals("gzip", resp.getContentEncoding());
+            }
+            // the decoder read every body up to its end, so the connection was reused
+            assertEquals(1, transport.getConnectionsCreated());
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    public void test_Identity_When_No_Coding_Accepted() throws IOException {
+        try (StubServer server = new StubServer(CODER)) {
+            HttpClient c = new HttpClient.Builder().acceptEncoding().build();
+            HttpResponse resp = c.get(server.url("/gzip"));
+            assertEquals("identity", resp.getHeaders().getFirstHeaderStringValue("X-Accept-Encoding"));
+            // decoded all the same
+            assertEquals(TEXT, resp.parseAsString());
+        }
+    }
+
+    @Test
+    public void test_Request_Bodies_Compressed_Above_Threshold() throws IOException {
+        PooledHttpTransport transport = new PooledHttpTransport.Builder().build();
+        try (StubServer server = new StubServer(CODER)) {
+            for (HttpClient c : new HttpClient[]{
+                    new HttpClient.Builder().compressRequests(ContentCoding.GZIP, 1024).build(),
+                    new HttpClient.Builder().compressRequests(ContentCoding.GZIP, 1024).transport(transport).build()}) {
+                assertEquals("gzip:" + TEXT,
+                        c.post(server.url("/echo"), ByteArrayContent.fromString("text/plain", TEXT)).parseAsString());
+                assertEquals("null:small",
+                        c.post(server.url("/echo"), ByteArrayContent.fromString("text/plain", "small")).parseAsString());
+            }
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    public void test_Deflated_Content_Round_Trip() throws IOException {
+        byte[] text = TEXT.getBytes(StandardCharsets.UTF_8);
+        for (ContentCoding coding : ContentCoding.values()) {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            new CompressionStreams.DeflatedContent(new ByteArrayContent(null, text), coding).writeTo(encoded);
+            try (InputStream in = new CompressionStreams.InflatingInputStream(
+                    new ByteArrayInputStream(encoded.toByteArray()), coding)) {
+                assertEquals(coding.getName(), TEXT, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Test
+    public void test_Inflaters_Reused() {
+        Inflater inf = ZlibPool.acquireInflater(true);
+        ZlibPool.release(inf, true);
+        assertSame(inf, ZlibPool.acquireInflater(true));
+        ZlibPool.release(inf, true);
+    }
+}
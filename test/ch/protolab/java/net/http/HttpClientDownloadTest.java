@@ -0,0 +1,181 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.HttpResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpClientDownloadTest {
+
+    private static final byte[] BODY = new byte[1 << 20];
+
+    static {
+        new Random(42).nextBytes(BODY);
+    }
+
+    /**
+     * {@code /missing} answers 404, every other path answers {@link #BODY}.
+     */
+    private static final HttpHandler FILES = new HttpHandler() {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            if (ex.getRequestURI().getPath().equals("/missing")) {
+                StubServer.send(ex, 404, "not found");
+                return;
+            }
+            ex.sendResponseHeaders(200, BODY.length);
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(BODY);
+            }
+            ex.close();
+        }
+    };
+
+    @Test
+    public void test_Download_To_Channel_And_Sink() throws IOException {
+        PooledHttpTransport transport = new PooledHttpTransport.Builder().build();
+        try (StubServer server = new StubServer(FILES)) {
+            HttpClient c = new HttpClient.Builder().transport(transport).build();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            HttpResponse resp = c.download(server.url("/file"), Channels.newChannel(out));
+            assertEquals(200, resp.getStatusCode());
+            assertArrayEquals(BODY, out.toByteArray());
+            assertEquals(0, transport.getLeasedConnections());
+            assertEquals(1, transport.getIdleConnections());
+
+            final ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+            c.download(server.url("/file"), null, new ByteBufferSink() {
+                @Override
+                public void write(ByteBuffer chunk) {
+                    chunks.write(chunk.array(), chunk.position(), chunk.remaining());
+                }
+            });
+            assertArrayEquals(BODY, chunks.toByteArray());
+            assertEquals(1, transport.getConnectionsReused());
+            assertEquals(1, transport.getIdleConnections());
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    public void test_Download_Not_Buffered_By_Coalescing() throws Exception {
+        final CountDownLatch firstChunk = new CountDownLatch(1);
+        HttpHandler halves = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                ex.sendResponseHeaders(200, 1000);
+                try (OutputStream out = ex.getResponseBody()) {
+                    out.write(BODY, 0, 500);
+                    out.flush();
+                    // the second half is only sent once the first one has reached the sink
+                    try {
+                        firstChunk.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    out.write(BODY, 500, 500);
+                }
+                ex.close();
+            }
+        };
+        try (StubServer server = new StubServer(halves)) {
+            HttpClient c = new HttpClient.Builder().coalesceRequests(true).build();
+            final ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+            long start = System.nanoTime();
+            c.download(server.url("/file"), null, new ByteBufferSink() {
+                @Override
+                public void write(ByteBuffer chunk) {
+                    chunks.write(chunk.array(), chunk.position(), chunk.remaining());
+                    firstChunk.countDown();
+                }
+            });
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(4));
+            assertArrayEquals(Arrays.copyOf(BODY, 1000), chunks.toByteArray());
+        }
+    }
+
+    @Test
+    public void test_Download_To_File() throws IOException {
+        Path file = Files.createTempFile("download", ".bin");
+        try (StubServer server = new StubServer(FILES)) {
+            HttpClient c = HttpClient.newInstance();
+
+            Files.write(file, new byte[]{1, 2, 3});
+            assertEquals(200, c.download(server.url("/file"), file).getStatusCode());
+            assertArrayEquals(BODY, Files.readAllBytes(file));
+
+            Files.write(file, new byte[]{1, 2, 3});
+            HttpResponse resp = c.download(server.url("/missing"), file);
+            assertEquals(404, resp.getStatusCode());
+            assertEquals("not found", resp.parseAsString());
+            assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void test_Failed_Transfer_Discards_Connection() throws IOException {
+        PooledHttpTransport transport = new PooledHttpTransport.Builder().build();
+        Path file = Files.createTempFile("download", ".bin");
+        try (StubServer server = new StubServer(FILES)) {
+            HttpClient c = new HttpClient.Builder().transport(transport).build();
+            try {
+                c.download(server.url("/file"), null, new ByteBufferSink() {
+                    @Override
+                    public void write(ByteBuffer chunk) throws IOException {
+                        throw new IOException("Disk full");
+                    }
+                });
+                fail("The sink failure must be thrown");
+            } catch (IOException e) {
+                assertEquals("Disk full", e.getMessage());
+            }
+            assertEquals(0, transport.getLeasedConnections());
+            assertEquals(0, transport.getIdleConnections());
+
+            Files.delete(file);
+            c.download(server.url("/file"), file);
+            assertArrayEquals(BODY, Files.readAllBytes(file));
+            assertEquals(2, transport.getConnectionsCreated());
+        } finally {
+            Files.deleteIfExists(file);
+            transport.shutdown();
+        }
+    }
+}
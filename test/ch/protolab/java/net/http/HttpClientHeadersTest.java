@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class HttpClientHeadersTest {
+
+    private static final int THREADS = 64;
+    private static final int REQUESTS_PER_THREAD = 50;
+
+    /**
+     * Echoes the request's X-Caller header and the list of X-Caller-* headers it has received.
+     */
+    private static final HttpHandler ECHO = new HttpHandler() {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            StringBuilder sb = new StringBuilder(ex.getRequestHeaders().getFirst("X-Caller"));
+            for (Map.Entry<String, List<String>> e : ex.getRequestHeaders().entrySet())
+                if (e.getKey().toLowerCase().startsWith("x-caller-"))
+                    sb.append(' ').append(e.getKey().toLowerCase()).append('=').append(e.getValue());
+            sb.append(" ua=").append(ex.getRequestHeaders().getFirst("User-Agent"));
+            StubServer.send(ex, 200, sb.toString());
+        }
+    };
+
+    @Test
+    public void test_Builder_Changes_After_Build_Are_Ignored() throws IOException {
+        try (StubServer server = new StubServer(ECHO)) {
+            HttpClient.Builder b = new HttpClient.Builder().userAgent("Before/1.0");
+            HttpClient c = b.build();
+            b.userAgent("After/1.0").header("X-Caller-Late", "1");
+
+            HttpHeaders hh = new HttpHeaders();
+            hh.set("X-Caller", "main");
+            assertEquals("main ua=Before/1.0", c.get(server.url("/"), hh).parseAsString());
+        }
+    }
+
+    @Test
+    public void test_Per_Request_Headers_Do_Not_Leak_Into_Common_Headers() throws IOException {
+        try (StubServer server = new StubServer(ECHO)) {
+            HttpClient c = new HttpClient.Builder().userAgent("Test/1.0").build();
+
+            HttpHeaders first = new HttpHeaders();
+            first.set("X-Caller", "first");
+            first.set("X-Caller-Secret", "42");
+            HttpResponse resp = c.get(server.url("/"), first);
+            assertEquals("first x-caller-secret=[42] ua=Test/1.0", resp.parseAsString());
+
+            HttpHeaders second = new HttpHeaders();
+            second.set("X-Caller", "second");
+            resp = c.get(server.url("/"), second);
+            assertEquals("second ua=Test/1.0", resp.parseAsString());
+            assertNull(resp.getRequest().getHeaders().get("X-Caller-Secret"));
+        }
+    }
+
+    @Test
+    public void test_Request_Headers_Can_Be_Cloned_And_Changed() throws IOException {
+        try (StubServer server = new StubServer(ECHO)) {
+            HttpClient c = new HttpClient.Builder().userAgent("Test/1.0").accept("application/json").build();
+            HttpHeaders hh = new HttpHeaders();
+            hh.set("X-Caller", "first");
+            HttpResponse resp = c.get(server.url("/"), hh);
+            resp.disconnect();
+
+            HttpHeaders sent = resp.getRequest().getHeaders();
+            HttpHeaders copy = sent.clone();
+            assertEquals("application/json", copy.getAccept());
+            sent.setAccept("text/plain");
+            assertEquals("application/json", copy.getAccept());
+
+            // the change stays with the request
+            hh.set("X-Caller", "second");
+            assertEquals("application/json", c.get(server.url("/"), hh).getRequest().getHeaders().getAccept());
+        }
+    }
+
+    @Test
+    public void test_No_Cross_Request_Leakage_Under_Concurrency() throws Exception {
+        try (StubServer server = new StubServer(ECHO)) {
+            final HttpClient c = new HttpClient.Builder()
+                    .userAgent("Stress/1.0")
+                    .header("X-Common", "common")
+                    .build();
+
+            ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+            try {
+                List<Future<Void>> results = new ArrayList<>();
+                for (int t = 0; t < THREADS; t++) {
+                    final int thread = t;
+                    results.add(pool.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+                                String caller = thread + "-" + i;
+                                HttpHeaders hh = new HttpHeaders();
+                                hh.set("X-Caller", caller);
+                                hh.set("X-Caller-" + thread, String.valueOf(i));
+                                HttpResponse resp = c.get(server.url("/"), hh);
+                                assertEquals(caller + " x-caller-" + thread + "=[" + i + "] ua=Stress/1.0",
+                                        resp.parseAsString());
+                                assertEquals("common", resp.getRequest().getHeaders().getFirstHeaderStringValue("X-Common"));
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> f : results)
+                    f.get(60, TimeUnit.SECONDS);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+}
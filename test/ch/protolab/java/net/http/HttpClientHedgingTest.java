@@ -0,0 +1,173 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HttpClientHedgingTest {
+
+    /**
+     * Answers the requests {@code from} to {@code to} (counting from 1) after {@code delay} milliseconds, the other
+     * ones at once.
+     */
+    private static final class Slow implements HttpHandler {
+
+        final int from;
+        final int to;
+        final long delay;
+        final AtomicInteger requests = new AtomicInteger();
+
+        Slow(int from, int to, long delay) {
+            this.from = from;
+            this.to = to;
+            this.delay = delay;
+        }
+
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            int n = requests.incrementAndGet();
+            boolean isSlow = n >= from && n <= to;
+            if (isSlow) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            try {
+                StubServer.send(ex, 200, isSlow ? "slow" : "fast");
+            } catch (IOException e) {
+                // the client disconnected the losing request
+            }
+        }
+    }
+
+    private static String host(GenericUrl url) {
+        return url.getHost() + ":" + url.getPort();
+    }
+
+    @Test
+    public void test_Hedge_Wins_Over_Slow_Request() throws IOException {
+        Slow handler = new Slow(2, 2, 3000);
+        try (StubServer server = new StubServer(handler)) {
+            // warms the server and the client up, so that the first request reaches the server before its hedge
+            HttpClient.newInstance().get(server.url("/")).disconnect();
+            HedgePolicy hedging = new HedgePolicy.Builder().delay(100, TimeUnit.MILLISECONDS).build();
+            HttpClient c = new HttpClient.Builder().hedgePolicy(hedging).build();
+
+            long start = System.nanoTime();
+            HttpResponse resp = c.get(server.url("/"));
+            assertEquals("fast", resp.parseAsString());
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+            assertEquals(3, handler.requests.get());
+            assertEquals(1, hedging.getHedgeCount());
+            assertEquals(1, hedging.getHedgeWinCount());
+        }
+    }
+
+    @Test
+    public void test_Fast_Requests_Not_Hedged() throws IOException {
+        Slow handler = new Slow(0, 0, 0);
+        try (StubServer server = new StubServer(handler)) {
+            HedgePolicy hedging = new HedgePolicy.Builder().delay(1, TimeUnit.SECONDS).build();
+            HttpClient c = new HttpClient.Builder().hedgePolicy(hedging).build();
+            for (int i = 0; i < 5; i++)
+                assertEquals("fast", c.get(server.url("/")).parseAsString());
+            assertEquals(5, handler.requests.get());
+            assertEquals(0, hedging.getHedgeCount());
+        }
+    }
+
+    @Test
+    public void test_Hedges_Limited_By_Budget() throws IOException {
+        Slow handler = new Slow(1, Integer.MAX_VALUE, 200);
+        try (StubServer server = new StubServer(handler)) {
+            HedgePolicy hedging = new HedgePolicy.Builder()
+                    .delay(20, TimeUnit.MILLISECONDS)
+                    .budget(0, 1)
+                    .build();
+            HttpClient c = new HttpClient.Builder().hedgePolicy(hedging).build();
+            assertEquals("slow", c.get(server.url("/")).parseAsString());
+            assertEquals("slow", c.get(server.url("/")).parseAsString());
+            assertEquals(1, hedging.getHedgeCount());
+            assertEquals(1, hedging.getBudgetExhaustedCount());
+        }
+    }
+
+    @Test
+    public void test_Delay_Follows_Percentile() throws IOException {
+        try (StubServer server = new StubServer(new Slow(0, 0, 0))) {
+            HedgePolicy hedging = new HedgePolicy.Builder()
+                    .delay(5, TimeUnit.SECONDS)
+                    .percentile(95)
+                    .build();
+            HttpClient c = new HttpClient.Builder().hedgePolicy(hedging).build();
+            GenericUrl url = server.url("/");
+            for (int i = 0; i < 64; i++)
+                c.get(url).disconnect();
+            assertTrue(hedging.getDelay(host(url), TimeUnit.MILLISECONDS) < 1000);
+            assertEquals(0, hedging.getHedgeCount());
+        }
+    }
+
+    @Test
+    public void test_Hedge_Sends_Original_Headers() throws IOException {
+        final List<String> cookies = new CopyOnWriteArrayList<>();
+        final List<String> authorizations = new CopyOnWriteArrayList<>();
+        final Slow slow = new Slow(2, 2, 3000);
+        try (StubServer server = new StubServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                cookies.add(ex.getRequestHeaders().getFirst("Cookie"));
+                authorizations.add(ex.getRequestHeaders().getFirst("Authorization"));
+                ex.getResponseHeaders().add("Set-Cookie", "b=2");
+                slow.handle(ex);
+            }
+        })) {
+            HedgePolicy hedging = new HedgePolicy.Builder().delay(100, TimeUnit.MILLISECONDS).build();
+            HttpClient c = new HttpClient.Builder()
+                    .hedgePolicy(hedging)
+                    .cookies(true)
+                    .header("Cookie", "a=1")
+                    .header("Authorization", "Bearer t")
+                    .build();
+            // warms the server and the client up, and stores a cookie
+            c.get(server.url("/")).disconnect();
+
+            assertEquals("fast", c.get(server.url("/")).parseAsString());
+            assertEquals(1, hedging.getHedgeCount());
+            assertEquals(3, cookies.size());
+            assertEquals("a=1; b=2", cookies.get(1));
+            assertEquals("a=1; b=2", cookies.get(2));
+            assertEquals("Bearer t", authorizations.get(1));
+            assertEquals("Bearer t", authorizations.get(2));
+        }
+    }
+}
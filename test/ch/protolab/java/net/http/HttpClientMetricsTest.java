@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpClientMetricsTest {
+
+    /**
+     * {@code /moved} redirects to {@code /hello}, every other path answers "hello".
+     */
+    private static final HttpHandler HELLO = new HttpHandler() {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            if (ex.getRequestURI().getPath().equals("/moved")) {
+                ex.getResponseHeaders().add("Location", "/hello");
+                ex.sendResponseHeaders(302, -1);
+                ex.close();
+                return;
+            }
+            ex.getRequestBody().readAllBytes();
+            StubServer.send(ex, 200, "hello");
+        }
+    };
+
+    private static final class Recorder implements HttpClientMetrics {
+
+        final List<RequestMetrics> events = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void requestCompleted(RequestMetrics metrics) {
+            events.add(metrics);
+        }
+    }
+
+    @Test
+    public void test_Request_Reported_When_Body_Complete() throws IOException {
+        try (StubServer server = new StubServer(HELLO)) {
+            Recorder recorder = new Recorder();
+            HttpClient c = new HttpClient.Builder().metrics(recorder).build();
+
+            HttpResponse resp = c.get(server.url("/hello"));
+            assertEquals(0, recorder.events.size());
+            assertEquals("hello", resp.parseAsString());
+            assertEquals(1, recorder.events.size());
+
+            RequestMetrics m = recorder.events.get(0);
+            assertEquals("GET", m.getMethod());
+            assertEquals("127.0.0.1", m.getHost());
+            assertEquals(200, m.getStatusCode());
+            assertEquals(5, m.getBytesReceived());
+            assertEquals(0, m.getRedirects());
+            assertEquals(-1, m.getConnectNanos());
+            assertTrue(m.getFirstByteNanos() > 0);
+            assertTrue(m.getTotalNanos() >= m.getFirstByteNanos());
+
+            c.post(server.url("/hello"), ByteArrayContent.fromString("text/plain", "abc")).disconnect();
+            m = recorder.events.get(1);
+            assertEquals(3, m.getBytesSent());
+            assertTrue(m.getRequestWrittenNanos() > 0);
+            assertTrue(m.getFirstByteNanos() >= m.getRequestWrittenNanos());
+
+            c.head(server.url("/hello"));
+            assertEquals(3, recorder.events.size());
+        }
+    }
+
+    @Test
+    public void test_Pooled_Transport_Reports_All_Phases() throws IOException {
+        PooledHttpTransport transport = new PooledHttpTransport.Builder().build();
+        try (StubServer server = new StubServer(HELLO)) {
+            DefaultHttpClientMetrics metrics = new DefaultHttpClientMetrics();
+            HttpClient c = new HttpClient.Builder().transport(transport).metrics(metrics).build();
+
+            assertEquals("hello", c.get(server.url("/moved")).parseAsString());
+            assertEquals("hello", c.get(server.url("/hello")).parseAsString());
+
+            assertEquals(2, metrics.getRequestCount());
+            assertEquals(1, metrics.getRedirectCount());
+            assertEquals(2, metrics.getStatusCount("127.0.0.1", 200));
+            assertEquals(10, metrics.getBytesReceived());
+            assertEquals(2, metrics.getConnectLatency().getCount());
+            assertEquals(2, metrics.getRequestWrittenLatency().getCount());
+            // the second request reused the connection
+            assertEquals(0, metrics.getConnectLatency().getValueAtPercentile(50));
+            assertTrue(metrics.getTotalLatency().getMax() >= metrics.getFirstByteLatency().getMax());
+
+            StringBuilder dump = new StringBuilder();
+            metrics.dump(dump);
+            assertTrue(dump.toString(), dump.toString().contains("127.0.0.1: {200=2}"));
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    public void test_Failure_Reported() throws IOException {
+        int port;
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+        DefaultHttpClientMetrics metrics = new DefaultHttpClientMetrics();
+        HttpClient c = new HttpClient.Builder().metrics(metrics).build();
+        try {
+            c.get(new GenericUrl("http://127.0.0.1:" + port + "/"));
+            fail("Connection must be refused");
+        } catch (IOException expected) {
+            // reported below
+        }
+        assertEquals(1, metrics.getFailureCount());
+        assertEquals(1, metrics.getStatusCount("127.0.0.1", -1));
+    }
+
+    @Test
+    public void test_Histogram_Precision() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++)
+            h.record(TimeUnit.MICROSECONDS.toNanos(i));
+        assertEquals(10000, h.getCount());
+        assertEquals(5000, TimeUnit.NANOSECONDS.toMicros(h.getValueAtPercentile(50)), 5000 / 64.0);
+        assertEquals(9900, TimeUnit.NANOSECONDS.toMicros(h.getValueAtPercentile(99)), 9900 / 64.0);
+        assertEquals(10000, TimeUnit.NANOSECONDS.toMicros(h.getMax()), 10000 / 64.0);
+        assertNotNull(h.toString());
+
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long v = random.nextLong() >>> (1 + random.nextInt(30));
+            v = Math.min(v, (128L << 33) - 1);
+            int index = LatencyHistogram.index(v);
+            assertTrue(LatencyHistogram.lowerBound(index) <= v && v <= LatencyHistogram.upperBound(index));
+        }
+        h.reset();
+        assertEquals(0, h.getCount());
+    }
+}
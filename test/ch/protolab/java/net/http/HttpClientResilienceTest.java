@@ -0,0 +1,282 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpClientResilienceTest {
+
+    /**
+     * Answers with the status currently set.
+     */
+    private static final class Status implements HttpHandler {
+
+        final AtomicInteger status = new AtomicInteger(500);
+        final AtomicInteger requests = new AtomicInteger();
+
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            requests.incrementAndGet();
+            StubServer.send(ex, status.get(), "status");
+        }
+    }
+
+    private static String host(GenericUrl url) {
+        return url.getHost() + ":" + url.getPort();
+    }
+
+    private static void assertRejected(HttpClient c, GenericUrl url, RequestRejectedException.Reason reason)
+            throws IOException {
+        try {
+            c.get(url).disconnect();
+            fail("The request must be rejected");
+        } catch (RequestRejectedException e) {
+            assertEquals(reason, e.getReason());
+            assertEquals(host(url), e.getHost());
+        }
+    }
+
+    @Test
+    public void test_Circuit_Opens_And_Closes() throws IOException, InterruptedException {
+        Status handler = new Status();
+        try (StubServer server = new StubServer(handler)) {
+            CircuitBreaker breaker = new CircuitBreaker.Builder()
+                    .failureThreshold(3)
+                    .openDuration(200, TimeUnit.MILLISECONDS)
+                    .build();
+            HttpClient c = new HttpClient.Builder().circuitBreaker(breaker).build();
+            GenericUrl url = server.url("/");
+
+            for (int i = 0; i < 3; i++)
+                assertEquals(500, c.get(url).getStatusCode());
+            assertEquals(CircuitBreaker.State.OPEN, breaker.getState(host(url)));
+            assertRejected(c, url, RequestRejectedException.Reason.CIRCUIT_OPEN);
+            assertEquals(3, handler.requests.get());
+            assertEquals(1, breaker.getRejectedCount());
+
+            // the probe fails: open again
+            Thread.sleep(250);
+            assertEquals(500, c.get(url).getStatusCode());
+            assertEquals(CircuitBreaker.State.OPEN, breaker.getState(host(url)));
+            assertRejected(c, url, RequestRejectedException.Reason.CIRCUIT_OPEN);
+
+            // the probe succeeds: closed
+            handler.status.set(200);
+            Thread.sleep(250);
+            assertEquals(200, c.get(url).getStatusCode());
+            assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(host(url)));
+            assertEquals(200, c.get(url).getStatusCode());
+        }
+    }
+
+    @Test
+    public void test_Rejected_Requests_Not_Retried() throws IOException {
+        Status handler = new Status();
+        try (StubServer server = new StubServer(handler)) {
+            handler.status.set(503);
+            CircuitBreaker breaker = new CircuitBreaker.Builder().failureThreshold(2).build();
+            RetryPolicy retries = new RetryPolicy.Builder()
+                    .maxAttempts(5)
+                    .backoff(1, 1, TimeUnit.MILLISECONDS)
+                    .build();
+            HttpClient c = new HttpClient.Builder().circuitBreaker(breaker).retryPolicy(retries).build();
+            assertRejected(c, server.url("/"), RequestRejectedException.Reason.CIRCUIT_OPEN);
+            assertEquals(2, handler.requests.get());
+        }
+    }
+
+    @Test
+    public void test_Concurrency_Limit() throws Exception {
+        final CountDownLatch arrived = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        HttpHandler slow = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                arrived.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                StubServer.send(ex, 200, "slow");
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (StubServer server = new StubServer(slow)) {
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter.Builder().limits(2, 1, 4).build();
+            HttpClient c = new HttpClient.Builder().concurrencyLimiter(limiter).executor(executor).build();
+            GenericUrl url = server.url("/");
+
+            CompletableFuture<HttpResponse> first = c.getAsync(url);
+            CompletableFuture<HttpResponse> second = c.getAsync(url);
+            assertTrue(arrived.await(5, TimeUnit.SECONDS));
+            assertEquals(2, limiter.getInFlight(host(url)));
+            assertRejected(c, url, RequestRejectedException.Reason.CONCURRENCY_LIMIT);
+
+            release.countDown();
+            assertEquals("slow", first.get().parseAsString());
+            assertEquals("slow", second.get().parseAsString());
+            assertEquals(0, limiter.getInFlight(host(url)));
+            // the first one completed fast while the limit was fully used
+            assertEquals(3, limiter.getLimit(host(url)));
+            assertEquals(1, limiter.getRejectedCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void test_Limit_Decreased_When_Overloaded() throws IOException {
+        Status handler = new Status();
+        try (StubServer server = new StubServer(handler)) {
+            handler.status.set(503);
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter.Builder()
+                    .limits(10, 4, 20)
+                    .backoffRatio(0.5)
+                    .build();
+            HttpClient c = new HttpClient.Builder().concurrencyLimiter(limiter).build();
+            GenericUrl url = server.url("/");
+
+            c.get(url).disconnect();
+            assertEquals(5, limiter.getLimit(host(url)));
+            c.get(url).disconnect();
+            assertEquals(4, limiter.getLimit(host(url)));
+
+            // a single request in flight does not use half of the limit
+            handler.status.set(200);
+            c.get(url).disconnect();
+            assertEquals(4, limiter.getLimit(host(url)));
+        }
+    }
+
+    @Test
+    public void test_Requests_Paced_By_Host_Rate() throws IOException {
+        Status handler = new Status();
+        handler.status.set(200);
+        try (StubServer server = new StubServer(handler)) {
+            RateLimiter limiter = new RateLimiter.Builder().hostRate(2, 200, TimeUnit.MILLISECONDS).build();
+            HttpClient c = new HttpClient.Builder().rateLimiter(limiter).build();
+            GenericUrl url = server.url("/");
+
+            long start = System.nanoTime();
+            for (int i = 0; i < 4; i++)
+                c.get(url).disconnect();
+            // a burst of 2, then one every 100 ms
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(180));
+            assertEquals(2, limiter.getDelayedCount());
+            assertEquals(4, handler.requests.get());
+        }
+    }
+
+    @Test
+    public void test_Requests_Rejected_When_Permit_Too_Far() throws IOException {
+        Status handler = new Status();
+        handler.status.set(200);
+        try (StubServer server = new StubServer(handler); StubServer other = new StubServer(handler)) {
+            RateLimiter limiter = new RateLimiter.Builder()
+                    .hostRate(1, 1, TimeUnit.MINUTES)
+                    .maxWait(0, TimeUnit.SECONDS)
+                    .build();
+            HttpClient c = new HttpClient.Builder().rateLimiter(limiter).build();
+
+            c.get(server.url("/")).disconnect();
+            assertRejected(c, server.url("/"), RequestRejectedException.Reason.RATE_LIMIT);
+            // other hosts have their own permits
+            c.get(other.url("/")).disconnect();
+            assertEquals(2, handler.requests.get());
+
+            RateLimiter global = new RateLimiter.Builder()
+                    .globalRate(1, 1, TimeUnit.MINUTES)
+                    .maxWait(0, TimeUnit.SECONDS)
+                    .build();
+            c = new HttpClient.Builder().rateLimiter(global).build();
+            c.get(server.url("/")).disconnect();
+            assertRejected(c, other.url("/"), RequestRejectedException.Reason.RATE_LIMIT);
+            assertEquals(1, global.getRejectedCount());
+        }
+    }
+
+    @Test
+    public void test_Host_Paused_As_Told_By_Headers() throws IOException {
+        final AtomicInteger requests = new AtomicInteger();
+        HttpHandler limited = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                if (requests.incrementAndGet() == 1) {
+                    ex.getResponseHeaders().add("Retry-After", "1");
+                    StubServer.send(ex, 429, "slow down");
+                } else {
+                    ex.getResponseHeaders().add("X-RateLimit-Remaining", "0");
+                    ex.getResponseHeaders().add("X-RateLimit-Reset", "60");
+                    StubServer.send(ex, 200, "last one");
+                }
+            }
+        };
+        try (StubServer server = new StubServer(limited)) {
+            RateLimiter limiter = new RateLimiter.Builder().maxWait(5, TimeUnit.SECONDS).build();
+            HttpClient c = new HttpClient.Builder().rateLimiter(limiter).build();
+            GenericUrl url = server.url("/");
+
+            assertEquals(429, c.get(url).getStatusCode());
+            long start = System.nanoTime();
+            assertEquals("last one", c.get(url).parseAsString());
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(900));
+            // nothing remains for a minute, longer than the max wait
+            assertRejected(c, url, RequestRejectedException.Reason.RATE_LIMIT);
+            assertEquals(2, requests.get());
+            assertEquals(2, limiter.getPauseCount());
+        }
+    }
+
+    @Test
+    public void test_Async_Requests_Delayed_Without_Blocking() throws Exception {
+        Status handler = new Status();
+        handler.status.set(200);
+        try (StubServer server = new StubServer(handler)) {
+            RateLimiter limiter = new RateLimiter.Builder().hostRate(1, 300, TimeUnit.MILLISECONDS).build();
+            HttpClient c = new HttpClient.Builder().rateLimiter(limiter).build();
+            GenericUrl url = server.url("/");
+
+            long start = System.nanoTime();
+            CompletableFuture<HttpResponse> first = c.getAsync(url);
+            CompletableFuture<HttpResponse> second = c.getAsync(url);
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(200));
+            assertEquals(200, first.get(5, TimeUnit.SECONDS).getStatusCode());
+            assertEquals(200, second.get(5, TimeUnit.SECONDS).getStatusCode());
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(280));
+            // the permits taken in advance were not taken again when sending
+            assertEquals(1, limiter.getDelayedCount());
+            assertEquals(2, handler.requests.get());
+        }
+    }
+}
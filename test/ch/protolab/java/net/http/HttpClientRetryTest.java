@@ -0,0 +1,196 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpClientRetryTest {
+
+    /**
+     * Answers 503 to the first {@code failures} requests, with the given {@code Retry-After} header if not
+     * {@code null}, then "ok".
+     */
+    private static final class Flaky implements HttpHandler {
+
+        final AtomicInteger requests = new AtomicInteger();
+        final int failures;
+        final String retryAfter;
+
+        Flaky(int failures, String retryAfter) {
+            this.failures = failures;
+            this.retryAfter = retryAfter;
+        }
+
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            ex.getRequestBody().readAllBytes();
+            if (requests.incrementAndGet() <= failures) {
+                if (retryAfter != null)
+                    ex.getResponseHeaders().add("Retry-After", retryAfter);
+                StubServer.send(ex, 503, "unavailable");
+            } else {
+                StubServer.send(ex, 200, "ok");
+            }
+        }
+    }
+
+    private static RetryPolicy.Builder fastRetries() {
+        return new RetryPolicy.Builder().backoff(1, 5, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void test_Idempotent_Requests_Retried() throws IOException {
+        Flaky flaky = new Flaky(2, null);
+        try (StubServer server = new StubServer(flaky)) {
+            RetryPolicy policy = fastRetries().build();
+            HttpClient c = new HttpClient.Builder().retryPolicy(policy).build();
+
+            HttpResponse resp = c.get(server.url("/"));
+            assertEquals(200, resp.getStatusCode());
+            assertEquals("ok", resp.parseAsString());
+            assertEquals(3, flaky.requests.get());
+            assertEquals(2, policy.getRetryCount());
+
+            flaky.requests.set(0);
+            assertEquals(200, c.put(server.url("/"), ByteArrayContent.fromString("text/plain", "x")).getStatusCode());
+            assertEquals(3, flaky.requests.get());
+
+            flaky.requests.set(0);
+            assertEquals(503, c.post(server.url("/"), ByteArrayContent.fromString("text/plain", "x")).getStatusCode());
+            assertEquals(1, flaky.requests.get());
+        }
+    }
+
+    @Test
+    public void test_Last_Response_Returned_After_Max_Attempts() throws IOException {
+        Flaky flaky = new Flaky(10, null);
+        try (StubServer server = new StubServer(flaky)) {
+            HttpClient c = new HttpClient.Builder().retryPolicy(fastRetries().maxAttempts(4).build()).build();
+            HttpResponse resp = c.get(server.url("/"));
+            assertEquals(503, resp.getStatusCode());
+            assertEquals("unavailable", resp.parseAsString());
+            assertEquals(4, flaky.requests.get());
+        }
+    }
+
+    @Test
+    public void test_Retry_After() throws IOException {
+        Flaky flaky = new Flaky(1, "0");
+        try (StubServer server = new StubServer(flaky)) {
+            HttpClient c = new HttpClient.Builder().retryPolicy(fastRetries().build()).build();
+            assertEquals(200, c.get(server.url("/")).getStatusCode());
+            assertEquals(2, flaky.requests.get());
+        }
+
+        flaky = new Flaky(1, "120");
+        try (StubServer server = new StubServer(flaky)) {
+            HttpClient c = new HttpClient.Builder()
+                    .retryPolicy(fastRetries().maxRetryAfter(30, TimeUnit.SECONDS).build())
+                    .build();
+            HttpResponse resp = c.get(server.url("/"));
+            assertEquals(503, resp.getStatusCode());
+            assertEquals("120", resp.getHeaders().getFirstHeaderStringValue("Retry-After"));
+            assertEquals(1, flaky.requests.get());
+        }
+    }
+
+    @Test
+    public void test_Budget_Limits_Retries() throws IOException {
+        Flaky flaky = new Flaky(100, null);
+        try (StubServer server = new StubServer(flaky)) {
+            RetryPolicy policy = fastRetries().maxAttempts(5).budget(0.5, 2).build();
+            HttpClient c = new HttpClient.Builder().retryPolicy(policy).build();
+
+            // the reserve pays for the first two retries, the next request is sent once
+            c.get(server.url("/")).disconnect();
+            c.get(server.url("/")).disconnect();
+            assertEquals(2, policy.getRetryCount());
+            assertEquals(4, flaky.requests.get());
+            assertEquals(2, policy.getBudgetExhaustedCount());
+
+            // two requests earn one more retry
+            c.get(server.url("/")).disconnect();
+            assertEquals(3, policy.getRetryCount());
+            assertEquals(6, flaky.requests.get());
+        }
+    }
+
+    @Test
+    public void test_IO_Errors_Retried() throws IOException {
+        int port;
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+        RetryPolicy policy = fastRetries().build();
+        HttpClient c = new HttpClient.Builder().retryPolicy(policy).build();
+        try {
+            c.get(new GenericUrl("http://127.0.0.1:" + port + "/"));
+            fail("Connection must be refused");
+        } catch (ConnectException expected) {
+            assertEquals(2, policy.getRetryCount());
+        }
+    }
+
+    @Test
+    public void test_Every_Attempt_Sends_Original_Headers() throws IOException {
+        final List<String> cookies = new CopyOnWriteArrayList<>();
+        final List<String> agents = new CopyOnWriteArrayList<>();
+        final Flaky flaky = new Flaky(2, null);
+        try (StubServer server = new StubServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                cookies.add(ex.getRequestHeaders().getFirst("Cookie"));
+                agents.add(ex.getRequestHeaders().getFirst("User-Agent"));
+                ex.getResponseHeaders().add("Set-Cookie", "b=2");
+                flaky.handle(ex);
+            }
+        })) {
+            HttpClient c = new HttpClient.Builder()
+                    .retryPolicy(fastRetries().build())
+                    .cookies(true)
+                    .userAgent("test")
+                    .header("Cookie", "a=1")
+                    .build();
+
+            assertEquals(200, c.get(server.url("/")).getStatusCode());
+            assertEquals(3, cookies.size());
+            assertEquals("a=1", cookies.get(0));
+            assertEquals("a=1; b=2", cookies.get(1));
+            assertEquals("a=1; b=2", cookies.get(2));
+            assertTrue(agents.get(0), agents.get(0).startsWith("test"));
+            assertEquals(agents.get(0), agents.get(1));
+            assertEquals(agents.get(0), agents.get(2));
+        }
+    }
+}
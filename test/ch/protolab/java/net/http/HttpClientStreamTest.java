@@ -0,0 +1,248 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.HttpResponseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HttpClientStreamTest {
+
+    /**
+     * Records the signals, requesting {@code batch} items whenever the previous ones have been received, or only once
+     * if {@code batch} is 0 for none.
+     */
+    private static class Recorder<T> implements Flow.Subscriber<T> {
+
+        final long batch;
+        final List<T> items = new CopyOnWriteArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Flow.Subscription subscription;
+        volatile Throwable error;
+        volatile boolean completed;
+        private long outstanding;
+
+        Recorder(long batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription s) {
+            subscription = s;
+            if (batch > 0) {
+                outstanding = batch;
+                s.request(batch);
+            }
+        }
+
+        @Override
+        public void onNext(T item) {
+            items.add(item);
+            if (batch > 0 && --outstanding == 0) {
+                outstanding = batch;
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * Responds with a chunked body, written in parts.
+     */
+    private static HttpHandler chunked(final byte[]... parts) {
+        return new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                ex.sendResponseHeaders(200, 0);
+                try (OutputStream out = ex.getResponseBody()) {
+                    for (byte[] part : parts) {
+                        out.write(part);
+                        out.flush();
+                    }
+                }
+                ex.close();
+            }
+        };
+    }
+
+    @Test
+    public void test_Body_Streamed_In_Chunks() throws Exception {
+        byte[] body = new byte[300000];
+        for (int i = 0; i < body.length; i++)
+            body[i] = (byte) i;
+        PooledHttpTransport transport = new PooledHttpTransport.Builder().build();
+        try (StubServer server = new StubServer(chunked(Arrays.copyOfRange(body, 0, 100000),
+                Arrays.copyOfRange(body, 100000, body.length)))) {
+            HttpClient c = new HttpClient.Builder().transport(transport).build();
+            for (int i = 0; i < 2; i++) {
+                Recorder<ByteBuffer> recorder = new Recorder<>(1);
+                c.stream(server.url("/")).subscribe(recorder);
+                recorder.await();
+                assertTrue(recorder.completed);
+                ByteArrayOutputStream received = new ByteArrayOutputStream();
+                for (ByteBuffer chunk : recorder.items)
+                    received.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+                assertArrayEquals(body, received.toByteArray());
+                assertTrue(recorder.items.size() > 1);
+            }
+            // the completed stream released its connection
+            assertEquals(1, transport.getConnectionsCreated());
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    public void test_Lines_Streamed() throws Exception {
+        try (StubServer server = new StubServer(chunked("{\"a\":1}\r\n{\"b\":".getBytes(StandardCharsets.UTF_8),
+                "2}\n\n{\"c\":\"\u00e9\"}".getBytes(StandardCharsets.UTF_8)))) {
+            Recorder<String> recorder = new Recorder<>(Long.MAX_VALUE);
+            HttpClient.newInstance().streamLines(server.url("/")).subscribe(recorder);
+            recorder.await();
+            assertTrue(recorder.completed);
+            assertEquals(Arrays.asList("{\"a\":1}", "{\"b\":2}", "", "{\"c\":\"\u00e9\"}"), recorder.items);
+        }
+    }
+
+    @Test
+    public void test_Items_Published_On_Demand_And_Cancel_Closes_Connection() throws Exception {
+        final CountDownLatch writeFailed = new CountDownLatch(1);
+        final byte[] line = "0123456789abcdef0123456789abcdef\n".getBytes(StandardCharsets.ISO_8859_1);
+        HttpHandler endless = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                ex.sendResponseHeaders(200, 0);
+                try (OutputStream out = ex.getResponseBody()) {
+                    for (; ; )
+                        out.write(line);
+                } catch (IOException e) {
+                    writeFailed.countDown();
+                }
+            }
+        };
+        PooledHttpTransport transport = new PooledHttpTransport.Builder().build();
+        try (StubServer server = new StubServer(endless)) {
+            HttpClient c = new HttpClient.Builder().transport(transport).build();
+            Recorder<String> recorder = new Recorder<>(0);
+            c.streamLines(server.url("/")).subscribe(recorder);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (recorder.subscription == null && System.nanoTime() < deadline)
+                Thread.sleep(10);
+
+            recorder.subscription.request(3);
+            while (recorder.items.size() < 3 && System.nanoTime() < deadline)
+                Thread.sleep(10);
+            Thread.sleep(200);
+            // nothing is published beyond the demand, though the server keeps writing
+            assertEquals(3, recorder.items.size());
+            assertEquals(1, writeFailed.getCount());
+
+            recorder.subscription.cancel();
+            assertTrue(writeFailed.await(5, TimeUnit.SECONDS));
+            Thread.sleep(100);
+            assertEquals(3, recorder.items.size());
+            // no signal after the cancellation
+            assertEquals(1, recorder.done.getCount());
+            assertEquals(0, transport.getLeasedConnections());
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    public void test_Stream_Not_Buffered_By_Coalescing() throws Exception {
+        final CountDownLatch firstChunk = new CountDownLatch(1);
+        HttpHandler halves = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                // a small body of known length, which coalescing would buffer
+                ex.sendResponseHeaders(200, 13);
+                try (OutputStream out = ex.getResponseBody()) {
+                    out.write("first\n".getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    // the rest is only sent once the first line has been published
+                    try {
+                        firstChunk.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    out.write("second\n".getBytes(StandardCharsets.US_ASCII));
+                }
+                ex.close();
+            }
+        };
+        try (StubServer server = new StubServer(halves)) {
+            HttpClient c = new HttpClient.Builder().coalesceRequests(true).build();
+            Recorder<String> recorder = new Recorder<String>(1) {
+                @Override
+                public void onNext(String item) {
+                    super.onNext(item);
+                    firstChunk.countDown();
+                }
+            };
+            long start = System.nanoTime();
+            c.streamLines(server.url("/")).subscribe(recorder);
+            recorder.await();
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(4));
+            assertEquals(Arrays.asList("first", "second"), recorder.items);
+        }
+    }
+
+    @Test
+    public void test_Unsuccessful_Response_Fails_Stream() throws Exception {
+        try (StubServer server = new StubServer(StubServer.respond(404, "missing"))) {
+            Recorder<ByteBuffer> recorder = new Recorder<>(1);
+            HttpClient.newInstance().stream(server.url("/")).subscribe(recorder);
+            recorder.await();
+            assertTrue(recorder.error instanceof HttpResponseException);
+            assertEquals(404, ((HttpResponseException) recorder.error).getStatusCode());
+            assertTrue(recorder.items.isEmpty());
+        }
+    }
+}
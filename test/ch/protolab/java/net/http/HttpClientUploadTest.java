@@ -0,0 +1,224 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HttpClientUploadTest {
+
+    private static final byte[] BODY = new byte[1 << 20];
+
+    static {
+        new Random(42).nextBytes(BODY);
+    }
+
+    /**
+     * Records the last request body and its framing headers, and answers 200.
+     */
+    private static final class Recorder implements HttpHandler {
+
+        volatile byte[] body;
+        volatile String length;
+        volatile String encoding;
+        volatile String type;
+
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            length = ex.getRequestHeaders().getFirst("Content-Length");
+            encoding = ex.getRequestHeaders().getFirst("Transfer-Encoding");
+            type = ex.getRequestHeaders().getFirst("Content-Type");
+            try (InputStream in = ex.getRequestBody()) {
+                body = in.readAllBytes();
+            }
+            StubServer.send(ex, 200, "ok");
+        }
+    }
+
+    /**
+     * Keeps a copy of every progress reported.
+     */
+    private static final class Progress implements UploadListener {
+
+        final List<long[]> reports = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void progress(UploadProgress p) {
+            reports.add(new long[]{p.getBytesSent(), p.getLength(), p.isComplete() ? 1 : 0});
+        }
+
+        /**
+         * Asserts that the last report tells the body is complete.
+         */
+        void assertLast(long sent, long length) {
+            long[] last = reports.get(reports.size() - 1);
+            assertEquals(sent, last[0]);
+            assertEquals(length, last[1]);
+            assertEquals(1, last[2]);
+        }
+    }
+
+    @Test
+    public void test_File_Uploaded_With_Content_Length_And_Progress() throws Exception {
+        Path file = Files.createTempFile("upload", ".bin");
+        PooledHttpTransport transport = new PooledHttpTransport.Builder().build();
+        Recorder recorder = new Recorder();
+        try (StubServer server = new StubServer(recorder)) {
+            Files.write(file, BODY);
+            HttpClient[] clients = {new HttpClient.Builder().transport(transport).build(), HttpClient.newInstance()};
+            for (HttpClient c : clients) {
+                Progress progress = new Progress();
+                HttpResponse resp = c.upload(server.url("/"), UploadContent.file(file, "application/octet-stream"),
+                        progress);
+                assertEquals(200, resp.getStatusCode());
+                resp.disconnect();
+                assertArrayEquals(BODY, recorder.body);
+                assertEquals(String.valueOf(BODY.length), recorder.length);
+                assertNull(recorder.encoding);
+
+                // every 64 KiB, then once complete
+                assertEquals(BODY.length / ProgressContent.REPORT_INTERVAL + 1, progress.reports.size());
+                long previous = 0;
+                for (long[] report : progress.reports) {
+                    assertTrue(report[0] >= previous);
+                    assertEquals(BODY.length, report[1]);
+                    previous = report[0];
+                }
+                progress.assertLast(BODY.length, BODY.length);
+                assertEquals(0, progress.reports.get(progress.reports.size() - 2)[2]);
+            }
+        } finally {
+            transport.shutdown();
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void test_Stream_Of_Unknown_Length_Sent_Chunked() throws Exception {
+        PooledHttpTransport transport = new PooledHttpTransport.Builder().build();
+        Recorder recorder = new Recorder();
+        try (StubServer server = new StubServer(recorder)) {
+            HttpClient c = new HttpClient.Builder().transport(transport).build();
+            Progress progress = new Progress();
+            c.upload(server.url("/"), "PUT", null,
+                    UploadContent.stream(new ByteArrayInputStream(BODY), -1, "application/octet-stream"), progress)
+                    .disconnect();
+            assertArrayEquals(BODY, recorder.body);
+            assertEquals("chunked", recorder.encoding);
+            progress.assertLast(BODY.length, -1);
+
+            // a stream of known length is sent up to that length only
+            c.upload(server.url("/"), UploadContent.stream(new ByteArrayInputStream(BODY), 1000, null), null)
+                    .disconnect();
+            assertEquals("1000", recorder.length);
+            assertEquals(1000, recorder.body.length);
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    public void test_Source_Produces_Body_Chunk_By_Chunk() throws Exception {
+        Recorder recorder = new Recorder();
+        try (StubServer server = new StubServer(recorder)) {
+            ByteBufferSource source = new ByteBufferSource() {
+                int position;
+
+                @Override
+                public boolean fill(ByteBuffer buffer) {
+                    // a small chunk, so that the body takes several calls
+                    int n = Math.min(Math.min(buffer.remaining(), 10000), BODY.length - position);
+                    buffer.put(BODY, position, n);
+                    position += n;
+                    return position < BODY.length;
+                }
+            };
+            HttpClient.newInstance().upload(server.url("/"), UploadContent.source(source, "text/plain"), null)
+                    .disconnect();
+            assertArrayEquals(BODY, recorder.body);
+            assertEquals("chunked", recorder.encoding);
+            assertEquals("text/plain", recorder.type);
+        }
+    }
+
+    @Test
+    public void test_Multipart_Form_Streams_Parts() throws Exception {
+        Path file = Files.createTempFile("report", ".bin");
+        PooledHttpTransport transport = new PooledHttpTransport.Builder().build();
+        Recorder recorder = new Recorder();
+        try (StubServer server = new StubServer(recorder)) {
+            Files.write(file, BODY);
+            MultipartFormContent form = new MultipartFormContent.Builder()
+                    .field("title", "caf\u00e9")
+                    .file("report", file, "application/pdf")
+                    .build();
+            HttpClient c = new HttpClient.Builder().transport(transport).build();
+            Progress progress = new Progress();
+            GenericUrl url = server.url("/form");
+            c.upload(url, form, progress).disconnect();
+
+            String boundary = form.getBoundary();
+            assertEquals("multipart/form-data; boundary=" + boundary, recorder.type);
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            expected.write(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"title\"\r\n\r\ncaf\u00e9\r\n"
+                            + "--" + boundary + "\r\nContent-Disposition: form-data; name=\"report\"; filename=\""
+                            + file.getFileName() + "\"\r\nContent-Type: application/pdf\r\n\r\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            expected.write(BODY);
+            expected.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+            assertArrayEquals(expected.toByteArray(), recorder.body);
+            assertEquals(String.valueOf(form.getLength()), recorder.length);
+            progress.assertLast(form.getLength(), form.getLength());
+            assertTrue(form.retrySupported());
+
+            // a part of unknown length makes the whole form chunked
+            MultipartFormContent chunked = new MultipartFormContent.Builder()
+                    .part("data", "data.bin", null, UploadContent.stream(new ByteArrayInputStream(BODY), -1, null))
+                    .build();
+            assertEquals(-1, chunked.getLength());
+            assertFalse(chunked.retrySupported());
+            c.post(url, chunked).disconnect();
+            assertEquals("chunked", recorder.encoding);
+            String head = new String(recorder.body, 0, 200, StandardCharsets.ISO_8859_1);
+            assertTrue(head.contains("filename=\"data.bin\"\r\nContent-Type: application/octet-stream\r\n\r\n"));
+        } finally {
+            transport.shutdown();
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.InputStreamContent;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PooledHttpTransportTest {
+
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+    private PooledHttpTransport transport;
+
+    /**
+     * Echoes the request body; {@code /chunked} responds with a chunked body, {@code /slow} takes 50 ms.
+     */
+    private final HttpHandler echo = new HttpHandler() {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            clientPorts.add(ex.getRemoteAddress().getPort());
+            byte[] body = readAll(ex.getRequestBody());
+            String path = ex.getRequestURI().getPath();
+            if (path.equals("/slow")) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (path.equals("/chunked")) {
+                ex.sendResponseHeaders(200, 0);
+                try (OutputStream out = ex.getResponseBody()) {
+                    for (int i = 0; i < 3; i++)
+                        out.write(("part" + i).getBytes(StandardCharsets.UTF_8));
+                }
+                ex.close();
+                return;
+            }
+            StubServer.send(ex, 200, new String(body, StandardCharsets.UTF_8));
+        }
+    };
+
+    @After
+    public void tearDown() {
+        if (transport != null)
+            transport.shutdown();
+    }
+
+    @Test
+    public void test_Connection_Is_Reused() throws IOException {
+        transport = new PooledHttpTransport.Builder().build();
+        try (StubServer server = new StubServer(echo)) {
+            HttpClient c = new HttpClient.Builder().transport(transport).build();
+            for (int i = 0; i < 5; i++)
+                assertEquals("body" + i, c.post(server.url("/"), ByteArrayContent.fromString("text/plain", "body" + i))
+                                           .parseAsString());
+
+            assertEquals(1, transport.getConnectionsCreated());
+            assertEquals(4, transport.getConnectionsReused());
+            assertEquals(1, transport.getIdleConnections());
+            assertEquals(0, transport.getLeasedConnections());
+            assertEquals(1, clientPorts.size());
+        }
+    }
+
+    @Test
+    public void test_Chunked_Request_And_Response() throws IOException {
+        transport = new PooledHttpTransport.Builder().build();
+        try (StubServer server = new StubServer(echo)) {
+            HttpClient c = new HttpClient.Builder().transport(transport).build();
+
+            byte[] payload = new byte[100000];
+            for (int i = 0; i < payload.length; i++)
+                payload[i] = (byte) ('a' + i % 26);
+            InputStreamContent content = new InputStreamContent("text/plain", new ByteArrayInputStream(payload));
+            HttpResponse resp = c.put(server.url("/"), content);
+            assertEquals(new String(payload, StandardCharsets.UTF_8), resp.parseAsString());
+
+            assertEquals("part0part1part2", c.get(server.url("/chunked")).parseAsString());
+            assertEquals(1, transport.getConnectionsCreated());
+        }
+    }
+
+    @Test
+    public void test_Head_And_Ignored_Responses_Release_Connection() throws IOException {
+        transport = new PooledHttpTransport.Builder().maxConnectionsPerRoute(1).build();
+        try (StubServer server = new StubServer(echo)) {
+            HttpClient c = new HttpClient.Builder().transport(transport).timeout(2, TimeUnit.SECONDS).build();
+            assertEquals(200, c.head(server.url("/")).getStatusCode());
+            c.post(server.url("/"), ByteArrayContent.fromString("text/plain", "unread")).ignore();
+            c.get(server.url("/chunked")).disconnect();
+            assertEquals(200, c.head(server.url("/")).getStatusCode());
+            assertEquals(0, transport.getLeasedConnections());
+        }
+    }
+
+    @Test
+    public void test_Max_Connections_Per_Route() throws Exception {
+        transport = new PooledHttpTransport.Builder().maxConnectionsPerRoute(2).build();
+        try (StubServer server = new StubServer(echo)) {
+            HttpClient c = new HttpClient.Builder().transport(transport).build();
+            List<CompletableFuture<HttpResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++)
+                futures.add(c.getAsync(server.url("/slow")));
+            for (CompletableFuture<HttpResponse> f : futures)
+                f.get(10, TimeUnit.SECONDS).ignore();
+
+            assertTrue("connections " + clientPorts.size(), clientPorts.size() <= 2);
+            assertEquals(10, transport.getConnectionsCreated() + transport.getConnectionsReused());
+        }
+    }
+
+    @Test
+    public void test_Idle_Connections_Count_Against_Max_Per_Route() throws Exception {
+        transport = new PooledHttpTransport.Builder().maxConnectionsPerRoute(2).build();
+        try (StubServer server = new StubServer(echo)) {
+            HttpClient c = new HttpClient.Builder().transport(transport).build();
+            // the connection stays leased until the body is read
+            HttpResponse leased = c.post(server.url("/"), new ByteArrayContent("text/plain",
+                    "body".getBytes(StandardCharsets.UTF_8)));
+            URL url = server.url("/").toURL();
+            assertTrue(transport.prewarm(url, 2, 1000));
+            assertFalse(transport.prewarm(url, 2, 1000));
+            assertEquals(1, transport.getIdleConnections());
+
+            assertEquals("body", leased.parseAsString());
+            assertEquals(2, transport.getIdleConnections());
+            assertEquals(2, transport.getConnectionsCreated());
+        }
+    }
+
+    @Test
+    public void test_Idle_Connections_Are_Evicted() throws Exception {
+        transport = new PooledHttpTransport.Builder().idleTimeout(50, TimeUnit.MILLISECONDS).build();
+        try (StubServer server = new StubServer(echo)) {
+            HttpClient c = new HttpClient.Builder().transport(transport).build();
+            c.get(server.url("/")).ignore();
+            assertEquals(1, transport.getIdleConnections());
+
+            Thread.sleep(100);
+            transport.evictExpired();
+            assertEquals(0, transport.getIdleConnections());
+            assertEquals(1, transport.getConnectionsEvicted());
+
+            c.get(server.url("/")).ignore();
+            assertEquals(2, transport.getConnectionsCreated());
+        }
+    }
+
+    @Test
+    public void test_Connection_Close_Is_Not_Reused() throws IOException {
+        transport = new PooledHttpTransport.Builder().build();
+        try (StubServer server = new StubServer(echo)) {
+            HttpClient c = new HttpClient.Builder().transport(transport).header("Connection", "close").build();
+            c.get(server.url("/")).ignore();
+            c.get(server.url("/")).ignore();
+            assertEquals(2, transport.getConnectionsCreated());
+            assertEquals(0, transport.getConnectionsReused());
+        }
+    }
+
+    @Test
+    public void test_Stale_Connection_Is_Retried() throws Exception {
+        transport = new PooledHttpTransport.Builder().build();
+        // answers a single request per connection, then closes it without telling the client
+        try (final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 2; i++) {
+                            try (Socket s = server.accept()) {
+                                BufferedReader r = new BufferedReader(
+                                        new InputStreamReader(s.getInputStream(), StandardCharsets.ISO_8859_1));
+                                while (!r.readLine().isEmpty()) {
+                                    // skip request head
+                                }
+                                s.getOutputStream().write(
+                                        "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes(StandardCharsets.ISO_8859_1));
+                                s.getOutputStream().flush();
+                            }
+                        }
+                    } catch (IOException ignored) {
+                        // test server shut down
+                    }
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+
+            HttpClient c = new HttpClient.Builder().transport(transport).build();
+            GenericUrl url = new GenericUrl("http://127.0.0.1:" + server.getLocalPort() + "/");
+            assertEquals("ok", c.get(url).parseAsString());
+            Thread.sleep(50);
+            assertEquals("ok", c.get(url).parseAsString());
+            assertEquals(2, transport.getConnectionsCreated());
+        }
+    }
+
+    @Test
+    public void test_Switched_Protocol_Connection_Is_Not_Reused() throws Exception {
+        transport = new PooledHttpTransport.Builder().build();
+        final CountDownLatch done = new CountDownLatch(1);
+        try (final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (Socket upgraded = server.accept()) {
+                        skipHead(upgraded);
+                        upgraded.getOutputStream().write(("HTTP/1.1 101 Switching Protocols\r\n"
+                                                          + "Connection: Upgrade\r\nUpgrade: websocket\r\n\r\n")
+                                                                 .getBytes(StandardCharsets.ISO_8859_1));
+                        upgraded.getOutputStream().flush();
+                        try (Socket s = server.accept()) {
+                            skipHead(s);
+                            s.getOutputStream().write(
+                                    "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes(StandardCharsets.ISO_8859_1));
+                            s.getOutputStream().flush();
+                            // the upgraded connection stays open, silent
+                            done.await(10, TimeUnit.SECONDS);
+                        }
+                    } catch (IOException | InterruptedException ignored) {
+                        // test server shut down
+                    }
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+
+            HttpClient c = new HttpClient.Builder().transport(transport).timeout(2, TimeUnit.SECONDS).build();
+            GenericUrl url = new GenericUrl("http://127.0.0.1:" + server.getLocalPort() + "/");
+            assertEquals(101, c.get(url).getStatusCode());
+            assertEquals(0, transport.getIdleConnections());
+            assertEquals("ok", c.get(url).parseAsString());
+            assertEquals(2, transport.getConnectionsCreated());
+        } finally {
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void test_Disconnected_Body_Is_Not_Complete() throws Exception {
+        transport = new PooledHttpTransport.Builder().build();
+        final CountDownLatch done = new CountDownLatch(1);
+        try (final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (Socket s = server.accept()) {
+                        skipHead(s);
+                        s.getOutputStream().write(
+                                "HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\n12345".getBytes(StandardCharsets.ISO_8859_1));
+                        s.getOutputStream().flush();
+                        // the rest of the body never comes
+                        done.await(10, TimeUnit.SECONDS);
+                    } catch (IOException | InterruptedException ignored) {
+                        // test server shut down
+                    }
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+
+            LowLevelHttpResponse resp =
+                    transport.buildRequest("GET", "http://127.0.0.1:" + server.getLocalPort() + "/").execute();
+            InputStream in = resp.getContent();
+            byte[] buf = new byte[5];
+            assertEquals(5, in.read(buf));
+            resp.disconnect();
+            try {
+                in.read(buf);
+                fail("Truncated body must not end normally");
+            } catch (IOException expected) {
+                assertEquals("Stream was disconnected", expected.getMessage());
+            }
+        } finally {
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void test_Complete_Body_Ends() throws IOException {
+        transport = new PooledHttpTransport.Builder().build();
+        try (StubServer server = new StubServer(echo)) {
+            HttpClient c = new HttpClient.Builder().transport(transport).build();
+            InputStream in = c.post(server.url("/"), ByteArrayContent.fromString("text/plain", "body")).getContent();
+            assertEquals("body", new String(readAll(in), StandardCharsets.UTF_8));
+            assertEquals(-1, in.read());
+            assertEquals(0, transport.getLeasedConnections());
+        }
+    }
+
+    private static void skipHead(Socket s) throws IOException {
+        InputStream in = s.getInputStream();
+        // up to the empty line ending the head, read byte by byte so that nothing else is consumed
+        for (int matched = 0, b; matched < 4 && (b = in.read()) != -1; )
+            matched = b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : b == '\r' ? 1 : 0;
+    }
+
+    @Test
+    public void test_Request_Head_Written_And_Response_Head_Parsed() throws Exception {
+        transport = new PooledHttpTransport.Builder().build();
+        final List<String> head = new ArrayList<>();
+        try (final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (Socket s = server.accept()) {
+                        BufferedReader r = new BufferedReader(
+                                new InputStreamReader(s.getInputStream(), StandardCharsets.ISO_8859_1));
+                        for (String line = r.readLine(); !line.isEmpty(); line = r.readLine())
+                            head.add(line);
+                        s.getOutputStream().write(("HTTP/1.1 200 OK\r\ncontent-type:  text/plain \r\n"
+                                                   + "X-Custom: custom\r\nTRANSFER-ENCODING: chunked\r\n\r\n"
+                                                   + "2;ext=1\r\nok\r\n0\r\nX-Trailer: t\r\n\r\n")
+                                                          .getBytes(StandardCharsets.ISO_8859_1));
+                        s.getOutputStream().flush();
+                    } catch (IOException ignored) {
+                        // test server shut down
+                    }
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+
+            HttpClient c = new HttpClient.Builder()
+                    .transport(transport)
+                    .header("X-Common", "common")
+                    .header("X-Overridden", "common")
+                    .build();
+            HttpHeaders headers = new HttpHeaders();
+            headers.set("X-Overridden", "per-call");
+            GenericUrl url = new GenericUrl("http://127.0.0.1:" + server.getLocalPort() + "/path?q=1");
+            HttpResponse resp = c.get(url, headers);
+            assertEquals("ok", resp.parseAsString());
+            assertEquals("text/plain", resp.getContentType());
+            assertEquals("custom", resp.getHeaders().getFirstHeaderStringValue("X-Custom"));
+
+            assertEquals("GET /path?q=1 HTTP/1.1", head.get(0));
+            assertEquals("Host: 127.0.0.1:" + server.getLocalPort(), head.get(1));
+            // the library sends custom header names in lower case
+            assertTrue(head.contains("x-common: common"));
+            assertTrue(head.contains("x-overridden: per-call"));
+            assertTrue(transport.encodedHeaders.get("X-Common", "common") != null);
+        }
+    }
+
+    @Test
+    public void test_Connections_Prewarmed_Resuming_Tls_Session() throws Exception {
+        transport = new PooledHttpTransport.Builder().sslContext(TestCertificates.clientContext()).build();
+        try (StubServer server = new StubServer(echo, TestCertificates.serverContext())) {
+            GenericUrl url = server.url("/");
+            HttpClient one = new HttpClient.Builder().transport(transport).prewarm(1, url).build();
+            assertEquals(1, (int) one.warmUp().get(10, TimeUnit.SECONDS));
+            assertEquals(1, transport.getFullHandshakes());
+
+            HttpClient three = new HttpClient.Builder().transport(transport).prewarm(3, url).build();
+            assertEquals(2, (int) three.warmUp().get(10, TimeUnit.SECONDS));
+            assertEquals(1, transport.getFullHandshakes());
+            assertEquals(2, transport.getResumedHandshakes());
+            assertEquals(3, transport.getIdleConnections());
+            // enough idle connections already
+            assertEquals(0, (int) three.warmUp().get(10, TimeUnit.SECONDS));
+
+            assertEquals("warm", three.post(url, ByteArrayContent.fromString("text/plain", "warm")).parseAsString());
+            assertEquals(3, transport.getConnectionsCreated());
+            assertEquals(1, transport.getConnectionsReused());
+        }
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1)
+            out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+}
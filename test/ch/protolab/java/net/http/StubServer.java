@@ -0,0 +1,110 @@
+/*
+ *  Copyright 2012 Michael Krasnovsky
+ *
+ *  Licensed under the The MIT License (MIT) (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/MIT
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ch.protolab.java.net.http;
+
+import com.google.api.client.http.GenericUrl;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import javax.net.ssl.SSLContext;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-process HTTP server for the tests, bound to an ephemeral loopback port.
+ */
+final class StubServer implements Closeable {
+
+    static {
+        // the server writes headers and body separately: avoid Nagle/delayed-ACK stalls on persistent connections
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final String scheme;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    StubServer(HttpHandler handler) throws IOException {
+        this(handler, null);
+    }
+
+    /**
+     * @param tls SSL context of an HTTPS server, see {@link TestCertificates}; {@code null} for HTTP.
+     */
+    StubServer(HttpHandler handler, SSLContext tls) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        if (tls != null) {
+            HttpsServer https = HttpsServer.create(address, 0);
+            https.setHttpsConfigurator(new HttpsConfigurator(tls));
+            server = https;
+            scheme = "https";
+        } else {
+            server = HttpServer.create(address, 0);
+            scheme = "http";
+        }
+        server.createContext("/", handler);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    GenericUrl url(String path) {
+        return new GenericUrl(scheme + "://127.0.0.1:" + server.getAddress().getPort() + path);
+    }
+
+    /**
+     * @return a handler responding with the given status and a plain text body.
+     */
+    static HttpHandler respond(final int status, final String body) {
+        return new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                send(ex, status, body);
+            }
+        };
+    }
+
+    static void send(HttpExchange ex, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        if ("HEAD".equals(ex.getRequestMethod()) || bytes.length == 0) {
+            // writing to the body of a response sent without content makes the server drop the connection
+            ex.sendResponseHeaders(status, -1);
+        } else {
+            ex.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+        ex.close();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}